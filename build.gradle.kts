@@ -1,5 +1,6 @@
 plugins {
     id("java")
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 group = "dev.akarah"
@@ -12,9 +13,22 @@ repositories {
 dependencies {
     testImplementation(platform("org.junit:junit-bom:5.10.0"))
     testImplementation("org.junit.jupiter:junit-jupiter")
+    testRuntimeOnly("org.junit.platform:junit-platform-launcher")
+    testAnnotationProcessor(project(":processor"))
     implementation("org.javatuples:javatuples:1.2")
+    jmhAnnotationProcessor(project(":processor"))
 }
 
 tasks.test {
     useJUnitPlatform()
-}
\ No newline at end of file
+}
+
+jmh {
+    benchmarkMode.addAll("thrpt", "sample")
+    timeUnit.set("us")
+    profilers.add("gc")
+    includeTests.set(false)
+    fork.set(1)
+    warmupIterations.set(3)
+    iterations.set(5)
+}
@@ -0,0 +1,10 @@
+plugins {
+    id("java")
+}
+
+group = "dev.akarah"
+version = "1.0-SNAPSHOT"
+
+repositories {
+    mavenCentral()
+}
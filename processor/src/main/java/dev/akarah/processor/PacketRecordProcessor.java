@@ -0,0 +1,415 @@
+package dev.akarah.processor;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.RecordComponentElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Generates a codec and a packet class for every record annotated with {@code dev.akarah.format.PacketRecord}.
+ * <p>
+ * The annotations are matched by name, so this module has no dependency on the library it generates code for.
+ */
+@SupportedAnnotationTypes(PacketRecordProcessor.PACKET_RECORD)
+public class PacketRecordProcessor extends AbstractProcessor {
+    static final String PACKET_RECORD = "dev.akarah.format.PacketRecord";
+    static final String VAR_INT = "dev.akarah.format.VarInt";
+
+    /**
+     * The declarations of the format constants generated codecs may refer to, by name.
+     */
+    private static final Map<String, String> CONSTANTS = Map.of(
+        "VAR_INT", "VariableSizedInteger VAR_INT = new PacketFormats.VariableSizedInteger()",
+        "STRING", "StringFormat STRING = new PacketFormats.StringFormat()",
+        "BYTE_ARRAY", "ByteArrayFormat BYTE_ARRAY = new PacketFormats.ByteArrayFormat(new PacketFormats.ByteFormat())",
+        "INT_ARRAY", "IntArrayFormat INT_ARRAY = new PacketFormats.IntArrayFormat(new PacketFormats.IntegerFormat())",
+        "LONG_ARRAY", "LongArrayFormat LONG_ARRAY = new PacketFormats.LongArrayFormat(new PacketFormats.LongIntegerFormat())",
+        "FLOAT_ARRAY", "FloatArrayFormat FLOAT_ARRAY = new PacketFormats.FloatArrayFormat(new PacketFormats.FloatingPointFormat())",
+        "DOUBLE_ARRAY", "DoubleArrayFormat DOUBLE_ARRAY = new PacketFormats.DoubleArrayFormat(new PacketFormats.DoublePrecisionFormat())"
+    );
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (var annotation : annotations) {
+            for (var element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                if (element.getKind() != ElementKind.RECORD) {
+                    this.error(element, "@PacketRecord can only be placed on records");
+                    continue;
+                }
+                this.generate((TypeElement) element);
+            }
+        }
+        return true;
+    }
+
+    private void generate(TypeElement record) {
+        var packetId = this.packetId(record);
+        var fields = new ArrayList<Field>();
+        for (var component : record.getRecordComponents()) {
+            var field = this.field(component);
+            if (field == null) {
+                this.error(component, "unsupported @PacketRecord component type " + component.asType());
+                return;
+            }
+            fields.add(field);
+        }
+
+        var packageName = this.processingEnv.getElementUtils().getPackageOf(record).getQualifiedName().toString();
+        var recordName = record.getQualifiedName().toString();
+        var simpleName = record.getSimpleName().toString();
+
+        try {
+            this.writeCodec(record, packageName, recordName, simpleName, fields);
+            this.writePacket(record, packageName, recordName, simpleName, packetId, fields);
+        } catch (IOException e) {
+            this.error(record, "failed to write generated sources: " + e.getMessage());
+        }
+    }
+
+    private int packetId(TypeElement record) {
+        for (var mirror : record.getAnnotationMirrors()) {
+            if (isAnnotation(mirror, PACKET_RECORD)) {
+                for (var entry : mirror.getElementValues().entrySet()) {
+                    if (entry.getKey().getSimpleName().contentEquals("id")) {
+                        return (Integer) entry.getValue().getValue();
+                    }
+                }
+            }
+        }
+        throw new IllegalStateException("@PacketRecord without an id");
+    }
+
+    /**
+     * @return How to read, write and measure the component, or null if its type isn't supported.
+     */
+    private Field field(RecordComponentElement component) {
+        var name = component.getSimpleName().toString();
+        var value = "value." + name + "()";
+        var type = component.asType();
+
+        var varInt = component.getAnnotationMirrors().stream().anyMatch(m -> isAnnotation(m, VAR_INT));
+        if (varInt) {
+            if (type.getKind() != TypeKind.LONG) {
+                return null;
+            }
+            return new Field(name, "VAR_INT.readLong(buf)", "VAR_INT.writeLong(buf, " + value + ")",
+                "VAR_INT.lengthLong(" + value + ")", "VAR_INT.skip(buf)", Set.of("VAR_INT"), -1, null, value);
+        }
+
+        return switch (type.getKind()) {
+            case BYTE -> primitive(name, "", value, "Byte");
+            case INT -> primitive(name, "Int", value, "Integer");
+            case LONG -> primitive(name, "Long", value, "Long");
+            case FLOAT -> primitive(name, "Float", value, "Float");
+            case DOUBLE -> primitive(name, "Double", value, "Double");
+            case ARRAY -> array(name, value, ((ArrayType) type).getComponentType());
+            case DECLARED -> isString(type)
+                ? new Field(name, "STRING.read(buf)", "STRING.write(buf, " + value + ")",
+                    "STRING.length(" + value + ")", "STRING.skip(buf)", Set.of("STRING"), -1, null, value)
+                : null;
+            default -> null;
+        };
+    }
+
+    private static Field primitive(String name, String suffix, String value, String box) {
+        var size = switch (box) {
+            case "Byte" -> Byte.BYTES;
+            case "Integer", "Float" -> Integer.BYTES;
+            default -> Long.BYTES;
+        };
+        return new Field(name, "buf.get" + suffix + "()", "buf.put" + suffix + "(" + value + ")",
+            box + ".BYTES", "buf.position(buf.position() + " + box + ".BYTES)", Set.of(), size, suffix, value);
+    }
+
+    private static Field array(String name, String value, TypeMirror element) {
+        var constant = switch (element.getKind()) {
+            case BYTE -> "BYTE_ARRAY";
+            case INT -> "INT_ARRAY";
+            case LONG -> "LONG_ARRAY";
+            case FLOAT -> "FLOAT_ARRAY";
+            case DOUBLE -> "DOUBLE_ARRAY";
+            default -> null;
+        };
+        if (constant == null) {
+            return null;
+        }
+        return new Field(name, constant + ".read(buf)", constant + ".write(buf, " + value + ")",
+            constant + ".length(" + value + ")", constant + ".skip(buf)", Set.of(constant), -1, null, value);
+    }
+
+    private void writeCodec(
+        TypeElement record,
+        String packageName,
+        String recordName,
+        String simpleName,
+        List<Field> fields
+    ) throws IOException {
+        var codecName = simpleName + "Codec";
+        var constants = new TreeSet<String>();
+        fields.forEach(field -> constants.addAll(field.constants()));
+        var fixedSize = 0;
+        for (var field : fields) {
+            fixedSize = field.size() < 0 || fixedSize < 0 ? -1 : fixedSize + field.size();
+        }
+        // Codecs of only primitives check their bounds once, and read and write at absolute offsets.
+        var absolute = fixedSize > 0;
+
+        var file = this.processingEnv.getFiler().createSourceFile(qualify(packageName, codecName), record);
+        try (var out = new PrintWriter(file.openWriter())) {
+            header(out, packageName);
+            out.println("import dev.akarah.format.PacketFormat;");
+            out.println("import dev.akarah.format.PacketFormats;");
+            out.println();
+            if (absolute) {
+                out.println("import java.nio.BufferOverflowException;");
+                out.println("import java.nio.BufferUnderflowException;");
+            }
+            out.println("import java.nio.ByteBuffer;");
+            out.println();
+            out.println("/**");
+            out.println(" * Reads and writes {@link " + recordName + "} component by component.");
+            out.println(" */");
+            out.println("public final class " + codecName + " implements PacketFormat<" + recordName + "> {");
+            out.println("    public static final " + codecName + " INSTANCE = new " + codecName + "();");
+            out.println();
+            for (var constant : constants) {
+                out.println("    private static final PacketFormats." + CONSTANTS.get(constant) + ";");
+            }
+            if (!constants.isEmpty()) {
+                out.println();
+            }
+            out.println("    private " + codecName + "() {");
+            out.println("    }");
+            out.println();
+
+            out.println("    @Override");
+            out.println("    public " + recordName + " read(ByteBuffer buf) {");
+            if (absolute) {
+                claim(out, fixedSize, "BufferUnderflowException");
+                var reads = new ArrayList<String>();
+                var offset = 0;
+                for (var field : fields) {
+                    reads.add(field.readAt(offset));
+                    offset += field.size();
+                }
+                out.println("        return new " + recordName + "(");
+                out.println("            " + String.join(",\n            ", reads));
+                out.println("        );");
+            } else {
+                out.println("        return new " + recordName + "(");
+                out.println("            " + String.join(",\n            ", fields.stream().map(Field::read).toList()));
+                out.println("        );");
+            }
+            out.println("    }");
+            out.println();
+
+            out.println("    @Override");
+            out.println("    public void write(ByteBuffer buf, " + recordName + " value) {");
+            if (absolute) {
+                claim(out, fixedSize, "BufferOverflowException");
+                var offset = 0;
+                for (var field : fields) {
+                    out.println("        " + field.writeAt(offset) + ";");
+                    offset += field.size();
+                }
+            } else {
+                for (var field : fields) {
+                    out.println("        " + field.write() + ";");
+                }
+            }
+            out.println("    }");
+            out.println();
+
+            out.println("    @Override");
+            out.println("    public int length(" + recordName + " value) {");
+            if (fixedSize >= 0) {
+                out.println("        return " + fixedSize + ";");
+            } else {
+                out.println("        return " + String.join("\n            + ", fields.stream().map(Field::length).toList()) + ";");
+            }
+            out.println("    }");
+            out.println();
+
+            out.println("    @Override");
+            out.println("    public void skip(ByteBuffer buf) {");
+            if (absolute) {
+                claim(out, fixedSize, "BufferUnderflowException");
+            } else {
+                for (var field : fields) {
+                    out.println("        " + field.skip() + ";");
+                }
+            }
+            out.println("    }");
+            out.println();
+
+            if (fixedSize >= 0) {
+                out.println("    @Override");
+                out.println("    public int fixedSize() {");
+                out.println("        return " + fixedSize + ";");
+                out.println("    }");
+                out.println();
+            }
+
+            out.println("    @Override");
+            out.println("    public String generateJavaType() {");
+            out.println("        return \"" + simpleName + "\";");
+            out.println("    }");
+            out.println("}");
+        }
+    }
+
+    /**
+     * Writes the start of a method moving past a codec of a fixed size with one bounds check, leaving where the value
+     * starts in {@code at}.
+     */
+    private static void claim(PrintWriter out, int size, String exception) {
+        out.println("        var at = buf.position();");
+        out.println("        if (buf.remaining() < " + size + ") {");
+        out.println("            throw new " + exception + "();");
+        out.println("        }");
+        out.println("        buf.position(at + " + size + ");");
+    }
+
+    private void writePacket(
+        TypeElement record,
+        String packageName,
+        String recordName,
+        String simpleName,
+        int packetId,
+        List<Field> fields
+    ) throws IOException {
+        var packetName = simpleName + "Packet";
+        var codecName = simpleName + "Codec";
+
+        var file = this.processingEnv.getFiler().createSourceFile(qualify(packageName, packetName), record);
+        try (var out = new PrintWriter(file.openWriter())) {
+            header(out, packageName);
+            out.println("import dev.akarah.format.Packet;");
+            out.println("import dev.akarah.protocol.PacketSpecification;");
+            out.println();
+            out.println("/**");
+            out.println(" * The packet carrying a {@link " + recordName + "}, with ID " + packetId + ".");
+            out.println(" * Register it with {@code new " + packetName + "(null)}.");
+            out.println(" */");
+            out.println("public final class " + packetName + " extends Packet<" + recordName + ", " + packetName + "> {");
+            out.println("    public static final PacketSpecification<" + recordName + "> SPECIFICATION = PacketSpecification");
+            out.println("        .ofId(" + packetId + ")");
+            out.println("        .withArguments(" + codecName + ".INSTANCE);");
+            out.println();
+            out.println("    public final " + recordName + " data;");
+            out.println();
+            out.println("    public " + packetName + "(" + recordName + " data) {");
+            out.println("        this.data = data;");
+            out.println("    }");
+            out.println();
+
+            var parameters = new ArrayList<String>();
+            for (var component : record.getRecordComponents()) {
+                parameters.add(component.asType() + " " + component.getSimpleName());
+            }
+            out.println("    public static " + packetName + " of(" + String.join(", ", parameters) + ") {");
+            out.println("        return new " + packetName + "(new " + recordName + "("
+                + String.join(", ", fields.stream().map(Field::name).toList()) + "));");
+            out.println("    }");
+            out.println();
+
+            out.println("    @Override");
+            out.println("    public PacketSpecification<" + recordName + "> specification() {");
+            out.println("        return SPECIFICATION;");
+            out.println("    }");
+            out.println();
+            out.println("    @Override");
+            out.println("    public " + packetName + " fromData(" + recordName + " formattedData) {");
+            out.println("        return new " + packetName + "(formattedData);");
+            out.println("    }");
+            out.println();
+            out.println("    @Override");
+            out.println("    public " + recordName + " toFormat() {");
+            out.println("        return this.data;");
+            out.println("    }");
+            out.println("}");
+        }
+    }
+
+
+    private static void header(PrintWriter out, String packageName) {
+        if (!packageName.isEmpty()) {
+            out.println("package " + packageName + ";");
+            out.println();
+        }
+    }
+
+    private static String qualify(String packageName, String name) {
+        return packageName.isEmpty() ? name : packageName + "." + name;
+    }
+
+    private static boolean isAnnotation(AnnotationMirror mirror, String name) {
+        var type = (TypeElement) mirror.getAnnotationType().asElement();
+        return type.getQualifiedName().contentEquals(name);
+    }
+
+    private static boolean isString(TypeMirror type) {
+        return type.toString().equals("java.lang.String");
+    }
+
+    private void error(Element element, String message) {
+        this.processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+
+    /**
+     * @param constants The codec constants the field's code refers to.
+     * @param size The size of the field in bytes, or -1 if it varies.
+     * @param bufferSuffix The suffix of the {@code ByteBuffer} methods reading the field, or null if it isn't a primitive.
+     * @param value The expression of the field's value in {@code write}.
+     */
+    private record Field(
+        String name,
+        String read,
+        String write,
+        String length,
+        String skip,
+        Set<String> constants,
+        int size,
+        String bufferSuffix,
+        String value
+    ) {
+        /**
+         * @return How to read the field at an absolute offset from {@code at}, for codecs of a fixed size.
+         */
+        String readAt(int offset) {
+            return "buf.get" + this.bufferSuffix + "(" + at(offset) + ")";
+        }
+
+        /**
+         * @return How to write the field at an absolute offset from {@code at}, for codecs of a fixed size.
+         */
+        String writeAt(int offset) {
+            return "buf.put" + this.bufferSuffix + "(" + at(offset) + ", " + this.value + ")";
+        }
+
+        private static String at(int offset) {
+            return offset == 0 ? "at" : "at + " + offset;
+        }
+    }
+}
@@ -1,2 +1,3 @@
 rootProject.name = "PacketProtocols"
 
+include("processor")
@@ -0,0 +1,15 @@
+package dev.akarah.bench;
+
+import dev.akarah.protocol.Protocol;
+
+public class BenchProtocol {
+    public static Protocol create(boolean compiled) {
+        var protocol = Protocol.empty()
+            .version(1)
+            .registerPacket(new PositionPacket(0, 0, 0, 0))
+            .registerPacket(new ChatPacket(null, null))
+            .registerPacket(new PayloadPacket(0, null))
+            .registerPacket(new TelemetryPacket(null));
+        return compiled ? protocol.withCompiledCodecs() : protocol;
+    }
+}
@@ -0,0 +1,36 @@
+package dev.akarah.bench;
+
+import dev.akarah.format.Packet;
+import dev.akarah.protocol.Argument;
+import dev.akarah.protocol.PacketSpecification;
+import org.javatuples.Pair;
+
+public class ChatPacket extends Packet<Pair<String, String>, ChatPacket> {
+    public final String username;
+    public final String message;
+
+    public ChatPacket(String username, String message) {
+        this.username = username;
+        this.message = message;
+    }
+
+    @Override
+    public PacketSpecification<Pair<String, String>> specification() {
+        return PacketSpecification
+            .ofId(2)
+            .withArguments(
+                Argument.string(),
+                Argument.string()
+            );
+    }
+
+    @Override
+    public ChatPacket fromData(Pair<String, String> formattedData) {
+        return new ChatPacket(formattedData.getValue0(), formattedData.getValue1());
+    }
+
+    @Override
+    public Pair<String, String> toFormat() {
+        return new Pair<>(this.username, this.message);
+    }
+}
@@ -0,0 +1,91 @@
+package dev.akarah.bench;
+
+import dev.akarah.format.PacketFormat;
+import dev.akarah.protocol.Argument;
+import org.javatuples.Pair;
+import org.javatuples.Quartet;
+import org.javatuples.Triplet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.Optional;
+
+/**
+ * Reads, skips, writes and measures a representative value with each of the formats in {@code PacketFormats}.
+ */
+@State(Scope.Thread)
+public class FormatBenchmark {
+    @Param({
+        "singleByte", "integer", "longInteger", "floatingPoint", "doublePrecision", "varInt", "string",
+        "arrayOf", "intArray", "optionalOf", "terminalOptionalOf", "pair", "triple", "quartet", "newProtocol"
+    })
+    public String format;
+
+    private PacketFormat<Object> packetFormat;
+    private Object value;
+    private ByteBuffer writeBuffer;
+    private ByteBuffer readBuffer;
+
+    @Setup
+    public void setup() {
+        switch (this.format) {
+            case "singleByte" -> this.use(Argument.singleByte(), (byte) 42);
+            case "integer" -> this.use(Argument.integer(), 123456);
+            case "longInteger" -> this.use(Argument.longInteger(), 123456789012L);
+            case "floatingPoint" -> this.use(Argument.floatingPoint(), 1.5f);
+            case "doublePrecision" -> this.use(Argument.doublePrecision(), 1.5);
+            case "varInt" -> this.use(Argument.varInt(), 123456789L);
+            case "string" -> this.use(Argument.string(), "The quick brown fox jumps over the lazy dog");
+            case "arrayOf" -> this.use(Argument.arrayOf(Argument.integer()), new Integer[]{1, 2, 3, 4, 5, 6, 7, 8});
+            case "intArray" -> this.use(Argument.intArray(Argument.integer()), new int[]{1, 2, 3, 4, 5, 6, 7, 8});
+            case "optionalOf" -> this.use(Argument.optionalOf(Argument.string()), Optional.of("present"));
+            case "terminalOptionalOf" -> this.use(Argument.terminalOptionalOf(Argument.string()), Optional.of("present"));
+            case "pair" -> this.use(Argument.pair(Argument.integer(), Argument.string()), new Pair<>(1, "pair"));
+            case "triple" -> this.use(
+                Argument.triple(Argument.integer(), Argument.integer(), Argument.integer()),
+                new Triplet<>(1, 2, 3));
+            case "quartet" -> this.use(
+                new dev.akarah.format.PacketFormats.QuartetFormat<>(
+                    Argument.doublePrecision(), Argument.doublePrecision(), Argument.doublePrecision(), Argument.integer()),
+                new Quartet<>(1.0, 2.0, 3.0, 4));
+            case "newProtocol" -> this.use(new dev.akarah.format.PacketFormats.NewProtocol<>(Argument.integer()), 7);
+            default -> throw new IllegalArgumentException(this.format);
+        }
+
+        this.writeBuffer = ByteBuffer.allocate(1024);
+        this.readBuffer = ByteBuffer.allocate(this.packetFormat.length(this.value));
+        this.packetFormat.write(this.readBuffer, this.value);
+        this.readBuffer.flip();
+    }
+
+    private <T> void use(PacketFormat<T> format, T value) {
+        this.packetFormat = (PacketFormat<Object>) format;
+        this.value = value;
+    }
+
+    @Benchmark
+    public ByteBuffer write() {
+        this.packetFormat.write(this.writeBuffer.clear(), this.value);
+        return this.writeBuffer;
+    }
+
+    @Benchmark
+    public Object read() {
+        return this.packetFormat.read(this.readBuffer.rewind());
+    }
+
+    @Benchmark
+    public int skip() {
+        this.packetFormat.skip(this.readBuffer.rewind());
+        return this.readBuffer.position();
+    }
+
+    @Benchmark
+    public int length() {
+        return this.packetFormat.length(this.value);
+    }
+}
@@ -0,0 +1,99 @@
+package dev.akarah.bench;
+
+import dev.akarah.networking.ProtocolClient;
+import dev.akarah.networking.ProtocolServer;
+import dev.akarah.networking.ServerConnection;
+import dev.akarah.networking.ServerTransport;
+import dev.akarah.protocol.Protocol;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends one packet on each of {@code connections} clients to a server over loopback, which echoes it back,
+ * and waits until every client has decoded its reply.
+ */
+@State(Scope.Benchmark)
+public class LoopbackBenchmark {
+    @Param({"blocking", "selector"})
+    public String transport;
+
+    @Param({"16", "1024", "16384"})
+    public int payloadSize;
+
+    @Param({"1", "16"})
+    public int connections;
+
+    private final AtomicLong received = new AtomicLong();
+    private long expected;
+    private ProtocolClient[] clients;
+    private PayloadPacket[] packets;
+
+    @Setup
+    public void setup() throws Exception {
+        var protocol = BenchProtocol.create(false);
+        var port = freePort();
+        var server = ProtocolServer.withProtocol(protocol)
+            .withPort(port)
+            .withTransport(this.transport.equals("selector") ? ServerTransport.selector(2) : ServerTransport.blocking())
+            .withTcpNoDelay(true)
+            .withPacketHandler(PayloadPacket.class, ServerConnection::sendPacket);
+        Thread.ofPlatform().daemon(true).start(server::start);
+
+        this.clients = new ProtocolClient[this.connections];
+        this.packets = new PayloadPacket[this.connections];
+        for (int i = 0; i < this.connections; i++) {
+            this.clients[i] = connect(protocol, port, this.received);
+            this.packets[i] = new PayloadPacket(i, new byte[this.payloadSize]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        for (var client : this.clients) {
+            client.socket.close();
+        }
+    }
+
+    @Benchmark
+    public long sendAndAwait() {
+        this.expected += this.connections;
+        for (int i = 0; i < this.connections; i++) {
+            this.clients[i].sendPacket(this.packets[i]);
+        }
+        while (this.received.get() < this.expected) {
+            Thread.onSpinWait();
+        }
+        return this.expected;
+    }
+
+    private static ProtocolClient connect(Protocol protocol, int port, AtomicLong received) throws InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return ProtocolClient.of(protocol, new InetSocketAddress("localhost", port))
+                    .withTcpNoDelay(true)
+                    .withPacketHandler(PayloadPacket.class, (client, packet) -> received.incrementAndGet())
+                    .start();
+            } catch (RuntimeException e) {
+                if (attempt == 50) {
+                    throw e;
+                }
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (var socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
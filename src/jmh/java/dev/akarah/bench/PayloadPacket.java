@@ -0,0 +1,39 @@
+package dev.akarah.bench;
+
+import dev.akarah.format.Packet;
+import dev.akarah.protocol.Argument;
+import dev.akarah.protocol.PacketSpecification;
+import org.javatuples.Pair;
+
+/**
+ * A packet of arbitrary size, tagged with the index of the connection that sent it.
+ */
+public class PayloadPacket extends Packet<Pair<Integer, byte[]>, PayloadPacket> {
+    public final int sender;
+    public final byte[] payload;
+
+    public PayloadPacket(int sender, byte[] payload) {
+        this.sender = sender;
+        this.payload = payload;
+    }
+
+    @Override
+    public PacketSpecification<Pair<Integer, byte[]>> specification() {
+        return PacketSpecification
+            .ofId(3)
+            .withArguments(
+                Argument.integer(),
+                Argument.byteArray(Argument.singleByte())
+            );
+    }
+
+    @Override
+    public PayloadPacket fromData(Pair<Integer, byte[]> formattedData) {
+        return new PayloadPacket(formattedData.getValue0(), formattedData.getValue1());
+    }
+
+    @Override
+    public Pair<Integer, byte[]> toFormat() {
+        return new Pair<>(this.sender, this.payload);
+    }
+}
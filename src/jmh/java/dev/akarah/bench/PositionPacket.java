@@ -0,0 +1,47 @@
+package dev.akarah.bench;
+
+import dev.akarah.format.Packet;
+import dev.akarah.protocol.Argument;
+import dev.akarah.protocol.PacketSpecification;
+import org.javatuples.Quartet;
+
+public class PositionPacket extends Packet<Quartet<Double, Double, Double, Integer>, PositionPacket> {
+    public final double x;
+    public final double y;
+    public final double z;
+    public final int entity;
+
+    public PositionPacket(double x, double y, double z, int entity) {
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        this.entity = entity;
+    }
+
+    @Override
+    public PacketSpecification<Quartet<Double, Double, Double, Integer>> specification() {
+        return PacketSpecification
+            .ofId(1)
+            .withArguments(
+                Argument.doublePrecision(),
+                Argument.doublePrecision(),
+                Argument.doublePrecision(),
+                Argument.integer()
+            );
+    }
+
+    @Override
+    public PositionPacket fromData(Quartet<Double, Double, Double, Integer> formattedData) {
+        return new PositionPacket(
+            formattedData.getValue0(),
+            formattedData.getValue1(),
+            formattedData.getValue2(),
+            formattedData.getValue3()
+        );
+    }
+
+    @Override
+    public Quartet<Double, Double, Double, Integer> toFormat() {
+        return new Quartet<>(this.x, this.y, this.z, this.entity);
+    }
+}
@@ -0,0 +1,79 @@
+package dev.akarah.bench;
+
+import dev.akarah.format.Packet;
+import dev.akarah.protocol.Protocol;
+import dev.akarah.util.BufferPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes and decodes whole packets through {@code PacketSpecification} and {@code Protocol}, and reads one argument
+ * through a {@code PacketView}.
+ * {@code telemetry} has the same fields as {@code position}, through a codec generated by the annotation processor.
+ */
+@State(Scope.Thread)
+public class SpecificationBenchmark {
+    @Param({"interpreted", "compiled"})
+    public String codec;
+
+    @Param({"position", "chat", "telemetry"})
+    public String packet;
+
+    private Protocol protocol;
+    private Packet<?, ?> value;
+    private int packetId;
+    private ByteBuffer encoded;
+    private final BufferPool pool = BufferPool.heap();
+
+    @Setup
+    public void setup() {
+        this.protocol = BenchProtocol.create(this.codec.equals("compiled"));
+        this.value = switch (this.packet) {
+            case "position" -> new PositionPacket(12.5, 64.0, -3.25, 1234);
+            case "chat" -> new ChatPacket("Guest", "Hello there, how is everyone doing today?");
+            case "telemetry" -> TelemetryPacket.of(12.5, 64.0, -3.25, 1234);
+            default -> throw new IllegalArgumentException(this.packet);
+        };
+        this.packetId = this.value.specification().getPacketId();
+        this.encoded = this.encode();
+    }
+
+    private ByteBuffer encode() {
+        var spec = this.protocol.specificationFor(this.value);
+        var buf = ByteBuffer.allocate(spec.getFormat().lengthFromObject(this.value.toFormat()));
+        spec.getFormat().writeFromObject(buf, this.value.toFormat());
+        return buf.flip();
+    }
+
+    @Benchmark
+    public int encodePooled() {
+        var spec = (dev.akarah.protocol.PacketSpecification<Object>) this.protocol.specificationFor(this.value);
+        var buf = spec.encode(this.value.toFormat(), this.pool);
+        var size = buf.remaining();
+        this.pool.release(buf);
+        return size;
+    }
+
+    @Benchmark
+    public Object decode() {
+        return this.protocol.getSpecification(this.packetId).decode(this.encoded.rewind());
+    }
+
+    @Benchmark
+    public Packet<?, ?> readPacket() {
+        return this.protocol.readPacket(this.packetId, this.encoded.rewind());
+    }
+
+    /**
+     * Reads only the first argument through a view, as a router looking at one field would.
+     */
+    @Benchmark
+    public Object readViewFirstArgument() {
+        return this.protocol.readView(this.packetId, this.encoded.rewind()).get(0);
+    }
+}
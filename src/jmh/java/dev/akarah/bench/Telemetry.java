@@ -0,0 +1,10 @@
+package dev.akarah.bench;
+
+import dev.akarah.format.PacketRecord;
+
+/**
+ * The same fields as {@link PositionPacket}, with the packet and codec generated by the annotation processor.
+ */
+@PacketRecord(id = 4)
+public record Telemetry(double x, double y, double z, int entity) {
+}
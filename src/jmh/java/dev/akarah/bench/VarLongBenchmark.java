@@ -0,0 +1,56 @@
+package dev.akarah.bench;
+
+import dev.akarah.format.LongFormat;
+import dev.akarah.protocol.Argument;
+import dev.akarah.util.VarIntStreamUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+
+/**
+ * VarLong encoding as used for frame prefixes ({@code VarIntStreamUtils}) and as a field ({@code Argument.varInt()}).
+ */
+@State(Scope.Thread)
+public class VarLongBenchmark {
+    @Param({"1", "300", "2097151", "9223372036854775807"})
+    public long value;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(16);
+    private final LongFormat format = Argument.varInt();
+
+    @Setup
+    public void setup() {
+        VarIntStreamUtils.writeVarLong(this.buffer, this.value);
+    }
+
+    @Benchmark
+    public ByteBuffer writePrefix() {
+        VarIntStreamUtils.writeVarLong(this.buffer.clear(), this.value);
+        return this.buffer;
+    }
+
+    @Benchmark
+    public long readPrefix() {
+        return VarIntStreamUtils.getVarLong(this.buffer, 0);
+    }
+
+    @Benchmark
+    public int prefixSize() {
+        return VarIntStreamUtils.varLongSize(this.value);
+    }
+
+    @Benchmark
+    public ByteBuffer writeField() {
+        this.format.writeLong(this.buffer.clear(), this.value);
+        return this.buffer;
+    }
+
+    @Benchmark
+    public long readField() {
+        return this.format.readLong(this.buffer.rewind());
+    }
+}
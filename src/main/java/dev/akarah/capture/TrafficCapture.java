@@ -0,0 +1,313 @@
+package dev.akarah.capture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records the frames connections send and receive to a directory of memory-mapped segment files, to be played back
+ * later with {@link TrafficReplay}. Give it to {@code ProtocolServer#withCapture} or {@code ProtocolClient#withCapture}.
+ * <p>
+ * Recording a frame reserves room in the current segment with a single atomic add, then copies the frame into it, so
+ * connection threads never wait for a lock or the disk. A background thread keeps the next segment mapped ahead of
+ * time. Frames that arrive while a full segment is being swapped for the next one wait a moment for the swap, and are
+ * dropped rather than waited for any longer if the next segment isn't mapped yet, counted in {@link #droppedFrames()}.
+ * <p>
+ * Each segment starts with a header of {@link #MAGIC}, {@link #VERSION} and the segment's place in the capture, and is
+ * followed by records of:
+ * <ul>
+ *     <li>the length of the rest of the record, as an {@code int}, or 0 where the records end,</li>
+ *     <li>the nanoseconds since the capture was opened, as a {@code long},</li>
+ *     <li>the connection's ID, as a {@code long},</li>
+ *     <li>the {@link Direction}'s ordinal, as a {@code byte},</li>
+ *     <li>the packet ID, as an {@code int},</li>
+ *     <li>and the frame's body, uncompressed.</li>
+ * </ul>
+ * Packets streamed with {@code withArrayStream} are never whole in memory, and aren't recorded.
+ */
+public final class TrafficCapture implements AutoCloseable {
+    public static final int MAGIC = 0x50504341;
+    public static final int VERSION = 1;
+    public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+
+    static final int SEGMENT_HEADER_SIZE = 12;
+    static final int RECORD_HEADER_SIZE = 25;
+    static final String SEGMENT_SUFFIX = ".segment";
+    private static final int SWAP_SPINS = 1 << 10;
+
+    /**
+     * Which way a frame went, from the side of the connection that recorded it.
+     */
+    public enum Direction {
+        INBOUND,
+        OUTBOUND
+    }
+
+    private static final class Segment {
+        final Path path;
+        final MappedByteBuffer buffer;
+        final AtomicInteger reserved = new AtomicInteger(SEGMENT_HEADER_SIZE);
+
+        Segment(Path path, MappedByteBuffer buffer) {
+            this.path = path;
+            this.buffer = buffer;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final long startNanos = System.nanoTime();
+    private final AtomicReference<Segment> current = new AtomicReference<>();
+    private final AtomicReference<Segment> spare = new AtomicReference<>();
+    private final AtomicInteger nextFile = new AtomicInteger();
+    private final AtomicInteger nextSequence = new AtomicInteger();
+    private final AtomicLong nextConnectionId = new AtomicLong();
+    private final AtomicInteger writers = new AtomicInteger();
+    private final LongAdder recorded = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final Thread mapper;
+    private volatile boolean rollPending;
+    private volatile boolean closed;
+
+    private TrafficCapture(Path directory, int segmentSize) throws IOException {
+        if(segmentSize < SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE || segmentSize > 1 << 30) {
+            throw new IllegalArgumentException("segment size must be between 37 bytes and 1 GiB, got " + segmentSize);
+        }
+        this.directory = Files.createDirectories(directory);
+        this.segmentSize = segmentSize;
+        this.current.set(this.install(this.map()));
+        this.mapper = Thread.ofPlatform().daemon().name("traffic-capture-mapper").start(this::mapAhead);
+    }
+
+    /**
+     * @param directory The directory to write segments to, created if it doesn't exist. It should be empty, as
+     *                  replaying it plays back every segment in it.
+     * @return A capture with segments of {@link #DEFAULT_SEGMENT_SIZE}.
+     */
+    public static TrafficCapture open(Path directory) {
+        return open(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param directory The directory to write segments to, created if it doesn't exist.
+     * @param segmentSize The size of each segment file in bytes, up to 1 GiB. Frames larger than a segment are
+     *                    dropped.
+     * @return The capture.
+     */
+    public static TrafficCapture open(Path directory, int segmentSize) {
+        try {
+            return new TrafficCapture(directory, segmentSize);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return A new ID to record a connection's frames under.
+     */
+    public long nextConnectionId() {
+        return this.nextConnectionId.getAndIncrement();
+    }
+
+    /**
+     * Records a frame, or drops it if there is no room for it right now. This never blocks.
+     * @param connectionId The ID of the connection, from {@link #nextConnectionId()}.
+     * @param direction Whether the frame was received or sent.
+     * @param packetId The ID of the frame's packet.
+     * @param buffer The buffer holding the frame's uncompressed body. Its position and limit aren't changed.
+     * @param offset Where the body starts in the buffer.
+     * @param length The length of the body.
+     * @return Whether the frame was recorded.
+     */
+    public boolean record(long connectionId, Direction direction, int packetId, ByteBuffer buffer, int offset, int length) {
+        var nanos = System.nanoTime() - this.startNanos;
+        var size = RECORD_HEADER_SIZE + length;
+        this.writers.incrementAndGet();
+        try {
+            if(this.closed || size > this.segmentSize - SEGMENT_HEADER_SIZE) {
+                this.dropped.increment();
+                return false;
+            }
+            Segment segment;
+            int start;
+            while(true) {
+                segment = this.current.get();
+                start = segment.reserved.getAndAdd(size);
+                if(start + size <= this.segmentSize) {
+                    break;
+                }
+                if(start <= this.segmentSize) {
+                    // Only the frame that crosses the end of a segment swaps it, so a segment is only ever swapped once.
+                    if(!this.roll()) {
+                        this.dropped.increment();
+                        return false;
+                    }
+                } else if(!this.awaitSwap(segment)) {
+                    this.dropped.increment();
+                    return false;
+                }
+            }
+
+            var out = segment.buffer;
+            out.putLong(start + 4, nanos);
+            out.putLong(start + 12, connectionId);
+            out.put(start + 20, (byte) direction.ordinal());
+            out.putInt(start + 21, packetId);
+            out.put(start + RECORD_HEADER_SIZE, buffer, offset, length);
+            // The length goes last, so a record that was never finished reads as the end of the segment.
+            out.putInt(start, size - 4);
+            this.recorded.increment();
+            return true;
+        } finally {
+            this.writers.decrementAndGet();
+        }
+    }
+
+    /**
+     * Records a frame, see {@link #record(long, Direction, int, ByteBuffer, int, int)}.
+     * @param body The frame's uncompressed body, from its position to its limit.
+     */
+    public boolean record(long connectionId, Direction direction, int packetId, ByteBuffer body) {
+        return this.record(connectionId, direction, packetId, body, body.position(), body.remaining());
+    }
+
+    /**
+     * @return How many frames were recorded.
+     */
+    public long recordedFrames() {
+        return this.recorded.sum();
+    }
+
+    /**
+     * @return How many frames were dropped, because they arrived while segments were being swapped, didn't fit in a
+     * segment, or arrived after closing.
+     */
+    public long droppedFrames() {
+        return this.dropped.sum();
+    }
+
+    /**
+     * @return The directory the segments are written to.
+     */
+    public Path directory() {
+        return this.directory;
+    }
+
+    /**
+     * Stops recording, waits for frames being recorded to finish, and writes the segments out to disk.
+     */
+    @Override
+    public void close() {
+        if(this.closed) {
+            return;
+        }
+        this.closed = true;
+        LockSupport.unpark(this.mapper);
+        try {
+            this.mapper.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        while(this.writers.get() > 0) {
+            Thread.onSpinWait();
+        }
+        this.current.get().buffer.force();
+        var spare = this.spare.getAndSet(null);
+        if(spare != null) {
+            try {
+                Files.deleteIfExists(spare.path);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Swaps the full segment for the spare one. If the mapper hasn't caught up, mapping a segment here would make the
+     * connection wait for the disk, so the mapper is left to swap it once it has mapped one. The full segment is left
+     * to the operating system to write out.
+     * @return Whether the segment was swapped.
+     */
+    private boolean roll() {
+        var next = this.spare.getAndSet(null);
+        if(next == null) {
+            this.rollPending = true;
+            LockSupport.unpark(this.mapper);
+            return false;
+        }
+        this.current.set(this.install(next));
+        LockSupport.unpark(this.mapper);
+        return true;
+    }
+
+    /**
+     * Spins for a moment while another thread swaps a full segment, which only takes long if the mapper hasn't caught
+     * up and is still mapping the next segment.
+     * @return Whether the segment was swapped.
+     */
+    private boolean awaitSwap(Segment full) {
+        for(int i = 0; i < SWAP_SPINS; i++) {
+            if(this.current.get() != full) {
+                return true;
+            }
+            Thread.onSpinWait();
+        }
+        return this.current.get() != full;
+    }
+
+    private void mapAhead() {
+        while(!this.closed) {
+            try {
+                if(this.rollPending) {
+                    var next = this.spare.getAndSet(null);
+                    if(next == null) {
+                        next = this.map();
+                    }
+                    // Cleared before the swap, as the next segment can fill up and need swapping as soon as it's current.
+                    this.rollPending = false;
+                    this.current.set(this.install(next));
+                }
+                if(this.spare.get() == null) {
+                    this.spare.set(this.map());
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+            LockSupport.park(this);
+        }
+    }
+
+    private Segment map() throws IOException {
+        var path = this.directory.resolve(String.format("capture-%06d%s", this.nextFile.getAndIncrement(), SEGMENT_SUFFIX));
+        try(var channel = FileChannel.open(
+            path,
+            StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE
+        )) {
+            var buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, this.segmentSize);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(8, -1);
+            return new Segment(path, buffer);
+        }
+    }
+
+    /**
+     * Gives a segment its place in the capture. Segments are mapped ahead in any order, so this is what orders them.
+     */
+    private Segment install(Segment segment) {
+        segment.buffer.putInt(8, this.nextSequence.getAndIncrement());
+        return segment;
+    }
+}
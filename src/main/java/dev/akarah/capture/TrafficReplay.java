@@ -0,0 +1,340 @@
+package dev.akarah.capture;
+
+import dev.akarah.format.CodecContext;
+import dev.akarah.protocol.Protocol;
+import dev.akarah.util.VarIntStreamUtils;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Plays back the frames recorded by a {@link TrafficCapture}, either decoding them through a {@link Protocol} or
+ * sending them to a server over fresh connections, at the speed they were recorded or as fast as possible. This is
+ * meant for benchmarking codec and server changes on real traffic.
+ * <p>
+ * Frames are read straight from the memory-mapped segments, one segment at a time, so captures can be much larger than
+ * the heap. Only frames of one {@link TrafficCapture.Direction} are played back, {@code INBOUND} by default, which for
+ * a server's capture is what its clients sent.
+ * <p>
+ * Interned strings are played back with a {@link CodecContext} per recorded connection, so they decode the same as
+ * they did when recorded, as long as no frames of the connection were dropped.
+ */
+public final class TrafficReplay {
+    /**
+     * @param nanos When the frame was recorded, in nanoseconds since the capture was opened.
+     * @param connectionId The connection the frame was recorded on.
+     * @param direction Whether the frame was received or sent.
+     * @param packetId The ID of the frame's packet.
+     * @param body The frame's uncompressed body, a read-only view into the segment.
+     */
+    public record Frame(long nanos, long connectionId, TrafficCapture.Direction direction, int packetId, ByteBuffer body) {
+    }
+
+    /**
+     * @param frames How many frames were played back.
+     * @param bytes The total size of their bodies.
+     * @param failures How many frames couldn't be decoded or sent.
+     * @param elapsedNanos How long playing them back took.
+     */
+    public record Result(long frames, long bytes, long failures, long elapsedNanos) {
+        public double framesPerSecond() {
+            return this.frames * 1e9 / Math.max(1, this.elapsedNanos);
+        }
+
+        @Override
+        public String toString() {
+            return this.frames + " frames, " + this.bytes + " bytes, " + this.failures + " failures in "
+                + TimeUnit.NANOSECONDS.toMillis(this.elapsedNanos) + " ms (" + Math.round(this.framesPerSecond()) + " frames/s)";
+        }
+    }
+
+    private static final int SEND_BUFFER_SIZE = 1 << 16;
+    private static final long SPIN_NANOS = 50_000;
+
+    private final List<Path> segments;
+    private TrafficCapture.Direction direction = TrafficCapture.Direction.INBOUND;
+    private double speed;
+
+    private TrafficReplay(List<Path> segments) {
+        this.segments = segments;
+    }
+
+    /**
+     * @param directory The directory a {@link TrafficCapture} wrote to. It must be closed first.
+     * @return A replay of every segment in the directory, at maximum speed.
+     */
+    public static TrafficReplay open(Path directory) {
+        try(var files = Files.list(directory)) {
+            var segments = new ArrayList<Map.Entry<Integer, Path>>();
+            for(var path : (Iterable<Path>) files::iterator) {
+                if(!path.getFileName().toString().endsWith(TrafficCapture.SEGMENT_SUFFIX)) {
+                    continue;
+                }
+                var sequence = readSequence(path);
+                if(sequence >= 0) {
+                    segments.add(Map.entry(sequence, path));
+                }
+            }
+            segments.sort(Map.Entry.comparingByKey(Comparator.naturalOrder()));
+            return new TrafficReplay(segments.stream().map(Map.Entry::getValue).toList());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @param direction Which frames to play back.
+     * @return The same replay with the direction set.
+     */
+    public TrafficReplay withDirection(TrafficCapture.Direction direction) {
+        this.direction = direction;
+        return this;
+    }
+
+    /**
+     * @return The same replay, waiting between frames as long as was recorded.
+     */
+    public TrafficReplay atRecordedSpeed() {
+        return this.atSpeed(1);
+    }
+
+    /**
+     * @param multiplier How much faster than recorded to play back, like 2 for twice as fast.
+     * @return The same replay with the speed set.
+     */
+    public TrafficReplay atSpeed(double multiplier) {
+        if(!(multiplier > 0)) {
+            throw new IllegalArgumentException("speed must be positive, got " + multiplier);
+        }
+        this.speed = multiplier;
+        return this;
+    }
+
+    /**
+     * @return The same replay, never waiting between frames. This is the default.
+     */
+    public TrafficReplay atMaximumSpeed() {
+        this.speed = 0;
+        return this;
+    }
+
+    /**
+     * Hands every frame of the replay's direction to an action, in the order they were recorded, waiting between them
+     * unless playing back at maximum speed.
+     * @param action Given each frame. The frame's body is only valid until the action returns.
+     */
+    public void forEach(Consumer<Frame> action) {
+        var replayStart = System.nanoTime();
+        var firstNanos = -1L;
+        for(var path : this.segments) {
+            var segment = map(path);
+            var position = TrafficCapture.SEGMENT_HEADER_SIZE;
+            while(position + 4 <= segment.limit()) {
+                var length = segment.getInt(position);
+                if(length <= 0) {
+                    break;
+                }
+                var nanos = segment.getLong(position + 4);
+                var direction = TrafficCapture.Direction.values()[segment.get(position + 20)];
+                if(direction == this.direction) {
+                    if(firstNanos < 0) {
+                        firstNanos = nanos;
+                    }
+                    if(this.speed > 0) {
+                        waitUntil(replayStart + (long) ((nanos - firstNanos) / this.speed));
+                    }
+                    var bodyStart = position + TrafficCapture.RECORD_HEADER_SIZE;
+                    action.accept(new Frame(
+                        nanos,
+                        segment.getLong(position + 12),
+                        direction,
+                        segment.getInt(position + 21),
+                        segment.slice(bodyStart, position + 4 + length - bodyStart).asReadOnlyBuffer()
+                    ));
+                }
+                position += 4 + length;
+            }
+        }
+    }
+
+    /**
+     * Decodes every frame with a protocol, without any sockets, to measure the codecs alone.
+     * @param protocol The protocol to decode with.
+     * @return How many frames were decoded, and how long it took.
+     */
+    public Result decode(Protocol protocol) {
+        protocol.freeze();
+        var contexts = new HashMap<Long, CodecContext>();
+        var counts = new long[3];
+        var start = System.nanoTime();
+        var previous = CodecContext.current();
+        try {
+            this.forEach(frame -> {
+                CodecContext.bind(contexts.computeIfAbsent(frame.connectionId(), id -> CodecContext.inbound()));
+                counts[0]++;
+                counts[1] += frame.body().remaining();
+                try {
+                    protocol.readPacket(frame.packetId(), frame.body());
+                } catch (RuntimeException e) {
+                    counts[2]++;
+                }
+            });
+        } finally {
+            CodecContext.bind(previous);
+        }
+        return new Result(counts[0], counts[1], counts[2], System.nanoTime() - start);
+    }
+
+    /**
+     * Sends every frame to a server, over one new connection per recorded connection, framed for a protocol. Whatever
+     * the server sends back is read and dropped. Frames are sent uncompressed, even if the protocol compresses.
+     * @param protocol The protocol the server uses, which decides how frames are framed.
+     * @param address The address of the server.
+     * @return How many frames were sent, and how long sending them took.
+     */
+    public Result replay(Protocol protocol, SocketAddress address) {
+        var flagged = protocol.compression().isEnabled();
+        var connections = new HashMap<Long, Connection>();
+        var counts = new long[3];
+        var start = System.nanoTime();
+        try {
+            this.forEach(frame -> {
+                var connection = connections.computeIfAbsent(frame.connectionId(), id -> new Connection(address));
+                counts[0]++;
+                counts[1] += frame.body().remaining();
+                try {
+                    connection.send(frame.packetId(), frame.body(), flagged);
+                    if(this.speed > 0) {
+                        connection.flush();
+                    }
+                } catch (IOException e) {
+                    counts[2]++;
+                }
+            });
+            for(var connection : connections.values()) {
+                try {
+                    connection.flush();
+                } catch (IOException e) {
+                    counts[2]++;
+                }
+            }
+            return new Result(counts[0], counts[1], counts[2], System.nanoTime() - start);
+        } finally {
+            for(var connection : connections.values()) {
+                connection.close();
+            }
+        }
+    }
+
+    private static int readSequence(Path path) throws IOException {
+        try(var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            var header = ByteBuffer.allocate(TrafficCapture.SEGMENT_HEADER_SIZE);
+            while(header.hasRemaining() && channel.read(header) >= 0) {
+            }
+            header.flip();
+            if(header.remaining() < TrafficCapture.SEGMENT_HEADER_SIZE || header.getInt(0) != TrafficCapture.MAGIC) {
+                throw new IOException(path + " is not a capture segment");
+            }
+            if(header.getInt(4) != TrafficCapture.VERSION) {
+                throw new IOException(path + " has unsupported version " + header.getInt(4));
+            }
+            return header.getInt(8);
+        }
+    }
+
+    private static ByteBuffer map(Path path) {
+        try(var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void waitUntil(long deadline) {
+        long remaining;
+        while((remaining = deadline - System.nanoTime()) > 0) {
+            if(remaining > SPIN_NANOS * 2) {
+                LockSupport.parkNanos(remaining - SPIN_NANOS);
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    /**
+     * One replayed connection, batching frames into a buffer, with a virtual thread dropping whatever the server sends.
+     */
+    private static final class Connection {
+        private final SocketChannel channel;
+        private final ByteBuffer out = ByteBuffer.allocateDirect(SEND_BUFFER_SIZE);
+        private final Thread drain;
+
+        Connection(SocketAddress address) {
+            try {
+                this.channel = SocketChannel.open(address);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            this.drain = Thread.ofVirtual().start(() -> {
+                var in = ByteBuffer.allocate(SEND_BUFFER_SIZE);
+                try {
+                    while(this.channel.read(in.clear()) >= 0) {
+                    }
+                } catch (IOException ignored) {
+                    // The connection was closed, by either end.
+                }
+            });
+        }
+
+        void send(int packetId, ByteBuffer body, boolean flagged) throws IOException {
+            var frameLength = (long) VarIntStreamUtils.varLongSize(packetId) + body.remaining();
+            var header = flagged ? frameLength << 1 : frameLength;
+            if(this.out.remaining() < 20) {
+                this.flush();
+            }
+            VarIntStreamUtils.writeVarLong(this.out, header);
+            VarIntStreamUtils.writeVarLong(this.out, packetId);
+            if(body.remaining() > this.out.remaining()) {
+                this.flush();
+                while(body.hasRemaining()) {
+                    this.channel.write(body);
+                }
+                return;
+            }
+            this.out.put(body);
+        }
+
+        void flush() throws IOException {
+            this.out.flip();
+            while(this.out.hasRemaining()) {
+                this.channel.write(this.out);
+            }
+            this.out.clear();
+        }
+
+        void close() {
+            try {
+                this.channel.shutdownOutput();
+                // Give the server a moment to see the end of the stream and close its side.
+                this.drain.join(TimeUnit.SECONDS.toMillis(5));
+                this.channel.close();
+            } catch (IOException | InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package dev.akarah.format;
+
+import dev.akarah.protocol.LimitExceededException;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * State kept by one direction of one connection, for formats whose encoding depends on what was sent before,
+ * like {@link PacketFormats.InternedStringFormat}.
+ * <p>
+ * Connections bind their contexts to the current thread while encoding or decoding a packet, and formats look them up
+ * with {@link #current()}. Outside of a connection, such as in {@code PacketSpecification#encode}, there is no context
+ * and formats must fall back to a stateless encoding.
+ * <p>
+ * Inbound contexts also count the elements of every collection decoded in a packet, so a few bytes claiming huge or
+ * deeply nested arrays can't make the decoder allocate much. See {@link #limitElements(int)}.
+ */
+public class CodecContext {
+    private static final ThreadLocal<CodecContext> CURRENT = new ThreadLocal<>();
+
+    private final boolean outbound;
+    private final Map<Object, StringDictionary> dictionaries = new HashMap<>();
+    private boolean transaction;
+    private int elementsLeft = Integer.MAX_VALUE;
+
+    private CodecContext(boolean outbound) {
+        this.outbound = outbound;
+    }
+
+    /**
+     * @return A context for encoding packets.
+     */
+    public static CodecContext outbound() {
+        return new CodecContext(true);
+    }
+
+    /**
+     * @return A context for decoding packets.
+     */
+    public static CodecContext inbound() {
+        return new CodecContext(false);
+    }
+
+    /**
+     * @return The context bound to this thread, or null if there is none.
+     */
+    public static CodecContext current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Binds a context to this thread.
+     * @param context The context to bind, or null to unbind.
+     * @return The context that was bound before, to restore afterwards.
+     */
+    public static CodecContext bind(CodecContext context) {
+        var previous = CURRENT.get();
+        CURRENT.set(context);
+        return previous;
+    }
+
+    /**
+     * Sets how many collection elements may be decoded from now on, usually reset before each packet.
+     * @param maxElements The amount of elements, summed over every collection however deeply nested.
+     */
+    public void limitElements(int maxElements) {
+        this.elementsLeft = maxElements;
+    }
+
+    /**
+     * @return How many more collection elements may be decoded, see {@link #limitElements(int)}.
+     */
+    public int elementsLeft() {
+        return this.elementsLeft;
+    }
+
+    /**
+     * Counts the elements of a collection about to be decoded against the bound context's limit, before anything is
+     * allocated for them. Does nothing if there is no context.
+     * @param count The amount of elements in the collection.
+     * @throws LimitExceededException If the limit is exceeded.
+     */
+    public static void countElements(int count) {
+        var context = CURRENT.get();
+        if(context != null) {
+            context.elementsLeft -= count;
+            if(context.elementsLeft < 0) {
+                throw new LimitExceededException("packet has more collection elements than its limit");
+            }
+        }
+    }
+
+    /**
+     * @param key The format the dictionary belongs to. Equal formats share a dictionary.
+     * @param capacity The size of the dictionary, if it doesn't exist yet.
+     * @return The dictionary of this context for the format.
+     */
+    public StringDictionary dictionary(Object key, int capacity) {
+        var dictionary = this.dictionaries.get(key);
+        if(dictionary == null) {
+            dictionary = new StringDictionary(capacity, this.outbound);
+            if(this.transaction) {
+                dictionary.begin();
+            }
+            this.dictionaries.put(key, dictionary);
+        }
+        return dictionary;
+    }
+
+    /**
+     * @return Whether any format has kept state in this context, meaning what was encoded with it depends on the
+     * connection and can't be sent to others.
+     */
+    public boolean hasState() {
+        return !this.dictionaries.isEmpty();
+    }
+
+    /**
+     * Starts recording changes, so a packet that failed to encode part of the way through can be undone.
+     */
+    public void begin() {
+        this.transaction = true;
+        for(var dictionary : this.dictionaries.values()) {
+            dictionary.begin();
+        }
+    }
+
+    /**
+     * Keeps the changes since {@link #begin()}.
+     */
+    public void commit() {
+        this.transaction = false;
+        for(var dictionary : this.dictionaries.values()) {
+            dictionary.commit();
+        }
+    }
+
+    /**
+     * Undoes the changes since {@link #begin()}.
+     */
+    public void rollback() {
+        this.transaction = false;
+        for(var dictionary : this.dictionaries.values()) {
+            dictionary.rollback();
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package dev.akarah.format;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link PacketFormat} of {@code double} values that can be read and written without boxing.
+ * The boxed methods are implemented in terms of the primitive ones.
+ */
+public interface DoubleFormat extends PacketFormat<Double> {
+    double readDouble(ByteBuffer stream);
+    void writeDouble(ByteBuffer stream, double value);
+
+    default int lengthDouble(double value) {
+        return Double.BYTES;
+    }
+
+    @Override
+    default Double read(ByteBuffer stream) {
+        return this.readDouble(stream);
+    }
+
+    @Override
+    default void skip(ByteBuffer stream) {
+        this.readDouble(stream);
+    }
+
+    @Override
+    default void write(ByteBuffer stream, Double value) {
+        this.writeDouble(stream, value);
+    }
+
+    @Override
+    default int length(Double value) {
+        return this.lengthDouble(value);
+    }
+}
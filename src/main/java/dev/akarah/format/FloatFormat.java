@@ -0,0 +1,36 @@
+package dev.akarah.format;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link PacketFormat} of {@code float} values that can be read and written without boxing.
+ * The boxed methods are implemented in terms of the primitive ones.
+ */
+public interface FloatFormat extends PacketFormat<Float> {
+    float readFloat(ByteBuffer stream);
+    void writeFloat(ByteBuffer stream, float value);
+
+    default int lengthFloat(float value) {
+        return Float.BYTES;
+    }
+
+    @Override
+    default Float read(ByteBuffer stream) {
+        return this.readFloat(stream);
+    }
+
+    @Override
+    default void skip(ByteBuffer stream) {
+        this.readFloat(stream);
+    }
+
+    @Override
+    default void write(ByteBuffer stream, Float value) {
+        this.writeFloat(stream, value);
+    }
+
+    @Override
+    default int length(Float value) {
+        return this.lengthFloat(value);
+    }
+}
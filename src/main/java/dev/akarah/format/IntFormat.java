@@ -0,0 +1,36 @@
+package dev.akarah.format;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link PacketFormat} of {@code int} values that can be read and written without boxing.
+ * The boxed methods are implemented in terms of the primitive ones.
+ */
+public interface IntFormat extends PacketFormat<Integer> {
+    int readInt(ByteBuffer stream);
+    void writeInt(ByteBuffer stream, int value);
+
+    default int lengthInt(int value) {
+        return Integer.BYTES;
+    }
+
+    @Override
+    default Integer read(ByteBuffer stream) {
+        return this.readInt(stream);
+    }
+
+    @Override
+    default void skip(ByteBuffer stream) {
+        this.readInt(stream);
+    }
+
+    @Override
+    default void write(ByteBuffer stream, Integer value) {
+        this.writeInt(stream, value);
+    }
+
+    @Override
+    default int length(Integer value) {
+        return this.lengthInt(value);
+    }
+}
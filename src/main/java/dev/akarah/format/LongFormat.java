@@ -0,0 +1,36 @@
+package dev.akarah.format;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link PacketFormat} of {@code long} values that can be read and written without boxing.
+ * The boxed methods are implemented in terms of the primitive ones.
+ */
+public interface LongFormat extends PacketFormat<Long> {
+    long readLong(ByteBuffer stream);
+    void writeLong(ByteBuffer stream, long value);
+
+    default int lengthLong(long value) {
+        return Long.BYTES;
+    }
+
+    @Override
+    default Long read(ByteBuffer stream) {
+        return this.readLong(stream);
+    }
+
+    @Override
+    default void skip(ByteBuffer stream) {
+        this.readLong(stream);
+    }
+
+    @Override
+    default void write(ByteBuffer stream, Long value) {
+        this.writeLong(stream, value);
+    }
+
+    @Override
+    default int length(Long value) {
+        return this.lengthLong(value);
+    }
+}
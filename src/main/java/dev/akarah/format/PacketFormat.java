@@ -10,6 +10,24 @@ public interface PacketFormat<T> {
     int length(T value);
     String generateJavaType();
 
+    /**
+     * Moves the stream past a value without decoding it, for values nobody needs. Formats can usually do this without
+     * allocating, by advancing the position. The default reads the value and drops it.
+     * @param stream The stream, positioned at the start of a value.
+     */
+    default void skip(ByteBuffer stream) {
+        this.read(stream);
+    }
+
+    /**
+     * Formats whose values always take the same amount of bytes, like numbers or tuples of them, say so here, which
+     * lets encoders size buffers without measuring each value, and decoders check a whole value's bounds at once.
+     * @return The size of every value in bytes, or -1 if values vary in size, the default.
+     */
+    default int fixedSize() {
+        return -1;
+    }
+
     default PacketFormat<T> comment(String comment) {
         return this;
     }
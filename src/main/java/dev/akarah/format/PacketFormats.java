@@ -1,12 +1,14 @@
 package dev.akarah.format;
 
+import dev.akarah.util.Utf8Utils;
 import org.javatuples.Pair;
 import org.javatuples.Quartet;
 import org.javatuples.Triplet;
 
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
 import java.util.Optional;
+import java.util.function.IntUnaryOperator;
 
 public class PacketFormats {
     public record NewProtocol<T>(PacketFormat<T> innerType) implements PacketFormat<T> {
@@ -25,6 +27,16 @@ public class PacketFormats {
             return innerType.length(value);
         }
 
+        @Override
+        public void skip(ByteBuffer stream) {
+            innerType.skip(stream);
+        }
+
+        @Override
+        public int fixedSize() {
+            return innerType.fixedSize();
+        }
+
         @Override
         public String generateJavaType() {
             return "Protocol<" + innerType.generateJavaType() + ">";
@@ -34,7 +46,7 @@ public class PacketFormats {
     public record SpecifiedArray<T>(PacketFormat<T> innerType) implements PacketFormat<T[]> {
         @Override
         public T[] read(ByteBuffer stream) {
-            var len = stream.getShort();
+            var len = readArrayLength(stream);
             var array = (T[]) new Object[len];
             for(int i = 0; i < len; i++) {
                 array[i] = innerType.read(stream);
@@ -44,9 +56,7 @@ public class PacketFormats {
 
         @Override
         public void write(ByteBuffer stream, T[] value) {
-            if(value.length > 65535)
-                throw new RuntimeException("array too long to encode, length must be <= 65535");
-            stream.putShort((short) value.length);
+            writeArrayLength(stream, value.length);
             for(var v : value) {
                 innerType.write(stream, v);
             }
@@ -54,11 +64,12 @@ public class PacketFormats {
 
         @Override
         public int length(T[] value) {
-            int size = 0;
-            for(var v : value)
-                size += innerType.length(v);
-            size += Short.BYTES;
-            return size;
+            return arrayLength(innerType, value.length, i -> innerType.length(value[i]));
+        }
+
+        @Override
+        public void skip(ByteBuffer stream) {
+            skipArray(stream, innerType);
         }
 
         @Override
@@ -67,6 +78,184 @@ public class PacketFormats {
         }
     }
 
+    public record ByteArrayFormat(SingleByteFormat innerType) implements PacketFormat<byte[]> {
+        @Override
+        public byte[] read(ByteBuffer stream) {
+            var array = new byte[readArrayLength(stream)];
+            if(innerType instanceof ByteFormat) {
+                stream.get(array);
+                return array;
+            }
+            for(int i = 0; i < array.length; i++) {
+                array[i] = innerType.readByte(stream);
+            }
+            return array;
+        }
+
+        @Override
+        public void write(ByteBuffer stream, byte[] value) {
+            writeArrayLength(stream, value.length);
+            if(innerType instanceof ByteFormat) {
+                stream.put(value);
+                return;
+            }
+            for(var v : value) {
+                innerType.writeByte(stream, v);
+            }
+        }
+
+        @Override
+        public int length(byte[] value) {
+            return arrayLength(innerType, value.length, i -> innerType.lengthByte(value[i]));
+        }
+
+        @Override
+        public void skip(ByteBuffer stream) {
+            skipArray(stream, innerType);
+        }
+
+        @Override
+        public String generateJavaType() {
+            return "byte[]";
+        }
+    }
+
+    public record IntArrayFormat(IntFormat innerType) implements PacketFormat<int[]> {
+        @Override
+        public int[] read(ByteBuffer stream) {
+            var array = new int[readArrayLength(stream)];
+            for(int i = 0; i < array.length; i++) {
+                array[i] = innerType.readInt(stream);
+            }
+            return array;
+        }
+
+        @Override
+        public void write(ByteBuffer stream, int[] value) {
+            writeArrayLength(stream, value.length);
+            for(var v : value) {
+                innerType.writeInt(stream, v);
+            }
+        }
+
+        @Override
+        public int length(int[] value) {
+            return arrayLength(innerType, value.length, i -> innerType.lengthInt(value[i]));
+        }
+
+        @Override
+        public void skip(ByteBuffer stream) {
+            skipArray(stream, innerType);
+        }
+
+        @Override
+        public String generateJavaType() {
+            return "int[]";
+        }
+    }
+
+    public record LongArrayFormat(LongFormat innerType) implements PacketFormat<long[]> {
+        @Override
+        public long[] read(ByteBuffer stream) {
+            var array = new long[readArrayLength(stream)];
+            for(int i = 0; i < array.length; i++) {
+                array[i] = innerType.readLong(stream);
+            }
+            return array;
+        }
+
+        @Override
+        public void write(ByteBuffer stream, long[] value) {
+            writeArrayLength(stream, value.length);
+            for(var v : value) {
+                innerType.writeLong(stream, v);
+            }
+        }
+
+        @Override
+        public int length(long[] value) {
+            return arrayLength(innerType, value.length, i -> innerType.lengthLong(value[i]));
+        }
+
+        @Override
+        public void skip(ByteBuffer stream) {
+            skipArray(stream, innerType);
+        }
+
+        @Override
+        public String generateJavaType() {
+            return "long[]";
+        }
+    }
+
+    public record FloatArrayFormat(FloatFormat innerType) implements PacketFormat<float[]> {
+        @Override
+        public float[] read(ByteBuffer stream) {
+            var array = new float[readArrayLength(stream)];
+            for(int i = 0; i < array.length; i++) {
+                array[i] = innerType.readFloat(stream);
+            }
+            return array;
+        }
+
+        @Override
+        public void write(ByteBuffer stream, float[] value) {
+            writeArrayLength(stream, value.length);
+            for(var v : value) {
+                innerType.writeFloat(stream, v);
+            }
+        }
+
+        @Override
+        public int length(float[] value) {
+            return arrayLength(innerType, value.length, i -> innerType.lengthFloat(value[i]));
+        }
+
+        @Override
+        public void skip(ByteBuffer stream) {
+            skipArray(stream, innerType);
+        }
+
+        @Override
+        public String generateJavaType() {
+            return "float[]";
+        }
+    }
+
+    public record DoubleArrayFormat(DoubleFormat innerType) implements PacketFormat<double[]> {
+        @Override
+        public double[] read(ByteBuffer stream) {
+            var array = new double[readArrayLength(stream)];
+            for(int i = 0; i < array.length; i++) {
+                array[i] = innerType.readDouble(stream);
+            }
+            return array;
+        }
+
+        @Override
+        public void write(ByteBuffer stream, double[] value) {
+            writeArrayLength(stream, value.length);
+            for(var v : value) {
+                innerType.writeDouble(stream, v);
+            }
+        }
+
+        @Override
+        public int length(double[] value) {
+            return arrayLength(innerType, value.length, i -> innerType.lengthDouble(value[i]));
+        }
+
+        @Override
+        public void skip(ByteBuffer stream) {
+            skipArray(stream, innerType);
+        }
+
+        @Override
+        public String generateJavaType() {
+            return "double[]";
+        }
+    }
+
     public record SpecifiedOptional<T>(PacketFormat<T> innerType) implements PacketFormat<Optional<T>> {
         @Override
         public Optional<T> read(ByteBuffer stream) {
@@ -92,6 +281,13 @@ public class PacketFormats {
             return value.map(t -> 1 + innerType.length(t)).orElse(1);
         }
 
+        @Override
+        public void skip(ByteBuffer stream) {
+            if (stream.get() == 1) {
+                innerType.skip(stream);
+            }
+        }
+
         @Override
         public String generateJavaType() {
             return "Optional<" + innerType.generateJavaType() + ">";
@@ -117,25 +313,37 @@ public class PacketFormats {
             return value.map(t -> 1 + innerType.length(t)).orElse(1);
         }
 
+        @Override
+        public void skip(ByteBuffer stream) {
+            if (stream.hasRemaining()) {
+                innerType.skip(stream);
+            }
+        }
+
         @Override
         public String generateJavaType() {
             return "Optional<" + innerType.generateJavaType() + ">";
         }
     }
 
-    public record ByteFormat() implements PacketFormat<Byte> {
+    public record ByteFormat() implements SingleByteFormat {
         @Override
-        public Byte read(ByteBuffer buf) {
+        public byte readByte(ByteBuffer buf) {
             return buf.get();
         }
 
         @Override
-        public void write(ByteBuffer buf, Byte value) {
+        public void writeByte(ByteBuffer buf, byte value) {
             buf.put(value);
         }
 
         @Override
-        public int length(Byte value) {
+        public void skip(ByteBuffer buf) {
+            skipBytes(buf, Byte.BYTES);
+        }
+
+        @Override
+        public int fixedSize() {
             return Byte.BYTES;
         }
 
@@ -145,19 +353,24 @@ public class PacketFormats {
         }
     }
 
-    public record IntegerFormat() implements PacketFormat<Integer> {
+    public record IntegerFormat() implements IntFormat {
         @Override
-        public Integer read(ByteBuffer buf) {
+        public int readInt(ByteBuffer buf) {
             return buf.getInt();
         }
 
         @Override
-        public void write(ByteBuffer buf, Integer value) {
+        public void writeInt(ByteBuffer buf, int value) {
             buf.putInt(value);
         }
 
         @Override
-        public int length(Integer value) {
+        public void skip(ByteBuffer buf) {
+            skipBytes(buf, Integer.BYTES);
+        }
+
+        @Override
+        public int fixedSize() {
             return Integer.BYTES;
         }
 
@@ -167,12 +380,93 @@ public class PacketFormats {
         }
     }
 
-    public record VariableSizedInteger() implements PacketFormat<Long> {
+    public record LongIntegerFormat() implements LongFormat {
+        @Override
+        public long readLong(ByteBuffer buf) {
+            return buf.getLong();
+        }
+
+        @Override
+        public void writeLong(ByteBuffer buf, long value) {
+            buf.putLong(value);
+        }
+
+        @Override
+        public void skip(ByteBuffer buf) {
+            skipBytes(buf, Long.BYTES);
+        }
+
+        @Override
+        public int fixedSize() {
+            return Long.BYTES;
+        }
+
+        @Override
+        public String generateJavaType() {
+            return "Long";
+        }
+    }
+
+    public record FloatingPointFormat() implements FloatFormat {
+        @Override
+        public float readFloat(ByteBuffer buf) {
+            return buf.getFloat();
+        }
+
+        @Override
+        public void writeFloat(ByteBuffer buf, float value) {
+            buf.putFloat(value);
+        }
+
+        @Override
+        public void skip(ByteBuffer buf) {
+            skipBytes(buf, Float.BYTES);
+        }
+
+        @Override
+        public int fixedSize() {
+            return Float.BYTES;
+        }
+
+        @Override
+        public String generateJavaType() {
+            return "Float";
+        }
+    }
+
+    public record DoublePrecisionFormat() implements DoubleFormat {
+        @Override
+        public double readDouble(ByteBuffer buf) {
+            return buf.getDouble();
+        }
+
+        @Override
+        public void writeDouble(ByteBuffer buf, double value) {
+            buf.putDouble(value);
+        }
+
+        @Override
+        public void skip(ByteBuffer buf) {
+            skipBytes(buf, Double.BYTES);
+        }
+
+        @Override
+        public int fixedSize() {
+            return Double.BYTES;
+        }
+
+        @Override
+        public String generateJavaType() {
+            return "Double";
+        }
+    }
+
+    public record VariableSizedInteger() implements LongFormat {
         private static final int SEGMENT_BITS = 0x7F;
         private static final int CONTINUE_BIT = 0x80;
 
         @Override
-        public Long read(ByteBuffer buf) {
+        public long readLong(ByteBuffer buf) {
             long value = 0;
             int position = 0;
             byte currentByte;
@@ -192,10 +486,10 @@ public class PacketFormats {
         }
 
         @Override
-        public void write(ByteBuffer buf, Long value) {
+        public void writeLong(ByteBuffer buf, long value) {
             while(true) {
                 if ((value & ~(long) SEGMENT_BITS) == 0) {
-                    buf.put(value.byteValue());
+                    buf.put((byte) value);
                     return;
                 }
 
@@ -206,17 +500,23 @@ public class PacketFormats {
         }
 
         @Override
-        public int length(Long value) {
-            int length = 0;
-
-            while(true) {
-                if ((value & ~(long) SEGMENT_BITS) == 0) {
-                    length++;
-                    return length;
-                }
+        public int lengthLong(long value) {
+            int length = 1;
 
+            while ((value & ~(long) SEGMENT_BITS) != 0) {
+                length++;
                 value >>>= 7;
             }
+
+            return length;
+        }
+
+        @Override
+        public void skip(ByteBuffer buf) {
+            var start = buf.position();
+            while ((buf.get() & CONTINUE_BIT) != 0) {
+                if (buf.position() - start >= 10) throw new RuntimeException("VarLong is too big");
+            }
         }
 
         @Override
@@ -228,22 +528,100 @@ public class PacketFormats {
     public record StringFormat() implements PacketFormat<String> {
         @Override
         public String read(ByteBuffer buf) {
-            byte[] array = new byte[buf.getInt()];
-            for(int i = 0; i < array.length; i++)
-                array[i] = buf.get();
-            return new String(array, StandardCharsets.UTF_8);
+            return Utf8Utils.decode(buf, buf.getInt());
         }
 
         @Override
         public void write(ByteBuffer buf, String value) {
-            buf.putInt(value.getBytes(StandardCharsets.UTF_8).length);
-            for(byte b : value.getBytes(StandardCharsets.UTF_8))
-                buf.put(b);
+            buf.putInt(Utf8Utils.encodedLength(value));
+            Utf8Utils.encode(buf, value);
         }
 
         @Override
         public int length(String value) {
-            return Integer.BYTES + value.getBytes(StandardCharsets.UTF_8).length;
+            return Integer.BYTES + Utf8Utils.encodedLength(value);
+        }
+
+        @Override
+        public void skip(ByteBuffer buf) {
+            skipBytes(buf, buf.getInt());
+        }
+
+        @Override
+        public String generateJavaType() {
+            return "String";
+        }
+    }
+
+    /**
+     * A string that is sent in full the first time, and as its slot in a {@link StringDictionary} afterwards.
+     * Encoded as a VarLong that is 0 for a full {@link StringFormat}, or the slot plus one.
+     * Without a {@link CodecContext}, strings are always sent in full.
+     */
+    public record InternedStringFormat(int capacity) implements PacketFormat<String> {
+        private static final StringFormat STRING = new StringFormat();
+        private static final VariableSizedInteger TAG = new VariableSizedInteger();
+
+        public InternedStringFormat {
+            if(capacity < 1 || capacity > 1 << 28) {
+                throw new IllegalArgumentException("dictionary capacity must be between 1 and 2^28, got " + capacity);
+            }
+        }
+
+        @Override
+        public String read(ByteBuffer buf) {
+            var tag = TAG.readLong(buf);
+            var context = CodecContext.current();
+            if(tag == 0) {
+                var value = STRING.read(buf);
+                if(context != null) {
+                    context.dictionary(this, this.capacity).add(value);
+                }
+                return value;
+            }
+            if(context == null) {
+                throw new RuntimeException("received an interned string outside of a connection");
+            }
+            var dictionary = context.dictionary(this, this.capacity);
+            var value = dictionary.get((int) (tag - 1));
+            dictionary.use((int) (tag - 1));
+            return value;
+        }
+
+        @Override
+        public void write(ByteBuffer buf, String value) {
+            var context = CodecContext.current();
+            if(context == null) {
+                TAG.writeLong(buf, 0);
+                STRING.write(buf, value);
+                return;
+            }
+            var dictionary = context.dictionary(this, this.capacity);
+            var slot = dictionary.slotOf(value);
+            if(slot >= 0) {
+                TAG.writeLong(buf, slot + 1);
+                dictionary.use(slot);
+            } else {
+                TAG.writeLong(buf, 0);
+                STRING.write(buf, value);
+                dictionary.add(value);
+            }
+        }
+
+        /**
+         * Reads the string anyway, as the {@link StringDictionary} must see it to stay the same as the sender's.
+         */
+        @Override
+        public void skip(ByteBuffer buf) {
+            this.read(buf);
+        }
+
+        /**
+         * @return The length of the string sent in full, which is never less than sending its slot.
+         */
+        @Override
+        public int length(String value) {
+            return 1 + STRING.length(value);
         }
 
         @Override
@@ -273,6 +651,17 @@ public class PacketFormats {
             return first.length(value.getValue0()) + second.length(value.getValue1());
         }
 
+        @Override
+        public void skip(ByteBuffer stream) {
+            first.skip(stream);
+            second.skip(stream);
+        }
+
+        @Override
+        public int fixedSize() {
+            return sumFixedSizes(first, second);
+        }
+
         @Override
         public String generateJavaType() {
             return "Pair<" + first.generateJavaType() + ", " + second.generateJavaType() + ">";
@@ -302,6 +691,18 @@ public class PacketFormats {
             return first.length(value.getValue0()) + second.length(value.getValue1()) + third.length(value.getValue2());
         }
 
+        @Override
+        public void skip(ByteBuffer stream) {
+            first.skip(stream);
+            second.skip(stream);
+            third.skip(stream);
+        }
+
+        @Override
+        public int fixedSize() {
+            return sumFixedSizes(first, second, third);
+        }
+
         @Override
         public String generateJavaType() {
             return "Triplet<" + first.generateJavaType() + ", " + second.generateJavaType() + "," + third.generateJavaType() + ">";
@@ -336,10 +737,100 @@ public class PacketFormats {
                 + fourth.length(value.getValue3());
         }
 
+        @Override
+        public void skip(ByteBuffer stream) {
+            first.skip(stream);
+            second.skip(stream);
+            third.skip(stream);
+            fourth.skip(stream);
+        }
+
+        @Override
+        public int fixedSize() {
+            return sumFixedSizes(first, second, third, fourth);
+        }
+
         @Override
         public String generateJavaType() {
             return "Quartet<" + first.generateJavaType() + ", " + second.generateJavaType() + "," + third.generateJavaType() +
                 "," + fourth.generateJavaType() + ">";
         }
     }
+
+    /**
+     * @return The size of the formats one after another, or -1 if any of them varies in size.
+     */
+    private static int sumFixedSizes(PacketFormat<?>... formats) {
+        var size = 0;
+        for(var format : formats) {
+            var fixedSize = format.fixedSize();
+            if(fixedSize < 0) {
+                return -1;
+            }
+            size += fixedSize;
+        }
+        return size;
+    }
+
+    /**
+     * Writes the 16-bit length of an array, failing if it's too long.
+     */
+    private static void writeArrayLength(ByteBuffer stream, int length) {
+        if(length > 65535)
+            throw new RuntimeException("array too long to encode, length must be <= 65535");
+        stream.putShort((short) length);
+    }
+
+    /**
+     * @param elementLength The length of the element at an index, only used if the elements vary in size.
+     * @return The length of an array of {@code count} elements of the format.
+     */
+    private static int arrayLength(PacketFormat<?> innerType, int count, IntUnaryOperator elementLength) {
+        var fixedSize = innerType.fixedSize();
+        if(fixedSize >= 0) {
+            return Short.BYTES + count * fixedSize;
+        }
+        int size = Short.BYTES;
+        for(int i = 0; i < count; i++)
+            size += elementLength.applyAsInt(i);
+        return size;
+    }
+
+    /**
+     * Moves past an array of the format, all at once if its elements have a fixed size.
+     */
+    private static void skipArray(ByteBuffer stream, PacketFormat<?> innerType) {
+        var len = readArrayLength(stream);
+        var size = innerType.fixedSize();
+        if(size >= 0) {
+            skipBytes(stream, (long) len * size);
+            return;
+        }
+        for(int i = 0; i < len; i++) {
+            innerType.skip(stream);
+        }
+    }
+
+    /**
+     * Moves past bytes without reading them, failing like a read would if there aren't enough.
+     */
+    private static void skipBytes(ByteBuffer stream, long count) {
+        if(count < 0) {
+            throw new RuntimeException("negative length " + count);
+        }
+        if(count > stream.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        stream.position(stream.position() + (int) count);
+    }
+
+    /**
+     * Reads the 16-bit length of an array, counting it against the {@link CodecContext}'s element limit before the
+     * array is allocated.
+     */
+    private static int readArrayLength(ByteBuffer stream) {
+        var length = Short.toUnsignedInt(stream.getShort());
+        CodecContext.countElements(length);
+        return length;
+    }
 }
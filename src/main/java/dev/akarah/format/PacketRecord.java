@@ -0,0 +1,23 @@
+package dev.akarah.format;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a record as a packet's data, for the annotation processor in the {@code processor} module.
+ * <p>
+ * For a record {@code ChatMessage}, it generates a {@code ChatMessageCodec}, a {@link PacketFormat} reading and writing
+ * the record's components in order without any tuples or reflection, and a {@code ChatMessagePacket},
+ * the {@link Packet} carrying the record. Supported components are {@code byte}, {@code int}, {@code long},
+ * {@code float}, {@code double}, {@code String}, and arrays of the numeric primitives.
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.CLASS)
+public @interface PacketRecord {
+    /**
+     * @return The ID of the packet.
+     */
+    int id();
+}
@@ -0,0 +1,36 @@
+package dev.akarah.format;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link PacketFormat} of {@code byte} values that can be read and written without boxing.
+ * The boxed methods are implemented in terms of the primitive ones.
+ */
+public interface SingleByteFormat extends PacketFormat<Byte> {
+    byte readByte(ByteBuffer stream);
+    void writeByte(ByteBuffer stream, byte value);
+
+    default int lengthByte(byte value) {
+        return Byte.BYTES;
+    }
+
+    @Override
+    default Byte read(ByteBuffer stream) {
+        return this.readByte(stream);
+    }
+
+    @Override
+    default void skip(ByteBuffer stream) {
+        this.readByte(stream);
+    }
+
+    @Override
+    default void write(ByteBuffer stream, Byte value) {
+        this.writeByte(stream, value);
+    }
+
+    @Override
+    default int length(Byte value) {
+        return this.lengthByte(value);
+    }
+}
@@ -0,0 +1,191 @@
+package dev.akarah.format;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A bounded table of strings with least-recently-used eviction, one end of {@link PacketFormats.InternedStringFormat}.
+ * <p>
+ * Both ends of a connection keep one, and apply the same additions and uses in the same order, so a string has the
+ * same slot on both sides without the slots ever being sent. When the table is full, adding a string reuses the slot
+ * of the least recently used one.
+ */
+public class StringDictionary {
+    private static final int TOUCH = 0;
+    private static final int APPEND = 1;
+    private static final int EVICT = 2;
+
+    private final String[] values;
+    private final int[] previous;
+    private final int[] next;
+    private final Map<String, Integer> slots;
+    private int head = -1;
+    private int tail = -1;
+    private int size;
+
+    private boolean journaling;
+    private int[] journal = new int[0];
+    private String[] evicted = new String[0];
+    private int journalSize;
+
+    /**
+     * @param capacity The most strings the dictionary holds.
+     * @param indexed Whether strings can be looked up with {@link #slotOf(String)}, which only the sending end needs.
+     */
+    public StringDictionary(int capacity, boolean indexed) {
+        this.values = new String[capacity];
+        this.previous = new int[capacity];
+        this.next = new int[capacity];
+        this.slots = indexed ? new HashMap<>() : null;
+    }
+
+    /**
+     * @return The slot holding the string, or -1 if the dictionary doesn't have it.
+     */
+    public int slotOf(String value) {
+        var slot = this.slots.get(value);
+        return slot == null ? -1 : slot;
+    }
+
+    /**
+     * @return The string in the slot. It is the same instance every time, until the slot is reused.
+     */
+    public String get(int slot) {
+        if(slot < 0 || slot >= this.size) {
+            throw new RuntimeException("interned string " + slot + " is not in the dictionary");
+        }
+        return this.values[slot];
+    }
+
+    /**
+     * Marks the string in the slot as the most recently used.
+     */
+    public void use(int slot) {
+        if(slot == this.head) {
+            return;
+        }
+        this.record(TOUCH, slot, this.previous[slot], null);
+        this.unlink(slot);
+        this.linkAfter(slot, -1);
+    }
+
+    /**
+     * Adds a string the dictionary doesn't have yet, as the most recently used.
+     */
+    public void add(String value) {
+        int slot;
+        if(this.size < this.values.length) {
+            slot = this.size++;
+            this.record(APPEND, slot, -1, null);
+        } else {
+            slot = this.tail;
+            this.record(EVICT, slot, this.previous[slot], this.values[slot]);
+            this.unlink(slot);
+            if(this.slots != null) {
+                this.slots.remove(this.values[slot]);
+            }
+        }
+        this.values[slot] = value;
+        if(this.slots != null) {
+            this.slots.put(value, slot);
+        }
+        this.linkAfter(slot, -1);
+    }
+
+    /**
+     * Starts recording changes, so they can be undone with {@link #rollback()}.
+     */
+    void begin() {
+        this.journaling = true;
+        this.journalSize = 0;
+    }
+
+    /**
+     * Keeps the changes since {@link #begin()}.
+     */
+    void commit() {
+        this.journaling = false;
+        Arrays.fill(this.evicted, 0, this.journalSize / 3, null);
+        this.journalSize = 0;
+    }
+
+    /**
+     * Undoes the changes since {@link #begin()}, newest first.
+     */
+    void rollback() {
+        while(this.journalSize > 0) {
+            this.journalSize -= 3;
+            var operation = this.journal[this.journalSize];
+            var slot = this.journal[this.journalSize + 1];
+            var previous = this.journal[this.journalSize + 2];
+            this.unlink(slot);
+            switch (operation) {
+                case TOUCH -> this.linkAfter(slot, previous);
+                case APPEND -> {
+                    if(this.slots != null) {
+                        this.slots.remove(this.values[slot]);
+                    }
+                    this.values[slot] = null;
+                    this.size--;
+                }
+                case EVICT -> {
+                    var value = this.evicted[this.journalSize / 3];
+                    this.evicted[this.journalSize / 3] = null;
+                    if(this.slots != null) {
+                        this.slots.remove(this.values[slot]);
+                        this.slots.put(value, slot);
+                    }
+                    this.values[slot] = value;
+                    this.linkAfter(slot, previous);
+                }
+            }
+        }
+        this.journaling = false;
+    }
+
+    private void record(int operation, int slot, int previous, String evicted) {
+        if(!this.journaling) {
+            return;
+        }
+        if(this.journalSize == this.journal.length) {
+            this.journal = Arrays.copyOf(this.journal, Math.max(12, this.journal.length * 2));
+            this.evicted = Arrays.copyOf(this.evicted, this.journal.length / 3);
+        }
+        this.evicted[this.journalSize / 3] = evicted;
+        this.journal[this.journalSize++] = operation;
+        this.journal[this.journalSize++] = slot;
+        this.journal[this.journalSize++] = previous;
+    }
+
+    private void unlink(int slot) {
+        var before = this.previous[slot];
+        var after = this.next[slot];
+        if(before == -1) {
+            this.head = after;
+        } else {
+            this.next[before] = after;
+        }
+        if(after == -1) {
+            this.tail = before;
+        } else {
+            this.previous[after] = before;
+        }
+    }
+
+    private void linkAfter(int slot, int before) {
+        var after = before == -1 ? this.head : this.next[before];
+        this.previous[slot] = before;
+        this.next[slot] = after;
+        if(before == -1) {
+            this.head = slot;
+        } else {
+            this.next[before] = slot;
+        }
+        if(after == -1) {
+            this.tail = slot;
+        } else {
+            this.previous[after] = slot;
+        }
+    }
+}
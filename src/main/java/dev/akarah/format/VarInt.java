@@ -0,0 +1,14 @@
+package dev.akarah.format;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a {@code long} component of a {@link PacketRecord} to be encoded as a VarLong, like {@code Argument.varInt()}.
+ */
+@Target(ElementType.RECORD_COMPONENT)
+@Retention(RetentionPolicy.CLASS)
+public @interface VarInt {
+}
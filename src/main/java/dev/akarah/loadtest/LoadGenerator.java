@@ -0,0 +1,411 @@
+package dev.akarah.loadtest;
+
+import dev.akarah.format.Packet;
+import dev.akarah.metrics.Histogram;
+import dev.akarah.networking.ProtocolClient;
+import dev.akarah.protocol.Protocol;
+
+import java.lang.management.ManagementFactory;
+import java.net.SocketAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Opens many {@link ProtocolClient}s to a server and sends them packets from a {@link PacketMix} at a fixed total rate,
+ * measuring throughput and latency per packet ID. Each client sends on its own virtual thread.
+ * <p>
+ * The load is open-loop: every packet has a time it is scheduled to be sent at, which doesn't move when the server is
+ * slow, and its latency is measured from then. A stalled server therefore shows up as the latency of every packet that
+ * should have been sent during the stall, instead of as one slow packet, avoiding coordinated omission.
+ * <p>
+ * Latency is how long a packet took to be written to the socket, or, with {@link #withResponses()}, to be answered.
+ * With {@link #withSoakInterval(Duration, Consumer)}, the process's heap, garbage collections and threads are sampled
+ * while the load runs, to find where connection counts or long runs start to hurt.
+ */
+public final class LoadGenerator {
+    private static final int LATENCY_PRECISION = 7;
+    private static final int MAX_CONCURRENT_CONNECTS = 64;
+
+    private final Protocol protocol;
+    private SocketAddress address;
+    private int clients = 1;
+    private double rate = 1000;
+    private PacketMix mix;
+    private Duration duration = Duration.ofSeconds(10);
+    private Duration warmup = Duration.ZERO;
+    private Duration drainTimeout = Duration.ofSeconds(5);
+    private boolean responses;
+    private Consumer<ProtocolClient> clientSetup = client -> {};
+    private Duration soakInterval = Duration.ZERO;
+    private Consumer<SoakSample> soakListener = sample -> {};
+
+    private final Map<Integer, Stats> stats = new ConcurrentHashMap<>();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final AtomicLong outstanding = new AtomicLong();
+    private final AtomicReference<Histogram> intervalLatency = new AtomicReference<>(new Histogram(LATENCY_PRECISION));
+    private volatile long measureStart;
+
+    private LoadGenerator(Protocol protocol) {
+        this.protocol = protocol.freeze();
+    }
+
+    /**
+     * @param protocol The protocol the server uses.
+     * @return A generator of one client, sending 1000 packets per second for 10 seconds.
+     */
+    public static LoadGenerator withProtocol(Protocol protocol) {
+        return new LoadGenerator(protocol);
+    }
+
+    public LoadGenerator withAddress(SocketAddress address) {
+        this.address = address;
+        return this;
+    }
+
+    /**
+     * @param clients How many clients to connect, each with its own connection.
+     * @return The same generator with the client count set.
+     */
+    public LoadGenerator withClients(int clients) {
+        if(clients <= 0) {
+            throw new IllegalArgumentException("client count must be positive, got " + clients);
+        }
+        this.clients = clients;
+        return this;
+    }
+
+    /**
+     * @param packetsPerSecond How many packets to send per second, over every client together.
+     * @return The same generator with the rate set.
+     */
+    public LoadGenerator withRate(double packetsPerSecond) {
+        if(!(packetsPerSecond > 0)) {
+            throw new IllegalArgumentException("rate must be positive, got " + packetsPerSecond);
+        }
+        this.rate = packetsPerSecond;
+        return this;
+    }
+
+    public LoadGenerator withMix(PacketMix mix) {
+        this.mix = mix;
+        return this;
+    }
+
+    /**
+     * @param duration How long to send packets for, after the warm-up. Soak tests can run for hours.
+     * @return The same generator with the duration set.
+     */
+    public LoadGenerator withDuration(Duration duration) {
+        this.duration = duration;
+        return this;
+    }
+
+    /**
+     * @param warmup How long to send packets for before measuring, so both ends are compiled by the JIT first.
+     * @return The same generator with the warm-up set.
+     */
+    public LoadGenerator withWarmup(Duration warmup) {
+        this.warmup = warmup;
+        return this;
+    }
+
+    /**
+     * Measures latency until each packet is answered, instead of until it is written. The server must answer every
+     * packet with exactly one packet, in the order they were received.
+     * @return The same generator, expecting responses.
+     */
+    public LoadGenerator withResponses() {
+        this.responses = true;
+        return this;
+    }
+
+    /**
+     * @param drainTimeout How long to wait for packets still being written or answered once the load stops.
+     * @return The same generator with the timeout set.
+     */
+    public LoadGenerator withDrainTimeout(Duration drainTimeout) {
+        this.drainTimeout = drainTimeout;
+        return this;
+    }
+
+    /**
+     * @param setup Called on each client before it starts, such as to set its flush policy or buffer pool.
+     * @return The same generator with the setup set.
+     */
+    public LoadGenerator withClientSetup(Consumer<ProtocolClient> setup) {
+        this.clientSetup = setup;
+        return this;
+    }
+
+    /**
+     * Samples the process every interval while the load runs, see {@link SoakSample}.
+     * @param interval How often to sample.
+     * @param listener Given each sample, such as to print it. Samples are also kept in the {@link LoadReport}.
+     * @return The same generator with sampling set.
+     */
+    public LoadGenerator withSoakInterval(Duration interval, Consumer<SoakSample> listener) {
+        this.soakInterval = interval;
+        this.soakListener = listener;
+        return this;
+    }
+
+    /**
+     * Connects the clients, sends packets for the warm-up and duration, waits for the last ones to be written or
+     * answered, and disconnects. Blocks until done.
+     * @return What was measured.
+     */
+    public LoadReport run() {
+        if(this.address == null || this.mix == null || this.mix.isEmpty()) {
+            throw new IllegalStateException("a load generator needs an address and a packet mix");
+        }
+        this.stats.clear();
+        this.sent.reset();
+        this.received.reset();
+        this.outstanding.set(0);
+        this.measureStart = Long.MAX_VALUE;
+        var clients = this.connect();
+        if(clients.isEmpty()) {
+            throw new IllegalStateException("no client could connect to " + this.address);
+        }
+
+        var start = System.nanoTime() + Duration.ofMillis(10).toNanos();
+        this.measureStart = start + this.warmup.toNanos();
+        var end = this.measureStart + this.duration.toNanos();
+        var interval = 1e9 * clients.size() / this.rate;
+        var senders = new ArrayList<Thread>();
+        for(var client : clients) {
+            var phase = ThreadLocalRandom.current().nextDouble(interval);
+            senders.add(Thread.ofVirtual().name("load-client").start(() -> this.send(client, start + phase, interval, end)));
+        }
+        var samples = new ArrayList<SoakSample>();
+        var sampler = this.soakInterval.isZero() ? null : Thread.ofPlatform().daemon().name("load-soak-sampler").start(
+            () -> this.sample(clients, senders, start, end, samples)
+        );
+
+        for(var sender : senders) {
+            join(sender);
+        }
+        var elapsed = System.nanoTime() - this.measureStart;
+        var drainEnd = System.nanoTime() + this.drainTimeout.toNanos();
+        while(this.outstanding.get() > 0 && System.nanoTime() < drainEnd) {
+            LockSupport.parkNanos(Duration.ofMillis(1).toNanos());
+        }
+        if(sampler != null) {
+            sampler.interrupt();
+            join(sampler);
+        }
+        for(var client : clients) {
+            client.client.disconnect();
+        }
+
+        var packets = new TreeMap<Integer, LoadReport.PacketStats>();
+        for(var entry : this.stats.entrySet()) {
+            packets.put(entry.getKey(), new LoadReport.PacketStats(entry.getValue().sent.sum(), entry.getValue().latency));
+        }
+        synchronized(samples) {
+            return new LoadReport(
+                clients.size(),
+                this.clients - clients.size(),
+                this.sent.sum(),
+                this.received.sum(),
+                this.outstanding.get(),
+                Duration.ofNanos(elapsed),
+                packets,
+                List.copyOf(samples)
+            );
+        }
+    }
+
+    /**
+     * One connected client, with the packets it is waiting on responses for.
+     */
+    private record Client(ProtocolClient client, ConcurrentLinkedQueue<Pending> pending) {
+    }
+
+    /**
+     * A packet waiting for its response.
+     * @param scheduled When the packet was scheduled to be sent, or -1 if it was sent during the warm-up.
+     */
+    private record Pending(int packetId, long scheduled) {
+    }
+
+    private static final class Stats {
+        final LongAdder sent = new LongAdder();
+        final Histogram latency = new Histogram(LATENCY_PRECISION);
+    }
+
+    /**
+     * Connects the clients on virtual threads, a few at a time, so the server's accept backlog isn't overrun.
+     */
+    private List<Client> connect() {
+        var clients = new ConcurrentLinkedQueue<Client>();
+        var permits = new Semaphore(MAX_CONCURRENT_CONNECTS);
+        try(var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for(int i = 0; i < this.clients; i++) {
+                permits.acquireUninterruptibly();
+                executor.execute(() -> {
+                    try {
+                        clients.add(this.open());
+                    } catch (RuntimeException e) {
+                        // Counted as a failed connection in the report.
+                    } finally {
+                        permits.release();
+                    }
+                });
+            }
+        }
+        return new ArrayList<>(clients);
+    }
+
+    private Client open() {
+        var pending = this.responses ? new ConcurrentLinkedQueue<Pending>() : null;
+        var client = ProtocolClient.of(this.protocol, this.address).withPacketListener(packet -> {
+            if(pending == null) {
+                if(System.nanoTime() >= this.measureStart) {
+                    this.received.increment();
+                }
+                return;
+            }
+            var request = pending.poll();
+            if(request != null) {
+                this.outstanding.decrementAndGet();
+                if(request.scheduled >= 0) {
+                    this.received.increment();
+                    this.recordLatency(request.packetId, request.scheduled);
+                }
+            }
+        });
+        this.clientSetup.accept(client);
+        client.start();
+        return new Client(client, pending);
+    }
+
+    /**
+     * Sends a client's packets on schedule, until the end. A client that falls behind sends right away to catch up,
+     * without moving its schedule.
+     */
+    private void send(Client client, double first, double interval, long end) {
+        for(long i = 0; ; i++) {
+            var scheduled = (long) (first + i * interval);
+            if(scheduled >= end || client.client.socket.isClosed()) {
+                return;
+            }
+            waitUntil(scheduled);
+
+            Packet<?, ?> packet = this.mix.next();
+            var packetId = this.protocol.specificationFor(packet).getPacketId();
+            var measured = scheduled >= this.measureStart;
+            if(measured) {
+                this.sent.increment();
+                this.stats.computeIfAbsent(packetId, id -> new Stats()).sent.increment();
+            }
+            this.outstanding.incrementAndGet();
+            if(client.pending != null) {
+                // Queued before sending, so the response can't arrive first.
+                client.pending.add(new Pending(packetId, measured ? scheduled : -1));
+                client.client.sendPacket(packet);
+                continue;
+            }
+            client.client.sendPacketAsync(packet).whenComplete((ignored, error) -> {
+                // A packet that failed to send is no longer outstanding either, or the drain would wait for it.
+                this.outstanding.decrementAndGet();
+                if(error == null) {
+                    this.recordLatency(packetId, measured ? scheduled : -1);
+                }
+            });
+        }
+    }
+
+    private void recordLatency(int packetId, long scheduled) {
+        if(scheduled < 0) {
+            return;
+        }
+        var latency = System.nanoTime() - scheduled;
+        this.stats.computeIfAbsent(packetId, id -> new Stats()).latency.record(latency);
+        this.intervalLatency.get().record(latency);
+    }
+
+    private void sample(List<Client> clients, List<Thread> senders, long start, long end, List<SoakSample> samples) {
+        var memory = ManagementFactory.getMemoryMXBean();
+        var threads = ManagementFactory.getThreadMXBean();
+        var collectors = ManagementFactory.getGarbageCollectorMXBeans();
+        var lastTime = start;
+        var lastSent = 0L;
+        var lastReceived = 0L;
+        while(System.nanoTime() < end) {
+            try {
+                Thread.sleep(this.soakInterval);
+            } catch (InterruptedException e) {
+                return;
+            }
+            var now = System.nanoTime();
+            var sent = this.sent.sum();
+            var received = this.received.sum();
+            var seconds = (now - lastTime) / 1e9;
+            var latency = this.intervalLatency.getAndSet(new Histogram(LATENCY_PRECISION));
+            var gcCount = 0L;
+            var gcMillis = 0L;
+            for(var collector : collectors) {
+                gcCount += Math.max(0, collector.getCollectionCount());
+                gcMillis += Math.max(0, collector.getCollectionTime());
+            }
+            var heap = memory.getHeapMemoryUsage();
+            var connected = (int) clients.stream().filter(client -> !client.client.socket.isClosed()).count();
+            // ThreadMXBean only sees platform threads. A connected client's reader runs until its socket closes.
+            var liveSenders = (int) senders.stream().filter(Thread::isAlive).count();
+            var sample = new SoakSample(
+                Duration.ofNanos(now - start),
+                connected,
+                sent,
+                received,
+                this.outstanding.get(),
+                (sent - lastSent) / seconds,
+                (received - lastReceived) / seconds,
+                latency.percentile(99),
+                latency.max(),
+                heap.getUsed(),
+                heap.getMax(),
+                gcCount,
+                gcMillis,
+                threads.getThreadCount(),
+                liveSenders + connected
+            );
+            synchronized(samples) {
+                samples.add(sample);
+            }
+            this.soakListener.accept(sample);
+            lastTime = now;
+            lastSent = sent;
+            lastReceived = received;
+        }
+    }
+
+    private static void waitUntil(long deadline) {
+        long remaining;
+        while((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    private static void join(Thread thread) {
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
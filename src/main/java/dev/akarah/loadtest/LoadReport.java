@@ -0,0 +1,87 @@
+package dev.akarah.loadtest;
+
+import dev.akarah.metrics.Histogram;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What a {@link LoadGenerator} measured once it finished. Only packets scheduled after the warm-up are counted.
+ * <p>
+ * Latencies are measured from when each packet was scheduled to be sent, not when it actually was, so a client that
+ * fell behind its schedule counts the time its packets waited too.
+ * @param clients How many clients connected.
+ * @param failedConnections How many clients couldn't connect.
+ * @param sent How many packets were sent.
+ * @param received How many packets were received.
+ * @param lost How many packets never got a response before the drain timeout, or were never written.
+ * @param elapsed How long the load ran, without the warm-up.
+ * @param packets The measurements of each packet ID sent.
+ * @param samples The soak samples taken, if any.
+ */
+public record LoadReport(
+    int clients,
+    int failedConnections,
+    long sent,
+    long received,
+    long lost,
+    Duration elapsed,
+    Map<Integer, PacketStats> packets,
+    List<SoakSample> samples
+) {
+    /**
+     * @param sent How many packets of the ID were sent.
+     * @param latencyNanos How long they took to be written or answered, in nanoseconds.
+     */
+    public record PacketStats(long sent, Histogram latencyNanos) {
+    }
+
+    /**
+     * @return Packets sent per second.
+     */
+    public double sendRate() {
+        return this.sent * 1e9 / Math.max(1, this.elapsed.toNanos());
+    }
+
+    /**
+     * @return Packets received per second.
+     */
+    public double receiveRate() {
+        return this.received * 1e9 / Math.max(1, this.elapsed.toNanos());
+    }
+
+    @Override
+    public String toString() {
+        var builder = new StringBuilder(String.format(
+            "%d clients (%d failed), %d sent (%.0f/s), %d received (%.0f/s), %d lost in %.1f s%n",
+            this.clients,
+            this.failedConnections,
+            this.sent,
+            this.sendRate(),
+            this.received,
+            this.receiveRate(),
+            this.lost,
+            this.elapsed.toNanos() / 1e9
+        ));
+        builder.append(String.format(
+            "%8s %12s %10s %10s %10s %10s %10s %10s%n",
+            "id", "sent", "mean us", "p50 us", "p90 us", "p99 us", "p99.9 us", "max us"
+        ));
+        for(var entry : this.packets.entrySet()) {
+            var latency = entry.getValue().latencyNanos();
+            builder.append(String.format(
+                "%8d %12d %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+                entry.getKey(),
+                entry.getValue().sent(),
+                latency.mean() / 1e3,
+                latency.percentile(50) / 1e3,
+                latency.percentile(90) / 1e3,
+                latency.percentile(99) / 1e3,
+                latency.percentile(99.9) / 1e3,
+                latency.max() / 1e3
+            ));
+        }
+        return builder.toString();
+    }
+}
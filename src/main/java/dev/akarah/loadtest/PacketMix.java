@@ -0,0 +1,70 @@
+package dev.akarah.loadtest;
+
+import dev.akarah.format.Packet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+/**
+ * The packets a {@link LoadGenerator} sends, each picked at random by its weight, like 90 position updates for every 10
+ * chat messages.
+ */
+public final class PacketMix {
+    private final List<Supplier<? extends Packet<?, ?>>> packets = new ArrayList<>();
+    private long[] cumulativeWeights = new long[0];
+    private long totalWeight;
+
+    private PacketMix() {
+    }
+
+    public static PacketMix create() {
+        return new PacketMix();
+    }
+
+    /**
+     * @param packet Creates the packet to send. Called on each client's sending thread, so it must be thread-safe.
+     * @return A mix of only this packet.
+     */
+    public static PacketMix of(Supplier<? extends Packet<?, ?>> packet) {
+        return create().withPacket(1, packet);
+    }
+
+    /**
+     * @param weight How often to send the packet, relative to the weights of the others.
+     * @param packet Creates the packet to send. Called on each client's sending thread, so it must be thread-safe.
+     * @return The same mix with the packet added.
+     */
+    public PacketMix withPacket(int weight, Supplier<? extends Packet<?, ?>> packet) {
+        if(weight <= 0) {
+            throw new IllegalArgumentException("weight must be positive, got " + weight);
+        }
+        this.packets.add(packet);
+        this.totalWeight += weight;
+        this.cumulativeWeights = Arrays.copyOf(this.cumulativeWeights, this.packets.size());
+        this.cumulativeWeights[this.packets.size() - 1] = this.totalWeight;
+        return this;
+    }
+
+    boolean isEmpty() {
+        return this.packets.isEmpty();
+    }
+
+    /**
+     * @return A new packet, picked by weight.
+     */
+    Packet<?, ?> next() {
+        if(this.packets.size() == 1) {
+            return this.packets.getFirst().get();
+        }
+        var pick = ThreadLocalRandom.current().nextLong(this.totalWeight);
+        for(int i = 0; i < this.cumulativeWeights.length; i++) {
+            if(pick < this.cumulativeWeights[i]) {
+                return this.packets.get(i).get();
+            }
+        }
+        return this.packets.getLast().get();
+    }
+}
@@ -0,0 +1,64 @@
+package dev.akarah.loadtest;
+
+import java.time.Duration;
+
+/**
+ * The state of a {@link LoadGenerator}'s process, taken periodically while it runs. The JVM measurements cover the
+ * whole process, including the server if it runs in the same one.
+ * @param elapsed How long the load has been running, including warm-up.
+ * @param connectedClients How many clients are still connected.
+ * @param sent How many packets were sent so far.
+ * @param received How many packets were received so far.
+ * @param outstanding How many packets are still waiting to be written or, with responses, answered.
+ * @param sendRate Packets sent per second since the previous sample.
+ * @param receiveRate Packets received per second since the previous sample.
+ * @param p99LatencyNanos The 99th percentile latency since the previous sample.
+ * @param maxLatencyNanos The highest latency since the previous sample.
+ * @param heapUsed Bytes of heap in use.
+ * @param heapMax The most bytes the heap can grow to, or -1 if it has no limit.
+ * @param gcCount How many garbage collections ran so far.
+ * @param gcMillis How long the garbage collections took so far.
+ * @param platformThreads How many platform threads are alive.
+ * @param virtualThreads How many of the generator's own virtual threads are alive: a sender and a reader for every
+ *                       connected client. The JVM doesn't count virtual threads, so others in the process aren't.
+ */
+public record SoakSample(
+    Duration elapsed,
+    int connectedClients,
+    long sent,
+    long received,
+    long outstanding,
+    double sendRate,
+    double receiveRate,
+    long p99LatencyNanos,
+    long maxLatencyNanos,
+    long heapUsed,
+    long heapMax,
+    long gcCount,
+    long gcMillis,
+    int platformThreads,
+    int virtualThreads
+) {
+    @Override
+    public String toString() {
+        return String.format(
+            "[%s] clients=%d sent=%d (%.0f/s) received=%d (%.0f/s) outstanding=%d p99=%dus max=%dus"
+                + " heap=%dMiB/%dMiB gc=%d (%d ms) threads=%d+%dv",
+            Duration.ofSeconds(this.elapsed.toSeconds()).toString().substring(2).toLowerCase(),
+            this.connectedClients,
+            this.sent,
+            this.sendRate,
+            this.received,
+            this.receiveRate,
+            this.outstanding,
+            this.p99LatencyNanos / 1000,
+            this.maxLatencyNanos / 1000,
+            this.heapUsed >> 20,
+            this.heapMax < 0 ? -1 : this.heapMax >> 20,
+            this.gcCount,
+            this.gcMillis,
+            this.platformThreads,
+            this.virtualThreads
+        );
+    }
+}
@@ -0,0 +1,25 @@
+package dev.akarah.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Recorded by Java Flight Recorder for every received frame, lasting as long as the packet took to decode.
+ * Unless a recording enables it, it costs nothing measurable.
+ */
+@Name("dev.akarah.FrameReceived")
+@Label("Frame Received")
+@Category("Packet Protocols")
+@Description("A packet frame was received and decoded")
+public class FrameReceivedEvent extends Event {
+    @Label("Packet ID")
+    public int packetId;
+
+    @Label("Body Size")
+    @DataAmount
+    public int bodySize;
+}
@@ -0,0 +1,25 @@
+package dev.akarah.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Recorded by Java Flight Recorder for every encoded frame, lasting as long as the packet took to encode.
+ * Unless a recording enables it, it costs nothing measurable.
+ */
+@Name("dev.akarah.FrameSent")
+@Label("Frame Sent")
+@Category("Packet Protocols")
+@Description("A packet was encoded into a frame to be sent")
+public class FrameSentEvent extends Event {
+    @Label("Packet ID")
+    public int packetId;
+
+    @Label("Frame Size")
+    @DataAmount
+    public int frameSize;
+}
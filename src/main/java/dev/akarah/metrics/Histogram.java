@@ -0,0 +1,116 @@
+package dev.akarah.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non-negative values, such as durations in nanoseconds, with buckets per power of two that are split
+ * into sub-buckets, like HdrHistogram. Recording is lock-free and never allocates. Without sub-buckets, percentiles are
+ * accurate to within a factor of two, and each bit of precision halves that error.
+ */
+public final class Histogram {
+    private final int precision;
+    private final AtomicLongArray buckets;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Creates a histogram with a bucket per power of two.
+     */
+    public Histogram() {
+        this(0);
+    }
+
+    /**
+     * @param precision How many bits of each value to keep, from 0 to 16, splitting each power of two into
+     *                  {@code 2^precision} sub-buckets. 7 keeps percentiles within 1% of the real value.
+     */
+    public Histogram(int precision) {
+        if(precision < 0 || precision > 16) {
+            throw new IllegalArgumentException("precision must be between 0 and 16 bits, got " + precision);
+        }
+        this.precision = precision;
+        this.buckets = new AtomicLongArray((Long.SIZE + 1 - precision) << precision);
+    }
+
+    /**
+     * @param value The value to record. Negative values are recorded as 0.
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        this.buckets.incrementAndGet(this.indexOf(value));
+        this.count.incrementAndGet();
+        this.sum.addAndGet(value);
+        this.max.accumulateAndGet(value, Math::max);
+    }
+
+    public long count() {
+        return this.count.get();
+    }
+
+    public long max() {
+        return this.max.get();
+    }
+
+    /**
+     * @return The mean of every recorded value, or 0 if there are none.
+     */
+    public double mean() {
+        var count = this.count.get();
+        return count == 0 ? 0 : (double) this.sum.get() / count;
+    }
+
+    /**
+     * @param percentile The percentile, from 0 to 100.
+     * @return An upper bound of the value at the percentile, within the histogram's precision of the real value, or 0
+     * if there are none.
+     */
+    public long percentile(double percentile) {
+        var count = this.count.get();
+        if(count == 0) {
+            return 0;
+        }
+        var rank = (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100);
+        var seen = 0L;
+        for(int bucket = 0; bucket < this.buckets.length(); bucket++) {
+            seen += this.buckets.get(bucket);
+            if(seen >= Math.max(1, rank)) {
+                return Math.min(this.upperBound(bucket), this.max());
+            }
+        }
+        return this.max();
+    }
+
+    /**
+     * Values below {@code 2^precision} get a bucket each. Larger values are bucketed by their highest bit and the
+     * {@code precision} bits after it.
+     */
+    private int indexOf(long value) {
+        var highestBit = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        if(highestBit < this.precision) {
+            return (int) value;
+        }
+        var shift = highestBit - this.precision;
+        return ((shift + 1) << this.precision) + (int) ((value >>> shift) - (1L << this.precision));
+    }
+
+    private long upperBound(int bucket) {
+        var subBuckets = 1 << this.precision;
+        if(bucket < subBuckets) {
+            return bucket;
+        }
+        var shift = (bucket >>> this.precision) - 1;
+        var mantissa = (long) (bucket & (subBuckets - 1)) + subBuckets;
+        if(shift + this.precision + 1 >= Long.SIZE - 1) {
+            return Long.MAX_VALUE;
+        }
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + this.count() + " mean=" + Math.round(this.mean()) + " p50=" + this.percentile(50)
+            + " p99=" + this.percentile(99) + " max=" + this.max();
+    }
+}
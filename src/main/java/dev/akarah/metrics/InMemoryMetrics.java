@@ -0,0 +1,179 @@
+package dev.akarah.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps every measurement in memory, to be read back at any time, such as by a debug command or exported periodically.
+ * Counters are per packet ID, and durations go into {@link Histogram}s.
+ */
+public class InMemoryMetrics implements NetworkMetrics {
+    /**
+     * The measurements of one packet ID.
+     */
+    public static final class PacketMetrics {
+        final LongAdder packetsIn = new LongAdder();
+        final LongAdder bytesIn = new LongAdder();
+        final LongAdder packetsOut = new LongAdder();
+        final LongAdder bytesOut = new LongAdder();
+        public final Histogram decodeNanos = new Histogram();
+        public final Histogram encodeNanos = new Histogram();
+        public final Histogram handleNanos = new Histogram();
+
+        public long packetsIn() {
+            return this.packetsIn.sum();
+        }
+
+        public long bytesIn() {
+            return this.bytesIn.sum();
+        }
+
+        public long packetsOut() {
+            return this.packetsOut.sum();
+        }
+
+        public long bytesOut() {
+            return this.bytesOut.sum();
+        }
+
+        @Override
+        public String toString() {
+            return "in=" + this.packetsIn() + " (" + this.bytesIn() + " bytes) out=" + this.packetsOut()
+                + " (" + this.bytesOut() + " bytes) decode[" + this.decodeNanos + "] encode[" + this.encodeNanos
+                + "] handle[" + this.handleNanos + "]";
+        }
+    }
+
+    private final Map<Integer, PacketMetrics> packets = new ConcurrentHashMap<>();
+    private final AtomicLong activeConnections = new AtomicLong();
+    private final LongAdder totalConnections = new LongAdder();
+    private final AtomicLong maxOutboundDepth = new AtomicLong();
+    private final AtomicLong maxDispatchDepth = new AtomicLong();
+    private final AtomicLong buffersOutstanding = new AtomicLong();
+    private final AtomicLong bytesOutstanding = new AtomicLong();
+    private final AtomicLong maxBytesOutstanding = new AtomicLong();
+
+    /**
+     * @param packetId The ID of the packet.
+     * @return The measurements of that packet ID, empty if nothing was measured for it yet.
+     */
+    public PacketMetrics packet(int packetId) {
+        return this.packets.computeIfAbsent(packetId, id -> new PacketMetrics());
+    }
+
+    /**
+     * @return The measurements of every packet ID that had any, by ID.
+     */
+    public Map<Integer, PacketMetrics> packets() {
+        return new TreeMap<>(this.packets);
+    }
+
+    public long activeConnections() {
+        return this.activeConnections.get();
+    }
+
+    public long totalConnections() {
+        return this.totalConnections.sum();
+    }
+
+    /**
+     * @return The most packets seen waiting in a queue at once.
+     */
+    public long maxQueueDepth(Queue queue) {
+        return (queue == Queue.OUTBOUND ? this.maxOutboundDepth : this.maxDispatchDepth).get();
+    }
+
+    public long buffersOutstanding() {
+        return this.buffersOutstanding.get();
+    }
+
+    /**
+     * @return The combined capacity of buffers taken from metered pools and not given back yet.
+     */
+    public long bytesOutstanding() {
+        return this.bytesOutstanding.get();
+    }
+
+    public long maxBytesOutstanding() {
+        return this.maxBytesOutstanding.get();
+    }
+
+    @Override
+    public void connectionOpened() {
+        this.activeConnections.incrementAndGet();
+        this.totalConnections.increment();
+    }
+
+    @Override
+    public void connectionClosed() {
+        this.activeConnections.decrementAndGet();
+    }
+
+    @Override
+    public void packetReceived(int packetId, int frameBytes) {
+        var packet = this.packet(packetId);
+        packet.packetsIn.increment();
+        packet.bytesIn.add(frameBytes);
+    }
+
+    @Override
+    public void packetDecoded(int packetId, long nanos) {
+        this.packet(packetId).decodeNanos.record(nanos);
+    }
+
+    @Override
+    public void packetHandled(int packetId, long nanos) {
+        this.packet(packetId).handleNanos.record(nanos);
+    }
+
+    @Override
+    public void packetEncoded(int packetId, long nanos) {
+        this.packet(packetId).encodeNanos.record(nanos);
+    }
+
+    @Override
+    public void packetSent(int packetId, int frameBytes) {
+        var packet = this.packet(packetId);
+        packet.packetsOut.increment();
+        packet.bytesOut.add(frameBytes);
+    }
+
+    @Override
+    public void queueDepth(Queue queue, int depth) {
+        var max = queue == Queue.OUTBOUND ? this.maxOutboundDepth : this.maxDispatchDepth;
+        if(depth > max.get()) {
+            max.accumulateAndGet(depth, Math::max);
+        }
+    }
+
+    @Override
+    public void bufferAcquired(int capacity) {
+        this.buffersOutstanding.incrementAndGet();
+        var bytes = this.bytesOutstanding.addAndGet(capacity);
+        if(bytes > this.maxBytesOutstanding.get()) {
+            this.maxBytesOutstanding.accumulateAndGet(bytes, Math::max);
+        }
+    }
+
+    @Override
+    public void bufferReleased(int capacity) {
+        this.buffersOutstanding.decrementAndGet();
+        this.bytesOutstanding.addAndGet(-capacity);
+    }
+
+    @Override
+    public String toString() {
+        var builder = new StringBuilder()
+            .append("connections: ").append(this.activeConnections()).append(" active, ")
+            .append(this.totalConnections()).append(" total\n")
+            .append("queues: outbound max ").append(this.maxQueueDepth(Queue.OUTBOUND))
+            .append(", dispatch max ").append(this.maxQueueDepth(Queue.DISPATCH)).append('\n')
+            .append("buffers: ").append(this.buffersOutstanding()).append(" outstanding, ")
+            .append(this.bytesOutstanding()).append(" bytes, max ").append(this.maxBytesOutstanding()).append(" bytes\n");
+        this.packets().forEach((id, packet) -> builder.append("packet ").append(id).append(": ").append(packet).append('\n'));
+        return builder.toString();
+    }
+}
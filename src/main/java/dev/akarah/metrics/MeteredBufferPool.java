@@ -0,0 +1,42 @@
+package dev.akarah.metrics;
+
+import dev.akarah.util.BufferPool;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Wraps a {@link BufferPool}, reporting every buffer taken and given back to {@link NetworkMetrics}.
+ * Servers and clients with metrics wrap their pools with this on their own.
+ */
+public class MeteredBufferPool implements BufferPool {
+    private final BufferPool inner;
+    private final NetworkMetrics metrics;
+
+    public MeteredBufferPool(BufferPool inner, NetworkMetrics metrics) {
+        this.inner = inner;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return The pool wrapped with metrics, or the pool itself if the metrics are disabled or it is already metered.
+     */
+    public static BufferPool wrap(BufferPool pool, NetworkMetrics metrics) {
+        if(!metrics.isEnabled() || pool instanceof MeteredBufferPool) {
+            return pool;
+        }
+        return new MeteredBufferPool(pool, metrics);
+    }
+
+    @Override
+    public ByteBuffer acquire(int minCapacity) {
+        var buffer = this.inner.acquire(minCapacity);
+        this.metrics.bufferAcquired(buffer.capacity());
+        return buffer;
+    }
+
+    @Override
+    public void release(ByteBuffer buffer) {
+        this.metrics.bufferReleased(buffer.capacity());
+        this.inner.release(buffer);
+    }
+}
@@ -0,0 +1,99 @@
+package dev.akarah.metrics;
+
+/**
+ * Receives measurements from the networking layer: packets and bytes per packet ID, how long packets take to decode,
+ * encode and handle, queue depths, buffer pool usage and open connections.
+ * <p>
+ * Methods are called on hot paths, from many threads at once, so implementations must be thread-safe and quick.
+ * Every method does nothing by default, so implementations only override what they record. When
+ * {@link #isEnabled()} is false, as for {@link #none()}, nothing is measured at all, not even the time.
+ */
+public interface NetworkMetrics {
+    /**
+     * The queues whose depth is reported.
+     */
+    enum Queue {
+        /**
+         * Packets waiting to be encoded and written to a connection.
+         */
+        OUTBOUND,
+        /**
+         * Received packets waiting to be handled, for servers with a queueing {@code Dispatch}.
+         */
+        DISPATCH
+    }
+
+    /**
+     * @return Metrics that record nothing, and cost close to nothing. This is the default.
+     */
+    static NetworkMetrics none() {
+        return NoMetrics.INSTANCE;
+    }
+
+    /**
+     * @return Whether to measure anything. Checked once when a connection is set up.
+     */
+    default boolean isEnabled() {
+        return true;
+    }
+
+    default void connectionOpened() {
+    }
+
+    default void connectionClosed() {
+    }
+
+    /**
+     * @param packetId The ID of the received packet.
+     * @param frameBytes The size of its frame on the wire, including the length prefix.
+     */
+    default void packetReceived(int packetId, int frameBytes) {
+    }
+
+    /**
+     * @param packetId The ID of the decoded packet.
+     * @param nanos How long decoding took.
+     */
+    default void packetDecoded(int packetId, long nanos) {
+    }
+
+    /**
+     * @param packetId The ID of the handled packet.
+     * @param nanos How long its handlers and listeners took together.
+     */
+    default void packetHandled(int packetId, long nanos) {
+    }
+
+    /**
+     * @param packetId The ID of the encoded packet.
+     * @param nanos How long encoding took. A broadcast packet is only encoded once.
+     */
+    default void packetEncoded(int packetId, long nanos) {
+    }
+
+    /**
+     * @param packetId The ID of the sent packet.
+     * @param frameBytes The size of its frame on the wire, including the length prefix.
+     */
+    default void packetSent(int packetId, int frameBytes) {
+    }
+
+    /**
+     * @param queue The queue a packet was just added to.
+     * @param depth The amount of packets in it, including the new one.
+     */
+    default void queueDepth(Queue queue, int depth) {
+    }
+
+    /**
+     * @param capacity The capacity of a buffer taken from a {@link MeteredBufferPool}.
+     */
+    default void bufferAcquired(int capacity) {
+    }
+
+    /**
+     * @param capacity The capacity of a buffer given back to a {@link MeteredBufferPool}.
+     */
+    default void bufferReleased(int capacity) {
+    }
+}
@@ -0,0 +1,13 @@
+package dev.akarah.metrics;
+
+final class NoMetrics implements NetworkMetrics {
+    static final NoMetrics INSTANCE = new NoMetrics();
+
+    private NoMetrics() {
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return false;
+    }
+}
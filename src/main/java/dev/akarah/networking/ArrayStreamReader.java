@@ -0,0 +1,179 @@
+package dev.akarah.networking;
+
+import dev.akarah.format.CodecContext;
+import dev.akarah.format.PacketFormat;
+
+import java.nio.BufferUnderflowException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decodes the streamed frames of one connection, handing each array element to the stream's subscriber as soon as its
+ * bytes have arrived. Elements are only decoded while the subscriber has requested more, otherwise the connection
+ * stops reading until it does.
+ * <p>
+ * Subscribers are called on the connection's reading thread. An element that is cut off by the end of the bytes
+ * received so far is decoded again once more arrive, so the codec context is rolled back in between.
+ *
+ * @param <C> The connection the streams come from.
+ */
+final class ArrayStreamReader<C> {
+    private final ArrayStreams<C> streams;
+    private final C connection;
+    private final CodecContext context;
+    private final Runnable resume;
+    private Stream current;
+
+    /**
+     * @param resume Called from any thread once a paused stream's subscriber requests more elements or cancels.
+     */
+    ArrayStreamReader(ArrayStreams<C> streams, C connection, CodecContext context, Runnable resume) {
+        this.streams = streams;
+        this.connection = connection;
+        this.context = context;
+        this.resume = resume;
+    }
+
+    /**
+     * @return Whether the current stream is waiting for its subscriber to request more elements.
+     */
+    boolean isPaused() {
+        var stream = this.current;
+        return stream != null && !stream.cancelled && stream.demand.get() == 0;
+    }
+
+    /**
+     * Decodes as many elements out of the reader's current chunk as are complete and requested.
+     * @return Whether to keep reading. If not, reading is paused until the subscriber requests more.
+     */
+    boolean read(FrameReader reader) {
+        var chunk = reader.body();
+        var start = chunk.position();
+        if(reader.isStreamStart()) {
+            this.current = new Stream(this.streams.registration(reader.packetId()));
+            this.current.subscriber.onSubscribe(this.current);
+        }
+        var stream = this.current;
+
+        var needsMoreBytes = false;
+        var keepReading = true;
+        var previous = CodecContext.bind(this.context);
+        try {
+            if(stream.remaining < 0) {
+                if(chunk.remaining() < Short.BYTES) {
+                    needsMoreBytes = true;
+                } else {
+                    stream.remaining = Short.toUnsignedInt(chunk.getShort());
+                }
+            }
+            while(stream.remaining > 0 && !needsMoreBytes) {
+                if(!stream.cancelled && stream.demand.get() == 0) {
+                    // Checked again after saying so, as the subscriber only resumes reading that it sees waiting.
+                    stream.waiting = true;
+                    if(!stream.cancelled && stream.demand.get() == 0) {
+                        keepReading = false;
+                        break;
+                    }
+                    stream.waiting = false;
+                }
+                var elementStart = chunk.position();
+                Object element;
+                this.context.limitElements(this.streams.maxElements());
+                this.context.begin();
+                try {
+                    element = stream.format.read(chunk);
+                    this.context.commit();
+                } catch (BufferUnderflowException e) {
+                    this.context.rollback();
+                    chunk.position(elementStart);
+                    needsMoreBytes = true;
+                    break;
+                } catch (RuntimeException e) {
+                    this.context.rollback();
+                    throw e;
+                }
+                stream.remaining--;
+                if(!stream.cancelled) {
+                    stream.demand.getAndUpdate(demand -> demand == Long.MAX_VALUE ? demand : demand - 1);
+                    stream.subscriber.onNext(element);
+                }
+            }
+        } finally {
+            CodecContext.bind(previous);
+        }
+        if(stream.error != null) {
+            stream.subscriber.onError(stream.error);
+            stream.error = null;
+        }
+
+        if(needsMoreBytes && reader.streamRemaining() == chunk.limit() - start) {
+            throw new RuntimeException("array element runs past the end of its frame");
+        }
+        reader.consume(chunk.position() - start, needsMoreBytes);
+        if(stream.remaining == 0) {
+            if(reader.isStreamed()) {
+                throw new RuntimeException("array frame has " + reader.streamRemaining() + " bytes after its last element");
+            }
+            this.current = null;
+            if(!stream.cancelled) {
+                stream.subscriber.onComplete();
+            }
+        }
+        return keepReading;
+    }
+
+    /**
+     * Fails the current stream, if any, as the connection closed before it ended.
+     */
+    void close(Throwable cause) {
+        var stream = this.current;
+        this.current = null;
+        if(stream != null && !stream.cancelled) {
+            stream.cancelled = true;
+            stream.subscriber.onError(cause);
+        }
+    }
+
+    private final class Stream implements Flow.Subscription {
+        final Flow.Subscriber<Object> subscriber;
+        final PacketFormat<Object> format;
+        final AtomicLong demand = new AtomicLong();
+        volatile boolean cancelled;
+        volatile Throwable error;
+        volatile boolean waiting;
+        int remaining = -1;
+
+        @SuppressWarnings("unchecked")
+        Stream(ArrayStreams.Registration<C> registration) {
+            this.subscriber = (Flow.Subscriber<Object>) registration.subscribers().apply(ArrayStreamReader.this.connection);
+            this.format = (PacketFormat<Object>) registration.elementFormat();
+        }
+
+        @Override
+        public void request(long n) {
+            if(n <= 0) {
+                // Delivered by the reading thread, so the subscriber is never called from two threads at once.
+                this.error = new IllegalArgumentException("requested " + n + " elements, must be positive");
+                this.cancel();
+                return;
+            }
+            var previous = this.demand.getAndAccumulate(n, (demand, more) -> demand + more < 0 ? Long.MAX_VALUE : demand + more);
+            if(previous == 0) {
+                this.wake();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            this.cancelled = true;
+            this.wake();
+        }
+
+        private void wake() {
+            if(this.waiting) {
+                this.waiting = false;
+                ArrayStreamReader.this.resume.run();
+            }
+        }
+    }
+}
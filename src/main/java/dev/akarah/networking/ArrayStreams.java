@@ -0,0 +1,92 @@
+package dev.akarah.networking;
+
+import dev.akarah.format.Packet;
+import dev.akarah.format.PacketFormat;
+import dev.akarah.format.PacketFormats;
+import dev.akarah.protocol.Protocol;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Flow;
+import java.util.function.Function;
+
+/**
+ * Array packets received as a stream of elements, registered by packet class and compiled per packet ID when a server
+ * or client starts, like {@link PacketHandlers}. Each connection reads them with its own {@link ArrayStreamReader}.
+ *
+ * @param <C> What subscriber factories are given, the connection the stream comes from.
+ */
+final class ArrayStreams<C> {
+    record Registration<C>(
+        Class<?> type,
+        PacketFormat<?> elementFormat,
+        Function<C, ? extends Flow.Subscriber<?>> subscribers
+    ) {
+    }
+
+    private final List<Registration<C>> registrations = new ArrayList<>();
+    private Protocol protocol;
+    private Registration<C>[] byIndex;
+
+    <P extends Packet<?, ?>, T> void add(
+        Class<P> type,
+        PacketFormat<T> elementFormat,
+        Function<C, ? extends Flow.Subscriber<? super T>> subscribers
+    ) {
+        if(this.byIndex != null) {
+            throw new IllegalStateException("array streams can't be added after starting");
+        }
+        this.registrations.add(new Registration<>(type, elementFormat, subscribers));
+    }
+
+    /**
+     * Resolves every registration to the packet IDs it applies to.
+     * @throws IllegalArgumentException If a registration's class matches no packet in the protocol, or a matching
+     * packet's only argument isn't an array of the registration's element format.
+     */
+    void compile(Protocol protocol) {
+        @SuppressWarnings("unchecked")
+        var byIndex = (Registration<C>[]) new Registration<?>[protocol.indexCount()];
+        for(var registration : this.registrations) {
+            var expected = new PacketFormats.NewProtocol<>(new PacketFormats.SpecifiedArray<>(registration.elementFormat()));
+            var matched = false;
+            for(var id : protocol.packetIds()) {
+                var packet = protocol.getPacketDefaultFromId(id);
+                if(!registration.type().isAssignableFrom(packet.getClass())) {
+                    continue;
+                }
+                if(!packet.specification().getFormat().equals(expected)) {
+                    throw new IllegalArgumentException(
+                        "packet " + id + " is not only an array of " + registration.elementFormat());
+                }
+                byIndex[protocol.indexOf(id)] = registration;
+                matched = true;
+            }
+            if(!matched) {
+                throw new IllegalArgumentException("no packet in the protocol is a " + registration.type().getName());
+            }
+        }
+        this.protocol = protocol;
+        this.byIndex = byIndex;
+    }
+
+    boolean isEmpty() {
+        return this.registrations.isEmpty();
+    }
+
+    /**
+     * @return How many collection elements each streamed element can have, see {@link Protocol#maxElements()}.
+     */
+    int maxElements() {
+        return this.protocol.maxElements();
+    }
+
+    boolean isStreamed(int packetId) {
+        return this.registration(packetId) != null;
+    }
+
+    Registration<C> registration(int packetId) {
+        var index = this.protocol.indexOf(packetId);
+        return index < 0 ? null : this.byIndex[index];
+    }
+}
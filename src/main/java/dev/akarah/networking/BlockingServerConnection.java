@@ -0,0 +1,117 @@
+package dev.akarah.networking;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A connection served by its own virtual thread, doing blocking reads on the socket.
+ * Sent packets are written by a {@link StreamWriter}.
+ */
+class BlockingServerConnection extends ServerConnection {
+    static final int FRAME_BUFFER_SIZE = 8192;
+
+    private final InputStream inputStream;
+    private final FrameReader frameReader;
+    private final StreamWriter writer;
+    private final ReadTimeout readTimeout;
+    private Thread readThread;
+
+    BlockingServerConnection(Socket socket, ProtocolServer server) throws IOException {
+        super(socket, server);
+        this.inputStream = socket.getInputStream();
+        var encoder = new FrameEncoder(server.bufferPool, FRAME_BUFFER_SIZE, server.protocol.compression(), this.metrics);
+        if(this.capture != null) {
+            encoder.captureTo(this.capture, this.captureId);
+        }
+        this.writer = new StreamWriter(
+            socket.getOutputStream(),
+            encoder,
+            server.protocol,
+            server.bufferPool,
+            server.flushPolicy,
+            server.writeWatermarks,
+            this::notifyWritability,
+            this::disconnect
+        );
+        this.outboundQueue = this.writer.queue;
+        this.frameReader = new FrameReader(server.bufferPool, FRAME_BUFFER_SIZE, server.protocol);
+        if(this.arrayStreamReader != null) {
+            this.frameReader.streamIds(server.arrayStreams::isStreamed);
+        }
+        this.readTimeout = ReadTimeout.of(server.idleTimeout, server.readTimeout);
+        this.readThread = Thread.ofVirtual().unstarted(this::start);
+        this.readThread.start();
+    }
+
+    public void start() {
+        try(this.socket) {
+            this.notifyConnected();
+            while(this.read()) {
+                while(this.frameReader.nextFrame()) {
+                    if(!this.handleFrame(this.frameReader)) {
+                        while(this.isReadPaused() && !this.socket.isClosed()) {
+                            LockSupport.park(this);
+                        }
+                        if(this.socket.isClosed()) {
+                            return;
+                        }
+                        if(this.readTimeout != null) {
+                            this.readTimeout.reset(System.nanoTime());
+                        }
+                    }
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            // The peer took too long, closing the socket is all there is to do.
+        } catch (IOException e) {
+            if(!this.socket.isClosed()) {
+                e.printStackTrace();
+            }
+        } finally {
+            this.frameReader.close();
+            this.outboundQueue.close(new SocketException("connection closed"));
+            this.notifyDisconnected();
+        }
+    }
+
+    /**
+     * Reads from the socket, giving up once the read or idle timeout passes.
+     */
+    private boolean read() throws IOException {
+        if(this.readTimeout != null) {
+            var remaining = this.readTimeout.remainingNanos(this.frameReader, System.nanoTime());
+            if(remaining <= 0) {
+                throw new SocketTimeoutException("connection timed out");
+            }
+            this.socket.setSoTimeout(remaining == Long.MAX_VALUE
+                ? 0
+                : (int) Math.min(Integer.MAX_VALUE, TimeUnit.NANOSECONDS.toMillis(remaining + 999_999)));
+        }
+        return this.frameReader.readFrom(this.inputStream);
+    }
+
+    @Override
+    public void disconnect() {
+        try {
+            this.socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        LockSupport.unpark(this.readThread);
+    }
+
+    @Override
+    public void flush() {
+        this.writer.flush();
+    }
+
+    @Override
+    void resumeReading() {
+        LockSupport.unpark(this.readThread);
+    }
+}
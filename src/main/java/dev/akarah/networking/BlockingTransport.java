@@ -0,0 +1,25 @@
+package dev.akarah.networking;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+
+class BlockingTransport implements ServerTransport {
+    @Override
+    public void start(ProtocolServer server) {
+        try(var socket = new ServerSocket()) {
+            if(server.receiveBufferSize > 0) {
+                // Accepted sockets inherit this, and sizes above 64 KiB only take effect if set before binding.
+                socket.setReceiveBufferSize(server.receiveBufferSize);
+            }
+            socket.bind(new InetSocketAddress(server.port));
+            while(true) {
+                var client = socket.accept();
+                server.configure(client);
+                new BlockingServerConnection(client, server);
+            }
+        } catch (IOException exception) {
+            exception.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package dev.akarah.networking;
+
+import dev.akarah.capture.TrafficCapture;
+import dev.akarah.format.Packet;
+import dev.akarah.protocol.PacketSpecification;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * A set of connections that packets can be broadcast to, like a chat room. Connections leave every group they're in
+ * when they close. {@link ProtocolServer#connections()} is the group of every open connection.
+ */
+public class ConnectionGroup {
+    public final String name;
+    private final ProtocolServer server;
+    private final Set<ServerConnection> members = ConcurrentHashMap.newKeySet();
+    private FrameEncoder encoder;
+
+    ConnectionGroup(ProtocolServer server, String name) {
+        this.server = server;
+        this.name = name;
+    }
+
+    /**
+     * @param connection The connection to add.
+     * @return Whether the connection was added, which it isn't if it was already in the group or is closed.
+     */
+    public boolean add(ServerConnection connection) {
+        if(!this.members.add(connection)) {
+            return false;
+        }
+        connection.groups.add(this);
+        // Closing removes the connection from the groups it knows about, which might not have included this one yet.
+        if(connection.closed) {
+            this.remove(connection);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param connection The connection to remove.
+     * @return Whether the connection was in the group.
+     */
+    public boolean remove(ServerConnection connection) {
+        connection.groups.remove(this);
+        return this.members.remove(connection);
+    }
+
+    /**
+     * @return A live, unmodifiable view of the connections in the group.
+     */
+    public Set<ServerConnection> members() {
+        return Collections.unmodifiableSet(this.members);
+    }
+
+    public int size() {
+        return this.members.size();
+    }
+
+    /**
+     * Sends a packet to every connection in the group, see {@link #broadcast(Packet, Predicate)}.
+     * @param packet The packet to send.
+     * @return The amount of connections the packet was queued on.
+     */
+    public int broadcast(Packet<?, ?> packet) {
+        return this.broadcast(packet, connection -> true);
+    }
+
+    /**
+     * Sends a packet to the connections in the group that pass a filter.
+     * <p>
+     * The packet is encoded once, and every connection is queued the same read-only frame, which goes back to the
+     * server's buffer pool once the last connection has written it. Packets using per-connection state, like interned
+     * strings, can't be shared, and are encoded for each connection instead. Broadcasts to the same group are encoded
+     * one at a time, with an encoder the group keeps.
+     * @param packet The packet to send.
+     * @param filter Decides which connections get the packet.
+     * @return The amount of connections the packet was queued on.
+     */
+    public int broadcast(Packet<?, ?> packet, Predicate<ServerConnection> filter) {
+        var metrics = this.server.metrics;
+        var startTime = metrics.isEnabled() ? System.nanoTime() : 0;
+        var spec = this.server.protocol.specificationFor(packet);
+        var shared = this.encodeShared(packet, spec);
+        var sent = 0;
+        if(shared == null) {
+            for(var connection : this.members) {
+                if(filter.test(connection)) {
+                    connection.sendPacket(packet);
+                    sent++;
+                }
+            }
+            return sent;
+        }
+
+        if(metrics.isEnabled()) {
+            metrics.packetEncoded(spec.getPacketId(), System.nanoTime() - startTime);
+        }
+        var frameSize = shared.length();
+        var capture = this.server.capture;
+        // The shared frame may be compressed, so the body is encoded again for the capture, and recorded for every recipient.
+        var body = capture == null ? null : encodeBody(packet, spec);
+        try {
+            for(var connection : this.members) {
+                if(filter.test(connection)) {
+                    shared.retain();
+                    connection.outboundQueue.add(shared);
+                    connection.reportOutboundDepth();
+                    if(capture != null) {
+                        capture.record(connection.captureId, TrafficCapture.Direction.OUTBOUND, spec.getPacketId(), body);
+                    }
+                    if(metrics.isEnabled()) {
+                        metrics.packetSent(spec.getPacketId(), frameSize);
+                    }
+                    sent++;
+                }
+            }
+        } finally {
+            shared.release();
+        }
+        return sent;
+    }
+
+    /**
+     * Encodes a packet with the group's encoder, which is kept between broadcasts so its buffers and deflater are
+     * reused.
+     * @return The frame, or null if the packet uses per-connection state and can't be shared.
+     */
+    private synchronized SharedFrame encodeShared(Packet<?, ?> packet, PacketSpecification<?> spec) {
+        if(this.encoder == null) {
+            this.encoder = new FrameEncoder(
+                this.server.bufferPool,
+                BlockingServerConnection.FRAME_BUFFER_SIZE,
+                this.server.protocol.compression()
+            );
+        }
+        var encoder = this.encoder;
+        ByteBuffer frame;
+        try {
+            frame = encoder.encode(packet, spec);
+        } finally {
+            // State left in the encoder's context would leak into the next broadcast, so it gets a fresh encoder.
+            if(encoder.usesContext()) {
+                encoder.close();
+                this.encoder = null;
+            }
+        }
+        if(this.encoder == null) {
+            return null;
+        }
+        return new SharedFrame(encoder.detach(), frame, this.server.bufferPool);
+    }
+
+    private static ByteBuffer encodeBody(Packet<?, ?> packet, PacketSpecification<?> spec) {
+        var data = packet.toFormat();
+        var fixedSize = spec.fixedSize();
+        var body = ByteBuffer.allocate(fixedSize >= 0 ? fixedSize : spec.getFormat().lengthFromObject(data));
+        spec.getFormat().writeFromObject(body, data);
+        return body.flip();
+    }
+}
@@ -0,0 +1,83 @@
+package dev.akarah.networking;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Decides which thread a {@link ProtocolServer} runs packet handlers and listeners on, after a packet is decoded.
+ * <p>
+ * Running them {@link #inline()} is cheapest, but a slow handler then holds up reading from its connection, or from
+ * every connection of an event loop with {@link ServerTransport#selector(int)}. The other modes hand packets to virtual
+ * threads through a bounded queue per connection, and an {@link Overflow} policy decides what happens once it's full.
+ */
+public final class Dispatch {
+    /**
+     * What to do with a packet when its connection's dispatch queue is full.
+     */
+    public enum Overflow {
+        /**
+         * Stop reading from the connection until the queue has room again, so the client is slowed down by TCP.
+         */
+        BLOCK,
+        /**
+         * Throw the packet away.
+         */
+        DROP,
+        /**
+         * Close the connection.
+         */
+        DISCONNECT
+    }
+
+    enum Mode {
+        INLINE,
+        SHARED,
+        ORDERED
+    }
+
+    private static final ExecutorService SHARED_EXECUTOR = Executors.newVirtualThreadPerTaskExecutor();
+
+    final Mode mode;
+    final int queueCapacity;
+    final Overflow overflow;
+
+    private Dispatch(Mode mode, int queueCapacity, Overflow overflow) {
+        if(queueCapacity < 1) {
+            throw new IllegalArgumentException("queue capacity must be at least 1, got " + queueCapacity);
+        }
+        this.mode = mode;
+        this.queueCapacity = queueCapacity;
+        this.overflow = overflow;
+    }
+
+    /**
+     * @return A dispatch running handlers on the thread that read the packet, one packet at a time.
+     */
+    public static Dispatch inline() {
+        return new Dispatch(Mode.INLINE, 1, Overflow.BLOCK);
+    }
+
+    /**
+     * @param queueCapacity The most packets of one connection that can be waiting for or running their handlers.
+     * @param overflow What to do with packets once a connection has that many.
+     * @return A dispatch running every packet's handlers on its own virtual thread, so packets of the same connection
+     * can be handled at the same time and in any order.
+     */
+    public static Dispatch shared(int queueCapacity, Overflow overflow) {
+        return new Dispatch(Mode.SHARED, queueCapacity, overflow);
+    }
+
+    /**
+     * @param queueCapacity The most packets of one connection that can be waiting for or running their handlers.
+     * @param overflow What to do with packets once a connection has that many.
+     * @return A dispatch running each connection's handlers on a virtual thread, one packet at a time in the order they
+     * were received. Different connections are still handled at the same time.
+     */
+    public static Dispatch ordered(int queueCapacity, Overflow overflow) {
+        return new Dispatch(Mode.ORDERED, queueCapacity, overflow);
+    }
+
+    void executeShared(Runnable task) {
+        SHARED_EXECUTOR.execute(task);
+    }
+}
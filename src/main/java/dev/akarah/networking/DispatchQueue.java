@@ -0,0 +1,103 @@
+package dev.akarah.networking;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The packets of one connection waiting for their handlers, for every {@link Dispatch} except inline.
+ * <p>
+ * With {@link Dispatch.Overflow#BLOCK}, {@link #submit(Runnable)} tells the connection to stop reading once the queue
+ * is full, and {@link ServerConnection#resumeReading()} is called when a handler finishes and makes room.
+ */
+final class DispatchQueue {
+    private final Dispatch dispatch;
+    private final ServerConnection connection;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicBoolean paused = new AtomicBoolean();
+    private final Queue<Runnable> ordered = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    DispatchQueue(Dispatch dispatch, ServerConnection connection) {
+        this.dispatch = dispatch;
+        this.connection = connection;
+    }
+
+    /**
+     * @param task Runs the handlers of a packet.
+     * @return Whether the connection can keep reading. If not, it is either paused, see {@link #isPaused()},
+     * or being disconnected.
+     */
+    boolean submit(Runnable task) {
+        var overflow = this.dispatch.overflow;
+        if(overflow != Dispatch.Overflow.BLOCK && this.pending.get() >= this.dispatch.queueCapacity) {
+            if(overflow == Dispatch.Overflow.DROP) {
+                return true;
+            }
+            this.connection.disconnect();
+            return false;
+        }
+
+        var pending = this.pending.incrementAndGet();
+        if(this.dispatch.mode == Dispatch.Mode.ORDERED) {
+            this.ordered.add(task);
+            this.scheduleDrain();
+        } else {
+            this.dispatch.executeShared(() -> this.run(task));
+        }
+
+        if(overflow == Dispatch.Overflow.BLOCK && pending >= this.dispatch.queueCapacity) {
+            this.paused.set(true);
+            // A handler may have finished between the increment and setting the flag, without seeing it.
+            return this.pending.get() < this.dispatch.queueCapacity && this.paused.compareAndSet(true, false);
+        }
+        return true;
+    }
+
+    /**
+     * @return Whether reading is paused until {@link ServerConnection#resumeReading()} is called.
+     */
+    boolean isPaused() {
+        return this.paused.get();
+    }
+
+    /**
+     * @return The amount of packets submitted whose handlers haven't finished yet.
+     */
+    int size() {
+        return this.pending.get();
+    }
+
+    private void scheduleDrain() {
+        if(this.draining.compareAndSet(false, true)) {
+            Thread.ofVirtual().start(this::drain);
+        }
+    }
+
+    private void drain() {
+        while(true) {
+            Runnable task;
+            while((task = this.ordered.poll()) != null) {
+                this.run(task);
+            }
+            this.draining.set(false);
+            // Check again, in case a packet was queued after polling but before the flag was cleared.
+            if(this.ordered.isEmpty() || !this.draining.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    private void run(Runnable task) {
+        try {
+            task.run();
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            if(this.pending.decrementAndGet() < this.dispatch.queueCapacity && this.paused.compareAndSet(true, false)) {
+                this.connection.resumeReading();
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package dev.akarah.networking;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A platform thread owning a {@link Selector}, serving every connection registered to it.
+ * Anything touching a connection's selection key must run on this thread, see {@link #execute(Runnable)}.
+ */
+class EventLoop implements Runnable {
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>(Comparator.comparingLong(Timer::deadline));
+    private final Thread thread;
+
+    EventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = Thread.ofPlatform().name(name).daemon(true).start(this);
+    }
+
+    void register(SelectorServerConnection connection) {
+        this.execute(() -> {
+            try {
+                connection.key = connection.channel.register(this.selector, SelectionKey.OP_READ, connection);
+                connection.notifyConnected();
+                connection.checkTimeout();
+            } catch (Exception e) {
+                e.printStackTrace();
+                connection.close();
+            }
+        });
+    }
+
+    /**
+     * Runs a task on this event loop, waking it up if it is waiting for I/O.
+     */
+    void execute(Runnable task) {
+        this.tasks.add(task);
+        if(Thread.currentThread() != this.thread) {
+            this.selector.wakeup();
+        }
+    }
+
+    /**
+     * Runs a task on this event loop once a delay has passed. Delays are rounded up to whole milliseconds.
+     */
+    void schedule(Runnable task, long delayNanos) {
+        var timer = new Timer(System.nanoTime() + delayNanos, task);
+        if(Thread.currentThread() == this.thread) {
+            this.timers.add(timer);
+        } else {
+            this.execute(() -> this.timers.add(timer));
+        }
+    }
+
+    private record Timer(long deadline, Runnable task) {
+    }
+
+    /**
+     * Runs a task or timer, so one that throws doesn't stop the loop and every connection on it.
+     */
+    private static void runTask(Runnable task) {
+        try {
+            task.run();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void run() {
+        while(true) {
+            Runnable task;
+            while((task = this.tasks.poll()) != null) {
+                runTask(task);
+            }
+
+            var now = System.nanoTime();
+            while(!this.timers.isEmpty() && this.timers.peek().deadline() - now <= 0) {
+                runTask(this.timers.poll().task());
+            }
+
+            try {
+                if(!this.tasks.isEmpty()) {
+                    this.selector.selectNow();
+                } else if(!this.timers.isEmpty()) {
+                    var wait = this.timers.peek().deadline() - System.nanoTime();
+                    this.selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait + 999_999)));
+                } else {
+                    this.selector.select();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+
+            var keys = this.selector.selectedKeys();
+            for(var key : keys) {
+                var connection = (SelectorServerConnection) key.attachment();
+                connection.handle(key);
+            }
+            keys.clear();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package dev.akarah.networking;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when frames waiting to be sent on a connection are written to the socket.
+ * <p>
+ * Frames are always gathered into one buffer and written together when several are waiting at once. A batching policy
+ * also holds frames back for a short while to gather more of them, trading a little latency for fewer system calls
+ * and TCP segments when many small packets are sent. Held frames are written once they add up to the size threshold,
+ * once the oldest has waited for the delay, or on {@link ServerConnection#flush()} and {@link ProtocolClient#flush()}.
+ */
+public final class FlushPolicy {
+    static final int DEFAULT_SIZE_THRESHOLD = 8192;
+
+    final int sizeThreshold;
+    final long delayNanos;
+
+    private FlushPolicy(int sizeThreshold, long delayNanos) {
+        if(sizeThreshold < 1) {
+            throw new IllegalArgumentException("size threshold must be positive, got " + sizeThreshold);
+        }
+        if(delayNanos < 0) {
+            throw new IllegalArgumentException("delay can't be negative, got " + delayNanos);
+        }
+        this.sizeThreshold = sizeThreshold;
+        this.delayNanos = delayNanos;
+    }
+
+    /**
+     * @return A policy writing frames as soon as there are no more waiting to be gathered.
+     */
+    public static FlushPolicy immediate() {
+        return new FlushPolicy(DEFAULT_SIZE_THRESHOLD, 0);
+    }
+
+    /**
+     * @param sizeThreshold The amount of bytes after which held frames are written right away.
+     * @param delayMicros The longest a frame is held for before being written. The selector transport rounds this up
+     *                    to whole milliseconds.
+     * @return A policy holding frames back to gather more of them.
+     */
+    public static FlushPolicy batched(int sizeThreshold, long delayMicros) {
+        return new FlushPolicy(sizeThreshold, TimeUnit.MICROSECONDS.toNanos(delayMicros));
+    }
+
+    /**
+     * @param sizeThreshold The amount of bytes after which held frames are written right away.
+     * @return A policy holding frames back until they reach the size threshold or are flushed explicitly.
+     */
+    public static FlushPolicy explicit(int sizeThreshold) {
+        return new FlushPolicy(sizeThreshold, Long.MAX_VALUE);
+    }
+
+    boolean holdsFrames() {
+        return this.delayNanos > 0;
+    }
+}
@@ -0,0 +1,247 @@
+package dev.akarah.networking;
+
+import dev.akarah.capture.TrafficCapture;
+import dev.akarah.format.CodecContext;
+import dev.akarah.format.Packet;
+import dev.akarah.metrics.FrameSentEvent;
+import dev.akarah.metrics.NetworkMetrics;
+import dev.akarah.protocol.Compression;
+import dev.akarah.protocol.PacketSpecification;
+import dev.akarah.util.BufferPool;
+import dev.akarah.util.VarIntStreamUtils;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes packets into complete frames, the counterpart of {@link FrameReader}.
+ * <p>
+ * The packet ID and body are written in a single pass after room reserved for the length prefix,
+ * which is filled in afterwards once the length is known. The frame is written into a buffer the encoder takes from a
+ * {@link BufferPool}, so an encoder must not be shared between threads, and a frame is only valid until the encoder
+ * is used again. {@link #release()} gives the buffer back between bursts of packets.
+ * <p>
+ * Each encoder has the {@link CodecContext} of its connection's outbound direction, bound while a packet is encoded.
+ * With {@link Compression}, large bodies are deflated into a second pooled buffer, with a {@link Deflater} the encoder
+ * keeps for its whole life.
+ */
+public class FrameEncoder {
+    /**
+     * The largest a length prefix can be, as frames are at most {@link Integer#MAX_VALUE} bytes long.
+     */
+    static final int MAX_PREFIX_SIZE = 5;
+
+    private final BufferPool pool;
+    private final int initialCapacity;
+    private final Compression compression;
+    private final NetworkMetrics metrics;
+    private final boolean metricsEnabled;
+    private final CodecContext context = CodecContext.outbound();
+    private ByteBuffer buffer;
+    private Deflater deflater;
+    private TrafficCapture capture;
+    private long captureConnection;
+
+    /**
+     * @param pool The pool to take the encoder's buffer from.
+     * @param initialCapacity The starting size of the encoder's buffer, it grows when a packet doesn't fit.
+     */
+    public FrameEncoder(BufferPool pool, int initialCapacity) {
+        this(pool, initialCapacity, Compression.none());
+    }
+
+    /**
+     * @param pool The pool to take the encoder's buffers from.
+     * @param initialCapacity The starting size of the encoder's buffer, it grows when a packet doesn't fit.
+     * @param compression Which frames to compress, usually the protocol's.
+     */
+    public FrameEncoder(BufferPool pool, int initialCapacity, Compression compression) {
+        this(pool, initialCapacity, compression, NetworkMetrics.none());
+    }
+
+    /**
+     * @param pool The pool to take the encoder's buffers from.
+     * @param initialCapacity The starting size of the encoder's buffer, it grows when a packet doesn't fit.
+     * @param compression Which frames to compress, usually the protocol's.
+     * @param metrics Told about every packet encoded, as it is sent.
+     */
+    public FrameEncoder(BufferPool pool, int initialCapacity, Compression compression, NetworkMetrics metrics) {
+        this.pool = pool;
+        this.initialCapacity = Math.max(initialCapacity, MAX_PREFIX_SIZE * 2);
+        this.compression = compression;
+        this.metrics = metrics;
+        this.metricsEnabled = metrics.isEnabled();
+    }
+
+    /**
+     * Records every frame encoded from now on, before it is compressed.
+     * @param capture The capture to record to.
+     * @param connectionId The ID to record the frames under, from {@link TrafficCapture#nextConnectionId()}.
+     */
+    public void captureTo(TrafficCapture capture, long connectionId) {
+        this.capture = capture;
+        this.captureConnection = connectionId;
+    }
+
+    /**
+     * @param packet The packet to encode.
+     * @return The encoded frame, from its position to its limit. This is the encoder's own buffer.
+     */
+    public ByteBuffer encode(Packet<?, ?> packet) {
+        return this.encode(packet, packet.specification());
+    }
+
+    /**
+     * @param packet The packet to encode.
+     * @param spec The specification to encode the packet with, such as one looked up from a protocol.
+     * @return The encoded frame, from its position to its limit. This is the encoder's own buffer.
+     */
+    public ByteBuffer encode(Packet<?, ?> packet, PacketSpecification<?> spec) {
+        var event = new FrameSentEvent();
+        event.begin();
+        var startTime = this.metricsEnabled ? System.nanoTime() : 0;
+        var data = packet.toFormat();
+
+        // A fixed-size packet's frame is sized up front, so it never has to be measured or retried.
+        var fixedSize = spec.fixedSize();
+        var required = fixedSize < 0 ? 0 : MAX_PREFIX_SIZE + VarIntStreamUtils.varLongSize(spec.getPacketId()) + fixedSize;
+        if(this.buffer == null || this.buffer.capacity() < required) {
+            if(this.buffer != null) {
+                this.pool.release(this.buffer);
+            }
+            this.buffer = this.pool.acquire(Math.max(this.initialCapacity, required));
+        }
+        var buf = this.buffer.clear().position(MAX_PREFIX_SIZE);
+        var previous = CodecContext.bind(this.context);
+        try {
+            this.context.begin();
+            try {
+                VarIntStreamUtils.writeVarLong(buf, spec.getPacketId());
+                spec.getFormat().writeFromObject(buf, data);
+            } catch (BufferOverflowException e) {
+                // Only now pay for a length pass, so the retry is sized right the first time.
+                this.context.rollback();
+                this.context.begin();
+                var length = VarIntStreamUtils.varLongSize(spec.getPacketId()) + spec.getFormat().lengthFromObject(data);
+                this.pool.release(this.buffer);
+                this.buffer = this.pool.acquire(Math.max(MAX_PREFIX_SIZE + length, buf.capacity() * 2));
+                buf = this.buffer.position(MAX_PREFIX_SIZE);
+                VarIntStreamUtils.writeVarLong(buf, spec.getPacketId());
+                spec.getFormat().writeFromObject(buf, data);
+            }
+            this.context.commit();
+        } catch (RuntimeException e) {
+            this.context.rollback();
+            throw e;
+        } finally {
+            CodecContext.bind(previous);
+        }
+
+        var end = buf.position();
+        var header = (long) (end - MAX_PREFIX_SIZE);
+        var bodyStart = MAX_PREFIX_SIZE + VarIntStreamUtils.varLongSize(spec.getPacketId());
+        if(this.capture != null) {
+            this.capture.record(
+                this.captureConnection,
+                TrafficCapture.Direction.OUTBOUND,
+                spec.getPacketId(),
+                buf,
+                bodyStart,
+                end - bodyStart
+            );
+        }
+        if(this.compression.isEnabled()) {
+            var compressed = this.compression.shouldCompress(end - bodyStart) && this.compress(bodyStart, end);
+            if(compressed) {
+                buf = this.buffer;
+                end = buf.position();
+            }
+            header = (long) (end - MAX_PREFIX_SIZE) << 1 | (compressed ? 1 : 0);
+        }
+        var start = MAX_PREFIX_SIZE - VarIntStreamUtils.varLongSize(header);
+        VarIntStreamUtils.writeVarLong(buf.position(start), header);
+
+        if(this.metricsEnabled) {
+            this.metrics.packetEncoded(spec.getPacketId(), System.nanoTime() - startTime);
+            this.metrics.packetSent(spec.getPacketId(), end - start);
+        }
+        if(event.shouldCommit()) {
+            event.packetId = spec.getPacketId();
+            event.frameSize = end - start;
+            event.commit();
+        }
+        return buf.limit(end).position(start);
+    }
+
+    /**
+     * Deflates the body of the frame in the encoder's buffer into a new buffer, which replaces it if the body got
+     * smaller. The new buffer's position is left at the end of the frame.
+     */
+    private boolean compress(int bodyStart, int end) {
+        var bodyLength = end - bodyStart;
+        var out = this.pool.acquire(end + MAX_PREFIX_SIZE);
+        out.put(MAX_PREFIX_SIZE, this.buffer, MAX_PREFIX_SIZE, bodyStart - MAX_PREFIX_SIZE);
+        VarIntStreamUtils.writeVarLong(out.position(bodyStart), bodyLength);
+        // Anything that doesn't fit in the body's own length isn't worth sending compressed.
+        out.limit(end);
+
+        if(this.deflater == null) {
+            this.deflater = new Deflater(this.compression.level);
+        }
+        this.deflater.reset();
+        this.deflater.setInput(this.buffer.slice(bodyStart, bodyLength));
+        this.deflater.finish();
+        while(!this.deflater.finished() && out.hasRemaining()) {
+            this.deflater.deflate(out);
+        }
+        if(!this.deflater.finished()) {
+            this.pool.release(out);
+            return false;
+        }
+        this.pool.release(this.buffer);
+        this.buffer = out.limit(out.capacity());
+        return true;
+    }
+
+    /**
+     * @return Whether any packet this encoder encoded used its {@link CodecContext}, such as an interned string.
+     * Frames of such an encoder only make sense to the connection the context belongs to.
+     */
+    public boolean usesContext() {
+        return this.context.hasState();
+    }
+
+    /**
+     * Hands the encoder's buffer, holding the last frame, over to the caller, who must give it back to the pool.
+     * The encoder takes a new buffer for the next packet.
+     * @return The buffer, or null if the encoder has none.
+     */
+    public ByteBuffer detach() {
+        var buffer = this.buffer;
+        this.buffer = null;
+        return buffer;
+    }
+
+    /**
+     * Gives the encoder's buffer back to the pool. The last frame must not be used afterwards.
+     */
+    public void release() {
+        if(this.buffer != null) {
+            this.pool.release(this.buffer);
+            this.buffer = null;
+        }
+    }
+
+    /**
+     * Gives the encoder's buffer back to the pool and frees its {@link Deflater}. The encoder must not be used
+     * afterwards. Encoders that are only released have their deflater freed once they're garbage collected.
+     */
+    public void close() {
+        this.release();
+        if(this.deflater != null) {
+            this.deflater.end();
+            this.deflater = null;
+        }
+    }
+}
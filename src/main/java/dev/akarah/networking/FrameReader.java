@@ -0,0 +1,456 @@
+package dev.akarah.networking;
+
+import dev.akarah.protocol.Compression;
+import dev.akarah.protocol.LimitExceededException;
+import dev.akarah.protocol.Protocol;
+import dev.akarah.util.BufferPool;
+import dev.akarah.util.VarIntStreamUtils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.function.IntPredicate;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Splits a byte stream into frames. A frame is a VarLong length, followed by a VarLong packet ID and the packet body.
+ * <p>
+ * Bytes are read in bulk into a buffer owned by the reader, and both prefixes are parsed from memory.
+ * Complete frames are handed out as views into that buffer, so a frame's body is only valid until the next read.
+ * The buffer comes from a {@link BufferPool}. It grows while a frame larger than it is in flight, and shrinks back
+ * once that frame has been consumed. Call {@link #close()} once the reader is no longer used to give it back.
+ * Frames up to {@link #EAGER_GROWTH_LIMIT} bytes get a large enough buffer as soon as their length is known, and larger
+ * ones grow it as their bytes arrive, so a length prefix alone can't make the reader allocate much.
+ * <p>
+ * A reader made for a {@link Protocol} rejects frames larger than the protocol allows with a
+ * {@link LimitExceededException}, as soon as the length prefix and packet ID have arrived.
+ * <p>
+ * With {@link Compression}, compressed bodies are inflated into a second pooled buffer with an {@link Inflater} the
+ * reader keeps, so the body of a compressed frame is only valid until the next frame.
+ * <p>
+ * Frames of {@link #streamIds(IntPredicate) streamed} packet IDs aren't buffered whole. Their body is handed out in
+ * chunks as bytes arrive, and whoever reads it says how much of each chunk it used with {@link #consume(int, boolean)},
+ * so the buffer only has to be as large as the part of the frame that can't be used yet.
+ */
+public class FrameReader {
+    /**
+     * Frames up to this many bytes have their whole buffer allocated up front.
+     */
+    public static final int EAGER_GROWTH_LIMIT = 1 << 16;
+    private static final int SCRATCH_SIZE = 1 << 13;
+
+    private final BufferPool pool;
+    private final int initialCapacity;
+    private final Compression compression;
+    private final Protocol protocol;
+    private ByteBuffer buffer;
+    private ByteBuffer inflated;
+    private byte[] scratch;
+    private Inflater inflater;
+    private boolean grown;
+    private int requiredCapacity;
+
+    private int packetId;
+    private ByteBuffer body;
+    private long progress;
+    private int frameSize;
+
+    private IntPredicate streamed;
+    private boolean streaming;
+    private boolean streamStart;
+    private boolean starved;
+    private long streamRemaining;
+    private ByteBuffer streamSource;
+
+    /**
+     * @param pool The pool to take the reader's buffer from. Direct buffers are best when reading from channels.
+     * @param initialCapacity The size of the buffer when no large frame is in flight.
+     */
+    public FrameReader(BufferPool pool, int initialCapacity) {
+        this(pool, initialCapacity, Compression.none());
+    }
+
+    /**
+     * @param pool The pool to take the reader's buffers from. Direct buffers are best when reading from channels.
+     * @param initialCapacity The size of the buffer when no large frame is in flight.
+     * @param compression The compression frames were sent with, usually the protocol's.
+     */
+    public FrameReader(BufferPool pool, int initialCapacity, Compression compression) {
+        this.pool = pool;
+        this.initialCapacity = initialCapacity;
+        this.compression = compression;
+        this.protocol = null;
+    }
+
+    /**
+     * @param pool The pool to take the reader's buffers from. Direct buffers are best when reading from channels.
+     * @param initialCapacity The size of the buffer when no large frame is in flight.
+     * @param protocol The protocol frames were sent with, whose compression and frame size limits are used.
+     */
+    public FrameReader(BufferPool pool, int initialCapacity, Protocol protocol) {
+        this.pool = pool;
+        this.initialCapacity = initialCapacity;
+        this.compression = protocol.compression();
+        this.protocol = protocol;
+    }
+
+    /**
+     * Reads as many bytes as are available from the stream, blocking until at least one byte arrives.
+     * If the reader's pool hands out direct buffers, the bytes are copied in through a small heap array.
+     * @return Whether the stream is still open.
+     * @throws EOFException If the stream ended in the middle of a frame.
+     */
+    public boolean readFrom(InputStream stream) throws IOException {
+        var buf = this.prepareForRead();
+        int read;
+        if(buf.hasArray()) {
+            read = stream.read(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+            if(read > 0) {
+                buf.position(buf.position() + read);
+            }
+        } else {
+            if(this.scratch == null) {
+                this.scratch = new byte[SCRATCH_SIZE];
+            }
+            read = stream.read(this.scratch, 0, Math.min(this.scratch.length, buf.remaining()));
+            if(read > 0) {
+                buf.put(this.scratch, 0, read);
+            }
+        }
+        buf.flip();
+        return this.checkEndOfStream(read);
+    }
+
+    /**
+     * Reads as many bytes as the channel currently has, which may be none for non-blocking channels.
+     * @return Whether the channel is still open.
+     * @throws EOFException If the channel ended in the middle of a frame.
+     */
+    public boolean readFrom(ReadableByteChannel channel) throws IOException {
+        var buf = this.prepareForRead();
+        int read = channel.read(buf);
+        buf.flip();
+        return this.checkEndOfStream(read);
+    }
+
+    /**
+     * @param streamed Which packet IDs have their frames streamed rather than buffered whole, see {@link #isStreamed()}.
+     */
+    public void streamIds(IntPredicate streamed) {
+        this.streamed = streamed;
+    }
+
+    /**
+     * Moves to the next complete frame in the buffer, if there is one, or the next chunk of a streamed frame.
+     * Its ID and body are then available from {@link #packetId()} and {@link #body()}.
+     * @return Whether a complete frame or a new chunk was available.
+     */
+    public boolean nextFrame() {
+        if(this.streaming) {
+            return this.nextChunk();
+        }
+        var buf = this.buffer;
+        if(buf == null) {
+            return false;
+        }
+        var start = buf.position();
+        var lengthSize = VarIntStreamUtils.peekVarLongLength(buf, start);
+        if(lengthSize == 0) {
+            return false;
+        }
+
+        var frameLength = VarIntStreamUtils.getVarLong(buf, start);
+        var compressed = false;
+        if(this.compression.isEnabled()) {
+            compressed = (frameLength & 1) != 0;
+            frameLength >>>= 1;
+        }
+        var frameStart = start + lengthSize;
+        if(frameLength < 0 || frameLength > Integer.MAX_VALUE - lengthSize) {
+            throw new RuntimeException("invalid frame length " + frameLength);
+        }
+        if(this.protocol != null && frameLength > this.protocol.maxFrameSize()) {
+            throw new LimitExceededException(
+                "frame of " + frameLength + " bytes is larger than the limit of " + this.protocol.maxFrameSize());
+        }
+        var earlyIdSize = VarIntStreamUtils.peekVarLongLength(buf, frameStart);
+        if(earlyIdSize != 0 && earlyIdSize <= frameLength) {
+            var id = packetIdAt(buf, frameStart);
+            if(this.protocol != null && frameLength > this.protocol.maxFrameSize(id)) {
+                throw new LimitExceededException("frame of " + frameLength + " bytes is larger than the limit of "
+                    + this.protocol.maxFrameSize(id) + " for packet " + id);
+            }
+            if(this.streamed != null && !compressed && this.streamed.test(id)) {
+                this.packetId = id;
+                buf.position(frameStart + earlyIdSize);
+                return this.startStream(frameLength - earlyIdSize, null);
+            }
+        }
+        if(buf.limit() - frameStart < frameLength) {
+            this.requiredCapacity = (int) (lengthSize + frameLength);
+            return false;
+        }
+
+        var idSize = VarIntStreamUtils.peekVarLongLength(buf, frameStart);
+        if(idSize == 0 || idSize > frameLength) {
+            throw new RuntimeException("frame ended before its packet ID");
+        }
+        this.packetId = packetIdAt(buf, frameStart);
+        if(compressed) {
+            var maxBodyLength = this.protocol == null ? Integer.MAX_VALUE : this.protocol.maxFrameSize(this.packetId) - idSize;
+            this.body = this.inflate(buf, frameStart + idSize, (int) frameLength - idSize, maxBodyLength);
+        } else {
+            this.body = buf.slice(frameStart + idSize, (int) frameLength - idSize);
+        }
+        buf.position(frameStart + (int) frameLength);
+        this.progress += frameLength;
+        this.frameSize = lengthSize + (int) frameLength;
+        if(compressed && this.streamed != null && this.streamed.test(this.packetId)) {
+            // A compressed frame can only be inflated whole, but is still handed out as a stream.
+            return this.startStream(this.body.remaining(), this.body);
+        }
+        return true;
+    }
+
+    /**
+     * Reads a packet ID, which is sent as a VarLong but must fit an int, so a larger one can't alias a valid ID.
+     */
+    private static int packetIdAt(ByteBuffer buf, int index) {
+        var id = VarIntStreamUtils.getVarLong(buf, index);
+        if(id < 0 || id > Integer.MAX_VALUE) {
+            throw new RuntimeException("invalid packet ID " + id);
+        }
+        return (int) id;
+    }
+
+    private boolean startStream(long length, ByteBuffer source) {
+        this.streaming = true;
+        this.streamStart = true;
+        this.starved = false;
+        this.streamRemaining = length;
+        this.streamSource = source;
+        return this.nextChunk();
+    }
+
+    private boolean nextChunk() {
+        var source = this.streamSource != null ? this.streamSource : this.buffer;
+        if(this.starved || source == null) {
+            return false;
+        }
+        var available = (int) Math.min(source.remaining(), this.streamRemaining);
+        if(available == 0 && !this.streamStart) {
+            return false;
+        }
+        this.body = source.slice(source.position(), available);
+        return true;
+    }
+
+    /**
+     * @return Whether the current frame is streamed. Its body is then only the part of the frame received so far, and
+     * {@link #consume(int, boolean)} must be called before moving on.
+     */
+    public boolean isStreamed() {
+        return this.streaming;
+    }
+
+    /**
+     * @return Whether the current chunk is the first of a streamed frame.
+     */
+    public boolean isStreamStart() {
+        return this.streamStart;
+    }
+
+    /**
+     * @return The amount of bytes of the current streamed frame that haven't been consumed yet, including the current
+     * chunk's.
+     */
+    public long streamRemaining() {
+        return this.streamRemaining;
+    }
+
+    /**
+     * Moves past the start of the current chunk of a streamed frame. The rest of the chunk is handed out again by
+     * {@link #nextFrame()}, along with any bytes received after it.
+     * @param length The amount of bytes that were used.
+     * @param needsMoreBytes Whether the rest of the chunk is of no use until more bytes arrive. If not, the rest is
+     *                       handed out again right away, such as after reading was paused.
+     */
+    public void consume(int length, boolean needsMoreBytes) {
+        var source = this.streamSource != null ? this.streamSource : this.buffer;
+        source.position(source.position() + length);
+        this.streamRemaining -= length;
+        this.progress += length;
+        this.streamStart = false;
+        this.starved = needsMoreBytes;
+        this.body = null;
+        if(this.streamRemaining == 0) {
+            this.streaming = false;
+            this.streamSource = null;
+        }
+    }
+
+    private ByteBuffer inflate(ByteBuffer buf, int start, int length, long maxBodyLength) {
+        var lengthSize = VarIntStreamUtils.peekVarLongLength(buf, start);
+        if(lengthSize == 0 || lengthSize > length) {
+            throw new RuntimeException("compressed frame ended before its length");
+        }
+        var bodyLength = VarIntStreamUtils.getVarLong(buf, start);
+        if(bodyLength < 0 || bodyLength > Integer.MAX_VALUE) {
+            throw new RuntimeException("invalid uncompressed length " + bodyLength);
+        }
+        if(bodyLength > maxBodyLength) {
+            throw new LimitExceededException(
+                "uncompressed body of " + bodyLength + " bytes is larger than the limit of " + maxBodyLength);
+        }
+
+        if(this.inflated == null || this.inflated.capacity() < bodyLength) {
+            this.releaseInflated();
+            this.inflated = this.pool.acquire((int) bodyLength);
+        }
+        if(this.inflater == null) {
+            this.inflater = new Inflater();
+        }
+        var out = this.inflated.clear().limit((int) bodyLength);
+        this.inflater.reset();
+        this.inflater.setInput(buf.slice(start + lengthSize, length - lengthSize));
+        try {
+            while(out.hasRemaining()) {
+                if(this.inflater.inflate(out) == 0 && (this.inflater.finished() || this.inflater.needsInput())) {
+                    break;
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new RuntimeException(e);
+        }
+        if(out.hasRemaining()) {
+            throw new RuntimeException("compressed frame is shorter than its length of " + bodyLength);
+        }
+        return out.flip();
+    }
+
+    /**
+     * @return The ID of the current frame.
+     */
+    public int packetId() {
+        return this.packetId;
+    }
+
+    /**
+     * @return The size of the current frame as it was received, length prefix included. Only known for frames handed
+     * out whole.
+     */
+    public int frameSize() {
+        return this.frameSize;
+    }
+
+    /**
+     * @return The body of the current frame. This is a view into the reader's buffer, valid until the next read, or until
+     * the next frame if it was compressed.
+     */
+    public ByteBuffer body() {
+        return this.body;
+    }
+
+    /**
+     * @return How many bytes of frames have been handed out whole or consumed from streams, which only goes up.
+     * Used to tell whether a connection is still receiving anything useful.
+     */
+    public long progress() {
+        return this.progress;
+    }
+
+    /**
+     * @return Whether part of a frame has been read, but not the whole of it.
+     */
+    public boolean hasPartialFrame() {
+        return this.streaming || this.buffer != null && this.buffer.hasRemaining();
+    }
+
+    /**
+     * Gives the buffer back to the pool if it holds no partial frame, so idle connections don't hold on to memory.
+     * The current frame's body must not be used afterwards.
+     */
+    public void trim() {
+        if(this.buffer != null && !this.buffer.hasRemaining()) {
+            this.pool.release(this.buffer);
+            this.buffer = null;
+            this.body = null;
+            if(this.streamSource == null) {
+                this.releaseInflated();
+            }
+        }
+    }
+
+    /**
+     * Gives the buffers back to the pool, dropping any partial frame, and frees the {@link Inflater}.
+     */
+    public void close() {
+        if(this.buffer != null) {
+            this.pool.release(this.buffer);
+            this.buffer = null;
+            this.body = null;
+        }
+        this.streaming = false;
+        this.streamSource = null;
+        this.releaseInflated();
+        if(this.inflater != null) {
+            this.inflater.end();
+            this.inflater = null;
+        }
+    }
+
+    private void releaseInflated() {
+        if(this.inflated != null) {
+            this.pool.release(this.inflated);
+            this.inflated = null;
+        }
+    }
+
+    private ByteBuffer prepareForRead() {
+        var buf = this.buffer;
+        if(buf == null) {
+            buf = this.pool.acquire(this.initialCapacity);
+        } else if(this.requiredCapacity > buf.capacity() && this.requiredCapacity <= EAGER_GROWTH_LIMIT) {
+            buf = this.replace(buf, this.requiredCapacity);
+        } else if(!buf.hasRemaining() && this.grown) {
+            this.pool.release(buf);
+            buf = this.pool.acquire(this.initialCapacity);
+            this.grown = false;
+        } else {
+            buf.compact();
+            if(!buf.hasRemaining()) {
+                var capacity = (int) Math.min(buf.capacity() * 2L, Integer.MAX_VALUE - 8);
+                if(this.requiredCapacity > buf.capacity()) {
+                    capacity = Math.min(capacity, this.requiredCapacity);
+                }
+                buf = this.replace(buf.flip(), capacity);
+            }
+        }
+        this.buffer = buf;
+        this.requiredCapacity = 0;
+        this.starved = false;
+        this.body = null;
+        return buf;
+    }
+
+    private ByteBuffer replace(ByteBuffer buf, int capacity) {
+        var grown = this.pool.acquire(capacity);
+        grown.put(buf);
+        this.pool.release(buf);
+        this.grown = true;
+        return grown;
+    }
+
+    private boolean checkEndOfStream(int read) throws EOFException {
+        if(read >= 0) {
+            return true;
+        }
+        if(this.hasPartialFrame()) {
+            throw new EOFException("stream ended in the middle of a frame");
+        }
+        return false;
+    }
+}
@@ -0,0 +1,181 @@
+package dev.akarah.networking;
+
+import dev.akarah.format.Packet;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * The packets waiting to be sent on one connection. Any thread can add packets, and a single writer takes them off to
+ * encode and write them, so frames never interleave and senders never wait for the socket.
+ * <p>
+ * Once {@link Watermarks#high()} packets are waiting, the connection stops being writable until they are back down to
+ * {@link Watermarks#low()}. Senders should check for this, or listen for it, to avoid queueing without bound for a
+ * client that doesn't keep up.
+ */
+final class OutboundQueue {
+    /**
+     * @param low The amount of waiting packets at which a connection becomes writable again.
+     * @param high The amount of waiting packets at which a connection stops being writable.
+     */
+    record Watermarks(int low, int high) {
+        static final Watermarks DEFAULT = new Watermarks(512, 1024);
+
+        Watermarks {
+            if(low < 0 || high <= low) {
+                throw new IllegalArgumentException("watermarks must have 0 <= low < high, got " + low + " and " + high);
+            }
+        }
+    }
+
+    /**
+     * @param packet The packet to encode, or null if the frame is already encoded.
+     * @param frame The already encoded frame, which the entry holds a reference to, or null.
+     * @param future Completed once the packet is written, or null if nobody is waiting for it.
+     */
+    record Entry(Packet<?, ?> packet, SharedFrame frame, CompletableFuture<Void> future) {
+        void fail(Throwable cause) {
+            if(this.frame != null) {
+                this.frame.release();
+            }
+            if(this.future != null) {
+                this.future.completeExceptionally(cause);
+            }
+        }
+    }
+
+    private final Queue<Entry> entries = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Watermarks watermarks;
+    private final Runnable schedule;
+    private final Runnable wakeup;
+    private final Consumer<Boolean> writabilityListener;
+    private volatile boolean writable = true;
+    private volatile Throwable closed;
+
+    /**
+     * @param watermarks When the connection stops and starts being writable.
+     * @param schedule Starts the writer, called when packets are added while it isn't scheduled.
+     * @param writabilityListener Told whenever the connection stops or starts being writable.
+     */
+    OutboundQueue(Watermarks watermarks, Runnable schedule, Consumer<Boolean> writabilityListener) {
+        this(watermarks, schedule, null, writabilityListener);
+    }
+
+    /**
+     * @param wakeup Called when packets are added while the writer is already scheduled, for a writer that waits
+     *               while it stays scheduled, like one holding frames back for its {@link FlushPolicy}.
+     */
+    OutboundQueue(Watermarks watermarks, Runnable schedule, Runnable wakeup, Consumer<Boolean> writabilityListener) {
+        this.watermarks = watermarks;
+        this.schedule = schedule;
+        this.wakeup = wakeup;
+        this.writabilityListener = writabilityListener;
+    }
+
+    void add(Packet<?, ?> packet, CompletableFuture<Void> future) {
+        this.add(new Entry(packet, null, future));
+    }
+
+    /**
+     * Queues an encoded frame. The queue takes over the caller's reference to it.
+     */
+    void add(SharedFrame frame) {
+        this.add(new Entry(null, frame, null));
+    }
+
+    private void add(Entry entry) {
+        var closed = this.closed;
+        if(closed != null) {
+            entry.fail(closed);
+            return;
+        }
+        this.entries.add(entry);
+        if(this.size.incrementAndGet() >= this.watermarks.high() && this.writable) {
+            this.updateWritability();
+        }
+        // The connection may have closed while adding, in which case nothing will ever take the packet off again.
+        if(this.closed != null) {
+            this.failAll(this.closed);
+            return;
+        }
+        if(this.trySchedule()) {
+            this.schedule.run();
+        } else if(this.wakeup != null) {
+            this.wakeup.run();
+        }
+    }
+
+    /**
+     * @return The next packet to write, or null if there are none. Only the writer may call this.
+     */
+    Entry poll() {
+        var entry = this.entries.poll();
+        if(entry != null && this.size.decrementAndGet() <= this.watermarks.low() && !this.writable) {
+            this.updateWritability();
+        }
+        return entry;
+    }
+
+    boolean isEmpty() {
+        return this.entries.isEmpty();
+    }
+
+    boolean isWritable() {
+        return this.writable;
+    }
+
+    /**
+     * @return Whether the caller is now responsible for running the writer.
+     */
+    boolean trySchedule() {
+        return this.scheduled.compareAndSet(false, true);
+    }
+
+    /**
+     * Lets the next added packet schedule the writer again. The writer must check {@link #isEmpty()} afterwards,
+     * as packets added just before this didn't schedule it.
+     */
+    void clearScheduled() {
+        this.scheduled.set(false);
+    }
+
+    /**
+     * Fails every waiting packet, and every packet added from now on.
+     * @param cause Why the connection closed.
+     */
+    void close(Throwable cause) {
+        this.closed = cause;
+        this.failAll(cause);
+    }
+
+    private void failAll(Throwable cause) {
+        Entry entry;
+        while((entry = this.poll()) != null) {
+            entry.fail(cause);
+        }
+    }
+
+    /**
+     * @return The amount of packets waiting to be sent.
+     */
+    int size() {
+        return this.size.get();
+    }
+
+    private synchronized void updateWritability() {
+        var size = this.size.get();
+        if(this.writable && size >= this.watermarks.high()) {
+            this.writable = false;
+            this.writabilityListener.accept(false);
+        } else if(!this.writable && size <= this.watermarks.low()) {
+            this.writable = true;
+            this.writabilityListener.accept(true);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package dev.akarah.networking;
+
+import dev.akarah.protocol.Projection;
+import dev.akarah.protocol.Protocol;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * Handlers registered by packet class, compiled into an array of handlers per packet ID when a server or client starts,
+ * so a received packet only reaches the handlers of its own type.
+ *
+ * @param <C> What handlers are given along with the packet, the connection it came from.
+ * @param <V> What handlers are given for the packet, either the packet or a view of it.
+ */
+final class PacketHandlers<C, V> {
+    /**
+     * @param projection The arguments the handler needs, or null if it needs the whole packet.
+     */
+    private record Registration<C, V>(Class<?> type, Projection projection, BiConsumer<C, V> handler) {
+    }
+
+    private static final BiConsumer<?, ?>[] NONE = new BiConsumer<?, ?>[0];
+
+    private final List<Registration<C, V>> registrations = new ArrayList<>();
+    private Protocol protocol;
+    private BiConsumer<C, V>[][] byIndex;
+    private Projection[] projections;
+
+    /**
+     * @param type The class of the packets to handle. The caller makes sure the handler accepts what it will be given
+     *             for them.
+     */
+    void add(Class<?> type, BiConsumer<C, ?> handler) {
+        this.add(type, null, handler);
+    }
+
+    /**
+     * @param projection The arguments of the packets the handler needs, or null if it needs them whole.
+     */
+    @SuppressWarnings("unchecked")
+    void add(Class<?> type, Projection projection, BiConsumer<C, ?> handler) {
+        if(this.byIndex != null) {
+            throw new IllegalStateException("handlers can't be added after starting");
+        }
+        this.registrations.add(new Registration<>(type, projection, (BiConsumer<C, V>) handler));
+    }
+
+    /**
+     * Resolves every handler to the packet IDs it applies to, which are the IDs whose registered packet is an instance
+     * of the handler's class.
+     * @throws IllegalArgumentException If a handler's class matches no packet in the protocol.
+     */
+    void compile(Protocol protocol) {
+        @SuppressWarnings("unchecked")
+        var byIndex = (BiConsumer<C, V>[][]) new BiConsumer<?, ?>[protocol.indexCount()][];
+        var projections = new Projection[protocol.indexCount()];
+        var matched = new boolean[this.registrations.size()];
+        for(var id : protocol.packetIds()) {
+            var type = protocol.getPacketDefaultFromId(id).getClass();
+            var handlers = new ArrayList<BiConsumer<C, V>>();
+            Projection projection = null;
+            var whole = false;
+            for(int i = 0; i < this.registrations.size(); i++) {
+                var registration = this.registrations.get(i);
+                if(registration.type().isAssignableFrom(type)) {
+                    handlers.add(registration.handler());
+                    matched[i] = true;
+                    if(registration.projection() == null) {
+                        whole = true;
+                    } else {
+                        projection = projection == null
+                            ? registration.projection()
+                            : projection.union(registration.projection());
+                    }
+                }
+            }
+            projections[protocol.indexOf(id)] = whole ? null : projection;
+            byIndex[protocol.indexOf(id)] = toArray(handlers);
+        }
+        for(int i = 0; i < matched.length; i++) {
+            if(!matched[i]) {
+                throw new IllegalArgumentException(
+                    "no packet in the protocol is a " + this.registrations.get(i).type().getName());
+            }
+        }
+        this.protocol = protocol;
+        this.projections = projections;
+        this.byIndex = byIndex;
+    }
+
+    /**
+     * @return The handlers as an array, which is the shared empty one if there are none.
+     */
+    @SuppressWarnings("unchecked")
+    private static <C, V> BiConsumer<C, V>[] toArray(List<BiConsumer<C, V>> handlers) {
+        return handlers.toArray((BiConsumer<C, V>[]) NONE);
+    }
+
+    boolean isEmpty() {
+        return this.registrations.isEmpty();
+    }
+
+    /**
+     * @return Whether any handler handles packets of the ID.
+     */
+    boolean handles(int packetId) {
+        var index = this.protocol.indexOf(packetId);
+        return index >= 0 && this.byIndex[index].length > 0;
+    }
+
+    /**
+     * @return The arguments the handlers of packets of the ID need, or null if they need the packet whole or there are
+     * no handlers.
+     */
+    Projection projection(int packetId) {
+        var index = this.protocol.indexOf(packetId);
+        return index < 0 ? null : this.projections[index];
+    }
+
+    void dispatch(C connection, int packetId, V packet) {
+        var index = this.protocol.indexOf(packetId);
+        if(index < 0) {
+            return;
+        }
+        for(var handler : this.byIndex[index]) {
+            handler.accept(connection, packet);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package dev.akarah.networking;
+
+import dev.akarah.capture.TrafficCapture;
+import dev.akarah.format.CodecContext;
+import dev.akarah.format.Packet;
+import dev.akarah.metrics.FrameReceivedEvent;
+import dev.akarah.metrics.NetworkMetrics;
+import dev.akarah.protocol.PacketView;
+import dev.akarah.protocol.Protocol;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Turns the frames one end of a connection receives into packets, or views of them, and hands them to its handlers and
+ * listeners. {@link ServerConnection} and {@link ProtocolClient} both receive through one.
+ * <p>
+ * Decoding and delivering are separate steps, so a connection can deliver on another thread, see {@link Dispatch}.
+ * @param <C> The type of the connection, given to the handlers.
+ */
+final class PacketReceiver<C> {
+    private final C connection;
+    private final Protocol protocol;
+    private final PacketHandlers<C, Packet<?, ?>> packetHandlers;
+    private final PacketHandlers<C, PacketView<?>> viewHandlers;
+    private final List<Consumer<Packet<?, ?>>> packetListeners;
+    private final NetworkMetrics metrics;
+    private final boolean metricsEnabled;
+    private final TrafficCapture capture;
+    private final long captureId;
+    private final CodecContext context;
+
+    /**
+     * @param capture The capture to record received frames to, or null.
+     * @param captureId The ID the connection's frames are recorded under.
+     * @param context The connection's inbound context, bound while decoding.
+     */
+    PacketReceiver(
+        C connection,
+        Protocol protocol,
+        PacketHandlers<C, Packet<?, ?>> packetHandlers,
+        PacketHandlers<C, PacketView<?>> viewHandlers,
+        List<Consumer<Packet<?, ?>>> packetListeners,
+        NetworkMetrics metrics,
+        TrafficCapture capture,
+        long captureId,
+        CodecContext context
+    ) {
+        this.connection = connection;
+        this.protocol = protocol;
+        this.packetHandlers = packetHandlers;
+        this.viewHandlers = viewHandlers;
+        this.packetListeners = packetListeners;
+        this.metrics = metrics;
+        this.metricsEnabled = metrics.isEnabled();
+        this.capture = capture;
+        this.captureId = captureId;
+        this.context = context;
+    }
+
+    /**
+     * Decodes the reader's current frame, which must not be streamed. Packets with view handlers are only viewed, and
+     * the rest are decoded as far as their handlers' projections need, or whole if there are listeners.
+     * @param reader The reader, positioned at the frame.
+     * @param detach Whether the packet is delivered after the reader's buffer is reused, in which case a view gets a
+     *               copy of the body.
+     * @return The packet, or a {@link PacketView} of it, to {@link #deliver(int, Object)}.
+     */
+    Object decode(FrameReader reader, boolean detach) {
+        var packetId = reader.packetId();
+        var body = reader.body();
+        var event = new FrameReceivedEvent();
+        event.begin();
+        var bodySize = body.remaining();
+        var startTime = 0L;
+        if(this.metricsEnabled) {
+            this.metrics.packetReceived(packetId, reader.frameSize());
+            startTime = System.nanoTime();
+        }
+        if(this.capture != null) {
+            this.capture.record(this.captureId, TrafficCapture.Direction.INBOUND, packetId, body);
+        }
+        Object received;
+        var previous = CodecContext.bind(this.context);
+        try {
+            if(this.viewHandlers.isEmpty() || !this.viewHandlers.handles(packetId)) {
+                var projection = this.packetListeners.isEmpty() ? this.packetHandlers.projection(packetId) : null;
+                received = projection == null
+                    ? this.protocol.readPacket(packetId, body)
+                    : this.protocol.readPacket(packetId, body, projection);
+            } else {
+                if(detach) {
+                    body = ByteBuffer.allocate(bodySize).put(body).flip();
+                }
+                received = this.protocol.readView(packetId, body);
+            }
+        } finally {
+            CodecContext.bind(previous);
+        }
+        if(this.metricsEnabled) {
+            this.metrics.packetDecoded(packetId, System.nanoTime() - startTime);
+        }
+        if(event.shouldCommit()) {
+            event.packetId = packetId;
+            event.bodySize = bodySize;
+            event.commit();
+        }
+        return received;
+    }
+
+    /**
+     * Runs the handlers of a packet that was decoded, or of a view of it, which is released afterwards.
+     * @param packetId The ID the packet was received with.
+     * @param received What {@link #decode(FrameReader, boolean)} returned.
+     */
+    void deliver(int packetId, Object received) {
+        var startTime = this.metricsEnabled ? System.nanoTime() : 0;
+        Packet<?, ?> packet = null;
+        if(received instanceof PacketView<?> view) {
+            try {
+                this.viewHandlers.dispatch(this.connection, packetId, view);
+                if(this.packetHandlers.handles(packetId) || !this.packetListeners.isEmpty()) {
+                    packet = view.materialize();
+                }
+            } finally {
+                view.release();
+            }
+        } else {
+            packet = (Packet<?, ?>) received;
+        }
+        if(packet != null) {
+            this.packetHandlers.dispatch(this.connection, packetId, packet);
+            for(var listener : this.packetListeners) {
+                listener.accept(packet);
+            }
+        }
+        if(this.metricsEnabled) {
+            this.metrics.packetHandled(packetId, System.nanoTime() - startTime);
+        }
+    }
+}
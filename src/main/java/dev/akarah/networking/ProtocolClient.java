@@ -1,34 +1,111 @@
 package dev.akarah.networking;
 
+import dev.akarah.capture.TrafficCapture;
+import dev.akarah.format.CodecContext;
 import dev.akarah.format.Packet;
+import dev.akarah.format.PacketFormat;
+import dev.akarah.metrics.MeteredBufferPool;
+import dev.akarah.metrics.NetworkMetrics;
+import dev.akarah.protocol.PacketView;
+import dev.akarah.protocol.Projection;
 import dev.akarah.protocol.Protocol;
-import dev.akarah.util.VarIntStreamUtils;
+import dev.akarah.util.BufferPool;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketAddress;
-import java.nio.ByteBuffer;
+import java.net.SocketException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
 public class ProtocolClient {
     public final List<Consumer<Packet<?, ?>>> packetListeners = new ArrayList<>();
+    public final List<BiConsumer<ProtocolClient, Boolean>> writabilityListeners = new ArrayList<>();
+    private final PacketHandlers<ProtocolClient, Packet<?, ?>> packetHandlers = new PacketHandlers<>();
+    private final PacketHandlers<ProtocolClient, PacketView<?>> viewHandlers = new PacketHandlers<>();
+    private final ArrayStreams<ProtocolClient> arrayStreams = new ArrayStreams<>();
     public final Socket socket = new Socket();
     public final Protocol protocol;
     public final InputStream inputStream;
     public final OutputStream outputStream;
+    private BufferPool bufferPool = BufferPool.heap();
+    private NetworkMetrics metrics = NetworkMetrics.none();
+    private TrafficCapture capture;
+    private long captureId;
+    private OutboundQueue.Watermarks writeWatermarks = OutboundQueue.Watermarks.DEFAULT;
+    private FlushPolicy flushPolicy = FlushPolicy.immediate();
+    private volatile StreamWriter writer;
+    private volatile Thread readThread;
+    private volatile boolean closed;
 
     private ProtocolClient(Protocol protocol, SocketAddress address) throws IOException {
-        this.protocol = protocol;
+        this.protocol = protocol.freeze();
         this.socket.connect(address);
         this.inputStream = this.socket.getInputStream();
         this.outputStream = this.socket.getOutputStream();
     }
 
+    private FrameReader newReader() {
+        return new FrameReader(
+            MeteredBufferPool.wrap(this.bufferPool, this.metrics),
+            BlockingServerConnection.FRAME_BUFFER_SIZE,
+            this.protocol
+        );
+    }
+
+    private StreamWriter newWriter() {
+        var pool = MeteredBufferPool.wrap(this.bufferPool, this.metrics);
+        var encoder = new FrameEncoder(pool, BlockingServerConnection.FRAME_BUFFER_SIZE, this.protocol.compression(), this.metrics);
+        if(this.capture != null) {
+            encoder.captureTo(this.capture, this.captureId);
+        }
+        return new StreamWriter(
+            this.outputStream,
+            encoder,
+            this.protocol,
+            pool,
+            this.flushPolicy,
+            this.writeWatermarks,
+            writable -> {
+                for (var listener : this.writabilityListeners) {
+                    listener.accept(this, writable);
+                }
+            },
+            () -> {
+                try {
+                    this.socket.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        );
+    }
+
+    /**
+     * @return The client's writer, built from its settings when it starts or first sends a packet, if that's earlier.
+     */
+    private StreamWriter writer() {
+        var writer = this.writer;
+        if(writer == null) {
+            synchronized(this) {
+                writer = this.writer;
+                if(writer == null) {
+                    writer = this.newWriter();
+                    this.writer = writer;
+                }
+            }
+        }
+        return writer;
+    }
+
     public static ProtocolClient of(Protocol protocol, SocketAddress address) {
         try {
             return new ProtocolClient(protocol, address);
@@ -42,64 +119,314 @@ public class ProtocolClient {
         return this;
     }
 
-    public ProtocolClient connectTo(SocketAddress address) {
+    /**
+     * Handles every received packet of a type, see {@link ProtocolServer#withPacketHandler(Class, BiConsumer)}.
+     * Handlers must be added before {@link #start()}.
+     * @param type The class of the packets to handle. Subclasses are handled too.
+     * @param handler The handler, given this client and the packet.
+     * @return The same client with the handler added.
+     * @param <P> The type of the packets to handle.
+     */
+    public <P extends Packet<?, ?>> ProtocolClient withPacketHandler(Class<P> type, BiConsumer<ProtocolClient, ? super P> handler) {
+        this.packetHandlers.add(type, handler);
+        return this;
+    }
+
+    /**
+     * Handles every received packet of a type, but only needs some of its arguments, see
+     * {@link ProtocolServer#withPacketHandler(Class, Projection, BiConsumer)}. Handlers must be added before
+     * {@link #start()}.
+     * @param type The class of the packets to handle. Subclasses are handled too.
+     * @param projection The arguments the handler needs. The packet's class must accept nulls for the others.
+     * @param handler The handler, given this client and the packet.
+     * @return The same client with the handler added.
+     * @param <P> The type of the packets to handle.
+     */
+    public <P extends Packet<?, ?>> ProtocolClient withPacketHandler(
+        Class<P> type,
+        Projection projection,
+        BiConsumer<ProtocolClient, ? super P> handler
+    ) {
+        this.packetHandlers.add(type, projection, handler);
+        return this;
+    }
+
+    /**
+     * Handles every received packet of a type as a {@link PacketView}, see
+     * {@link ProtocolServer#withPacketViewHandler(Class, BiConsumer)}. Handlers must be added before {@link #start()}.
+     * @param type The class of the packets to handle. Subclasses are handled too.
+     * @param handler The handler, given this client and the view of the packet.
+     * @return The same client with the handler added.
+     * @param <P> The type of the packets to handle.
+     * @param <T> The intermediate type of the packets.
+     */
+    public <P extends Packet<T, ?>, T> ProtocolClient withPacketViewHandler(
+        Class<P> type,
+        BiConsumer<ProtocolClient, PacketView<T>> handler
+    ) {
+        this.viewHandlers.add(type, handler);
+        return this;
+    }
+
+    /**
+     * Receives packets of a type as a stream of their elements, see
+     * {@link ProtocolServer#withArrayStream(Class, PacketFormat, Function)}. Streams must be added before
+     * {@link #start()}.
+     * @param type The class of the packets to stream. Subclasses are streamed too.
+     * @param elementFormat The format of the array's elements.
+     * @param subscribers Creates the subscriber of each streamed packet, given this client.
+     * @return The same client with the stream added.
+     * @param <P> The type of the packets to stream.
+     * @param <T> The type of the elements.
+     */
+    public <P extends Packet<?, ?>, T> ProtocolClient withArrayStream(
+        Class<P> type,
+        PacketFormat<T> elementFormat,
+        Function<ProtocolClient, ? extends Flow.Subscriber<? super T>> subscribers
+    ) {
+        this.arrayStreams.add(type, elementFormat, subscribers);
+        return this;
+    }
+
+    /**
+     * Sets the pool the client takes its encoding and decoding buffers from. Heap buffers are best, as the client
+     * uses streams, and direct ones are copied through a small heap array.
+     * This must be done before {@link #start()} and before sending any packets.
+     * @param bufferPool The pool to use.
+     * @return The same client with the buffer pool set.
+     */
+    public ProtocolClient withBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+        return this;
+    }
+
+    /**
+     * Reports what the client does to metrics, see {@link ProtocolServer#withMetrics(NetworkMetrics)}.
+     * This must be done before {@link #start()} and before sending any packets.
+     * @param metrics Where to report to, {@link NetworkMetrics#none()} by default.
+     * @return The same client with the metrics set.
+     */
+    public ProtocolClient withMetrics(NetworkMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * Records every frame the client sends and receives, see {@link ProtocolServer#withCapture(TrafficCapture)}.
+     * This must be done before {@link #start()} and before sending any packets.
+     * @param capture The capture to record to, or null to record nothing, the default.
+     * @return The same client with the capture set.
+     */
+    public ProtocolClient withCapture(TrafficCapture capture) {
+        this.capture = capture;
+        this.captureId = capture == null ? -1 : capture.nextConnectionId();
+        return this;
+    }
+
+    /**
+     * Sets how many packets can wait to be sent before the client stops being writable, see
+     * {@link ProtocolServer#withWriteWatermarks(int, int)}. This must be done before {@link #start()} and before
+     * sending any packets.
+     * @param low The amount of waiting packets at which the client becomes writable again.
+     * @param high The amount of waiting packets at which the client stops being writable.
+     * @return The same client with the watermarks set.
+     */
+    public ProtocolClient withWriteWatermarks(int low, int high) {
+        this.writeWatermarks = new OutboundQueue.Watermarks(low, high);
+        return this;
+    }
+
+    /**
+     * @param flushPolicy When sent frames are written to the socket, see {@link FlushPolicy}.
+     *                    This must be set before {@link #start()} and before sending any packets.
+     * @return The same client with the flush policy set.
+     */
+    public ProtocolClient withFlushPolicy(FlushPolicy flushPolicy) {
+        this.flushPolicy = flushPolicy;
+        return this;
+    }
+
+    /**
+     * @param tcpNoDelay Whether to disable Nagle's algorithm, see {@link ProtocolServer#withTcpNoDelay(boolean)}.
+     * @return The same client with {@code TCP_NODELAY} set.
+     */
+    public ProtocolClient withTcpNoDelay(boolean tcpNoDelay) {
         try {
-            socket.connect(address);
+            this.socket.setTcpNoDelay(tcpNoDelay);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
         return this;
     }
 
-    public ProtocolClient start() {
-        Thread.ofVirtual().start(() -> {
-            try {
-                while (true) {
-                    var totalPacketLength = VarIntStreamUtils.readVarLong(inputStream);
-                    var packetInfo = VarIntStreamUtils.readVarLongWithLength(inputStream);
-                    var packetId = packetInfo.getValue0();
-                    var packetIdLength = packetInfo.getValue1();
-
-                    var packetLength = totalPacketLength - packetIdLength;
-                    var buf = ByteBuffer.allocate((int) packetLength);
-                    for (int i = 0; i < packetLength; i++) {
-                        buf.put((byte) inputStream.read());
-                    }
-                    buf.position(0);
+    /**
+     * @param sendBufferSize The size of the socket send buffer ({@code SO_SNDBUF}), in bytes.
+     * @return The same client with the send buffer size set.
+     */
+    public ProtocolClient withSendBufferSize(int sendBufferSize) {
+        try {
+            this.socket.setSendBufferSize(sendBufferSize);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return this;
+    }
 
-                    var dft = this.protocol
-                        .getPacketDefaultFromId(packetId.intValue());
+    /**
+     * Sets the size of the socket receive buffer ({@code SO_RCVBUF}). The client is already connected, so the
+     * operating system may not let sizes above 64 KiB take full effect.
+     * @param receiveBufferSize The size in bytes.
+     * @return The same client with the receive buffer size set.
+     */
+    public ProtocolClient withReceiveBufferSize(int receiveBufferSize) {
+        try {
+            this.socket.setReceiveBufferSize(receiveBufferSize);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return this;
+    }
 
-                    var pkt = (Packet<?, ?>) dft.fromDataObject(
-                        dft.specification().decode(buf));
+    /**
+     * @param listener Called with this client and whether it is writable, whenever that changes. This runs on the
+     *                 thread that sent or wrote the packet that crossed a watermark, and must not block.
+     * @return The same client with the listener added.
+     */
+    public ProtocolClient withWritabilityListener(BiConsumer<ProtocolClient, Boolean> listener) {
+        this.writabilityListeners.add(listener);
+        return this;
+    }
 
-                    for (var listener : this.packetListeners) {
-                        listener.accept(pkt);
+    public ProtocolClient connectTo(SocketAddress address) {
+        try {
+            socket.connect(address);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return this;
+    }
+
+    public ProtocolClient start() {
+        this.packetHandlers.compile(this.protocol);
+        this.viewHandlers.compile(this.protocol);
+        this.arrayStreams.compile(this.protocol);
+        var metrics = this.metrics;
+        var frameReader = this.newReader();
+        var writer = this.writer();
+        metrics.connectionOpened();
+        var readThread = Thread.ofVirtual().unstarted(() -> {
+            var context = CodecContext.inbound();
+            CodecContext.bind(context);
+            var receiver = new PacketReceiver<>(
+                this,
+                this.protocol,
+                this.packetHandlers,
+                this.viewHandlers,
+                this.packetListeners,
+                metrics,
+                this.capture,
+                this.captureId,
+                context
+            );
+            var streamReader = this.arrayStreams.isEmpty() ? null : new ArrayStreamReader<>(
+                this.arrayStreams,
+                this,
+                context,
+                () -> LockSupport.unpark(this.readThread)
+            );
+            if(streamReader != null) {
+                frameReader.streamIds(this.arrayStreams::isStreamed);
+            }
+            // Whatever ends the loop, the socket is closed, so a failed packet can't leave the connection half open.
+            try(this.socket) {
+                while (frameReader.readFrom(inputStream)) {
+                    while (frameReader.nextFrame()) {
+                        if(frameReader.isStreamed()) {
+                            if(!streamReader.read(frameReader)) {
+                                while(streamReader.isPaused() && !this.socket.isClosed()) {
+                                    LockSupport.park(this);
+                                }
+                            }
+                            continue;
+                        }
+                        receiver.deliver(frameReader.packetId(), receiver.decode(frameReader, false));
                     }
                 }
             } catch (IOException e) {
-                throw new RuntimeException(e);
+                if(streamReader != null) {
+                    streamReader.close(e);
+                }
+                if(!this.closed) {
+                    throw new RuntimeException(e);
+                }
+            } finally {
+                if(streamReader != null) {
+                    streamReader.close(new SocketException("connection closed"));
+                }
+                frameReader.close();
+                writer.queue.close(new SocketException("connection closed"));
+                metrics.connectionClosed();
             }
         });
+        this.readThread = readThread;
+        readThread.start();
         return this;
     }
 
+    /**
+     * Queues a packet to be sent to the server, without waiting for it to be written.
+     * Packets are written in the order they are queued, even when sent from different threads.
+     * @param packet The packet to send.
+     */
     public void sendPacket(Packet<?, ?> packet) {
-        var length = packet.specification().getFormat().lengthFromObject(packet.toFormat());
-        var buf = ByteBuffer.allocate(length);
-        packet.specification().getFormat().writeFromObject(
-            buf,
-            packet.toFormat()
-        );
+        this.writer().queue.add(packet, null);
+        this.reportOutboundDepth();
+    }
 
-        var pid = packet.specification().getPacketId();
+    /**
+     * Queues a packet to be sent to the server, like {@link #sendPacket(Packet)}.
+     * @param packet The packet to send.
+     * @return A future completed once the packet is written to the socket, or completed exceptionally if it couldn't
+     * be encoded or the connection closed first.
+     */
+    public CompletableFuture<Void> sendPacketAsync(Packet<?, ?> packet) {
+        var future = new CompletableFuture<Void>();
+        this.writer().queue.add(packet, future);
+        this.reportOutboundDepth();
+        return future;
+    }
+
+    private void reportOutboundDepth() {
+        if(this.metrics.isEnabled()) {
+            this.metrics.queueDepth(NetworkMetrics.Queue.OUTBOUND, this.writer().queue.size());
+        }
+    }
+
+    /**
+     * Writes any frames held back by the client's {@link FlushPolicy}, without waiting for its threshold or delay.
+     */
+    public void flush() {
+        this.writer().flush();
+    }
+
+    /**
+     * @return Whether there are fewer packets waiting to be sent than the high watermark, or back down to the low
+     * watermark after reaching it.
+     */
+    public boolean isWritable() {
+        return this.writer().queue.isWritable();
+    }
+
+    /**
+     * Closes the connection to the server. Packets that weren't written yet are dropped, and the read thread ends
+     * without an error.
+     */
+    public void disconnect() {
+        this.closed = true;
         try {
-            var packetIdSize = VarIntStreamUtils.writeVarLong(new ByteArrayOutputStream(), pid);
-            VarIntStreamUtils.writeVarLong(outputStream, length + packetIdSize);
-            VarIntStreamUtils.writeVarLong(outputStream, packetIdSize);
-            outputStream.write(buf.array());
+            this.socket.close();
         } catch (IOException e) {
-            throw new RuntimeException(e);
+            e.printStackTrace();
         }
     }
 }
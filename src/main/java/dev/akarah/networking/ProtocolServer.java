@@ -1,20 +1,52 @@
 package dev.akarah.networking;
 
+import dev.akarah.capture.TrafficCapture;
 import dev.akarah.format.Packet;
+import dev.akarah.format.PacketFormat;
+import dev.akarah.metrics.MeteredBufferPool;
+import dev.akarah.metrics.NetworkMetrics;
+import dev.akarah.protocol.PacketView;
+import dev.akarah.protocol.Projection;
 import dev.akarah.protocol.Protocol;
+import dev.akarah.util.BufferPool;
 
-import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 public class ProtocolServer {
     Protocol protocol;
     int port = 80;
+    ServerTransport transport = ServerTransport.blocking();
+    BufferPool bufferPool = BufferPool.heap();
+    Dispatch dispatch = Dispatch.inline();
+    OutboundQueue.Watermarks writeWatermarks = OutboundQueue.Watermarks.DEFAULT;
+    FlushPolicy flushPolicy = FlushPolicy.immediate();
+    Boolean tcpNoDelay;
+    int sendBufferSize;
+    int receiveBufferSize;
+    Duration idleTimeout = Duration.ZERO;
+    Duration readTimeout = Duration.ZERO;
+    NetworkMetrics metrics = NetworkMetrics.none();
+    TrafficCapture capture;
 
     public List<Consumer<ServerConnection>> connectionListeners = new ArrayList<>();
     public List<Consumer<Packet<?, ?>>> packetListeners = new ArrayList<>();
+    public List<BiConsumer<ServerConnection, Boolean>> writabilityListeners = new ArrayList<>();
+    final PacketHandlers<ServerConnection, Packet<?, ?>> packetHandlers = new PacketHandlers<>();
+    final PacketHandlers<ServerConnection, PacketView<?>> viewHandlers = new PacketHandlers<>();
+    final ArrayStreams<ServerConnection> arrayStreams = new ArrayStreams<>();
+    final ConnectionGroup connections = new ConnectionGroup(this, "all");
+    private final Map<String, ConnectionGroup> groups = new ConcurrentHashMap<>();
 
     private ProtocolServer(Protocol protocol) {
         this.protocol = protocol;
@@ -29,6 +61,167 @@ public class ProtocolServer {
         return this;
     }
 
+    /**
+     * @param transport How the server should accept clients and move bytes, see {@link ServerTransport}.
+     * @return The same server with the transport set.
+     */
+    public ProtocolServer withTransport(ServerTransport transport) {
+        this.transport = transport;
+        return this;
+    }
+
+    /**
+     * Direct pools suit the selector transport best. The blocking transport works with them too, but copies their
+     * bytes through a small heap array on every read and write.
+     * @param bufferPool The pool connections take their encoding and decoding buffers from.
+     * @return The same server with the buffer pool set.
+     */
+    public ProtocolServer withBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+        return this;
+    }
+
+    /**
+     * @param dispatch Which threads run packet handlers and listeners, see {@link Dispatch}.
+     * @return The same server with the dispatch set.
+     */
+    public ProtocolServer withDispatch(Dispatch dispatch) {
+        this.dispatch = dispatch;
+        return this;
+    }
+
+    /**
+     * Sets how many packets can wait to be sent on a connection before it stops being writable, see
+     * {@link ServerConnection#isWritable()}. Packets are still queued past the high watermark, it is up to senders
+     * to hold back. The defaults are 512 and 1024.
+     * @param low The amount of waiting packets at which a connection becomes writable again.
+     * @param high The amount of waiting packets at which a connection stops being writable.
+     * @return The same server with the watermarks set.
+     */
+    public ProtocolServer withWriteWatermarks(int low, int high) {
+        this.writeWatermarks = new OutboundQueue.Watermarks(low, high);
+        return this;
+    }
+
+    /**
+     * @param flushPolicy When frames sent on a connection are written to the socket, see {@link FlushPolicy}.
+     * @return The same server with the flush policy set.
+     */
+    public ProtocolServer withFlushPolicy(FlushPolicy flushPolicy) {
+        this.flushPolicy = flushPolicy;
+        return this;
+    }
+
+    /**
+     * @param tcpNoDelay Whether to disable Nagle's algorithm on connections, so small frames are sent without waiting
+     *                   for earlier ones to be acknowledged. This is usually wanted along with a {@link FlushPolicy}.
+     * @return The same server with {@code TCP_NODELAY} set.
+     */
+    public ProtocolServer withTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+        return this;
+    }
+
+    /**
+     * @param sendBufferSize The size of each connection's socket send buffer ({@code SO_SNDBUF}), in bytes.
+     * @return The same server with the send buffer size set.
+     */
+    public ProtocolServer withSendBufferSize(int sendBufferSize) {
+        if(sendBufferSize <= 0) {
+            throw new IllegalArgumentException("send buffer size must be positive");
+        }
+        this.sendBufferSize = sendBufferSize;
+        return this;
+    }
+
+    /**
+     * @param receiveBufferSize The size of each connection's socket receive buffer ({@code SO_RCVBUF}), in bytes.
+     * @return The same server with the receive buffer size set.
+     */
+    public ProtocolServer withReceiveBufferSize(int receiveBufferSize) {
+        if(receiveBufferSize <= 0) {
+            throw new IllegalArgumentException("receive buffer size must be positive");
+        }
+        this.receiveBufferSize = receiveBufferSize;
+        return this;
+    }
+
+    /**
+     * @param idleTimeout How long a connection can go without receiving a packet before it is closed, or zero to keep
+     *                    idle connections open forever, which is the default.
+     * @return The same server with the idle timeout set.
+     */
+    public ProtocolServer withIdleTimeout(Duration idleTimeout) {
+        if(idleTimeout.isNegative()) {
+            throw new IllegalArgumentException("idle timeout can't be negative");
+        }
+        this.idleTimeout = idleTimeout;
+        return this;
+    }
+
+    /**
+     * Closes connections that take too long to send a frame once they started it, such as a peer dripping one byte at
+     * a time to hold on to a large frame buffer. A streamed frame only needs to make progress, an element at a time,
+     * within the timeout. Time spent with reading paused by the server doesn't count.
+     * @param readTimeout How long a partly received frame can go without progress, or zero for no limit, which is the
+     *                    default.
+     * @return The same server with the read timeout set.
+     */
+    public ProtocolServer withReadTimeout(Duration readTimeout) {
+        if(readTimeout.isNegative()) {
+            throw new IllegalArgumentException("read timeout can't be negative");
+        }
+        this.readTimeout = readTimeout;
+        return this;
+    }
+
+    /**
+     * Reports what the server's connections do to metrics, like how many packets of each ID they send and receive and
+     * how long they take to handle. Buffer pools are wrapped with a {@link MeteredBufferPool} when the server starts.
+     * @param metrics Where to report to, {@link NetworkMetrics#none()} by default.
+     * @return The same server with the metrics set.
+     */
+    public ProtocolServer withMetrics(NetworkMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * Records every frame the server's connections send and receive, to be played back with
+     * {@link dev.akarah.capture.TrafficReplay}. The server doesn't close the capture.
+     * @param capture The capture to record to, or null to record nothing, the default.
+     * @return The same server with the capture set.
+     */
+    public ProtocolServer withCapture(TrafficCapture capture) {
+        this.capture = capture;
+        return this;
+    }
+
+    /**
+     * Applies the socket options to an accepted connection.
+     */
+    void configure(Socket socket) throws SocketException {
+        if(this.tcpNoDelay != null) {
+            socket.setTcpNoDelay(this.tcpNoDelay);
+        }
+        if(this.sendBufferSize > 0) {
+            socket.setSendBufferSize(this.sendBufferSize);
+        }
+        if(this.receiveBufferSize > 0) {
+            socket.setReceiveBufferSize(this.receiveBufferSize);
+        }
+    }
+
+    /**
+     * @param listener Called with a connection and whether it is writable, whenever that changes. This runs on the
+     *                 thread that sent or wrote the packet that crossed a watermark, and must not block.
+     * @return The same server with the listener added.
+     */
+    public ProtocolServer withWritabilityListener(BiConsumer<ServerConnection, Boolean> listener) {
+        this.writabilityListeners.add(listener);
+        return this;
+    }
+
     public ProtocolServer withConnectionListener(Consumer<ServerConnection> listener) {
         this.connectionListeners.add(listener);
         return this;
@@ -39,14 +232,137 @@ public class ProtocolServer {
         return this;
     }
 
-    public void start() {
-        try(var server = new ServerSocket(port)) {
-            while(true) {
-                var client = server.accept();
-                new ServerConnection(client, this);
+    /**
+     * Handles every received packet of a type. Unlike packet listeners, a handler is only called for its own packets,
+     * and knows which connection sent them. Handlers must be added before {@link #start()}.
+     * @param type The class of the packets to handle. Subclasses are handled too.
+     * @param handler The handler, given the connection the packet came from and the packet.
+     * @return The same server with the handler added.
+     * @param <P> The type of the packets to handle.
+     */
+    public <P extends Packet<?, ?>> ProtocolServer withPacketHandler(Class<P> type, BiConsumer<ServerConnection, ? super P> handler) {
+        this.packetHandlers.add(type, handler);
+        return this;
+    }
+
+    /**
+     * Handles every received packet of a type, like {@link #withPacketHandler(Class, BiConsumer)}, but only needs some
+     * of its arguments. Unless other handlers of the packet need it whole, or the server has packet listeners, only
+     * the arguments needed by its handlers are decoded, and the others are skipped and left null.
+     * @param type The class of the packets to handle. Subclasses are handled too.
+     * @param projection The arguments the handler needs. The packet's class must accept nulls for the others.
+     * @param handler The handler, given the connection the packet came from and the packet.
+     * @return The same server with the handler added.
+     * @param <P> The type of the packets to handle.
+     */
+    public <P extends Packet<?, ?>> ProtocolServer withPacketHandler(
+        Class<P> type,
+        Projection projection,
+        BiConsumer<ServerConnection, ? super P> handler
+    ) {
+        this.packetHandlers.add(type, projection, handler);
+        return this;
+    }
+
+    /**
+     * Handles every received packet of a type as a {@link PacketView}, which only decodes the arguments that are read.
+     * Packets with a view handler are only decoded whole if a view handler materializes them, or if they also have
+     * packet handlers or the server has packet listeners, which run after the view handlers. The view can only be read
+     * while the handler runs, unless it is materialized. Handlers must be added before {@link #start()}.
+     * @param type The class of the packets to handle. Subclasses are handled too.
+     * @param handler The handler, given the connection the packet came from and the view of the packet.
+     * @return The same server with the handler added.
+     * @param <P> The type of the packets to handle.
+     * @param <T> The intermediate type of the packets.
+     */
+    public <P extends Packet<T, ?>, T> ProtocolServer withPacketViewHandler(
+        Class<P> type,
+        BiConsumer<ServerConnection, PacketView<T>> handler
+    ) {
+        this.viewHandlers.add(type, handler);
+        return this;
+    }
+
+    /**
+     * @return The group of every open connection. Connections are added before connection listeners are called.
+     */
+    public ConnectionGroup connections() {
+        return this.connections;
+    }
+
+    /**
+     * @param name The name of the group.
+     * @return The group with that name, created empty if there isn't one yet.
+     */
+    public ConnectionGroup group(String name) {
+        return this.groups.computeIfAbsent(name, n -> new ConnectionGroup(this, n));
+    }
+
+    /**
+     * Forgets a group. Its connections stay open.
+     * @param name The name of the group.
+     */
+    public void removeGroup(String name) {
+        var group = this.groups.remove(name);
+        if(group != null) {
+            for(var connection : group.members()) {
+                group.remove(connection);
             }
-        } catch (IOException exception) {
-            exception.printStackTrace();
         }
     }
+
+    /**
+     * Sends a packet to every open connection, encoding it once. See {@link ConnectionGroup#broadcast(Packet, Predicate)}.
+     * @param packet The packet to send.
+     * @return The amount of connections the packet was queued on.
+     */
+    public int broadcast(Packet<?, ?> packet) {
+        return this.connections.broadcast(packet);
+    }
+
+    /**
+     * Sends a packet to every open connection that passes a filter, encoding it once.
+     * See {@link ConnectionGroup#broadcast(Packet, Predicate)}.
+     * @param packet The packet to send.
+     * @param filter Decides which connections get the packet.
+     * @return The amount of connections the packet was queued on.
+     */
+    public int broadcast(Packet<?, ?> packet, Predicate<ServerConnection> filter) {
+        return this.connections.broadcast(packet, filter);
+    }
+
+    /**
+     * Receives packets of a type as a stream of their elements, instead of decoding each into one packet once its
+     * whole frame has arrived. The packet's only argument must be {@code arrayOf(elementFormat)}.
+     * <p>
+     * For every such packet a connection receives, a subscriber is created and handed elements as soon as their bytes
+     * arrive, so a connection only buffers about one element at a time, however large the packet. The connection
+     * stops reading while the subscriber hasn't requested more elements. Subscribers are called on the connection's
+     * reading thread whatever the server's {@link Dispatch}, and streamed packets don't reach packet handlers or
+     * listeners. Elements must not use {@code terminalOptionalOf}, which can't tell a partly received element apart.
+     * Streams must be added before {@link #start()}.
+     * @param type The class of the packets to stream. Subclasses are streamed too.
+     * @param elementFormat The format of the array's elements.
+     * @param subscribers Creates the subscriber of each streamed packet, given the connection it came from.
+     * @return The same server with the stream added.
+     * @param <P> The type of the packets to stream.
+     * @param <T> The type of the elements.
+     */
+    public <P extends Packet<?, ?>, T> ProtocolServer withArrayStream(
+        Class<P> type,
+        PacketFormat<T> elementFormat,
+        Function<ServerConnection, ? extends Flow.Subscriber<? super T>> subscribers
+    ) {
+        this.arrayStreams.add(type, elementFormat, subscribers);
+        return this;
+    }
+
+    public void start() {
+        this.protocol.freeze();
+        this.packetHandlers.compile(this.protocol);
+        this.viewHandlers.compile(this.protocol);
+        this.arrayStreams.compile(this.protocol);
+        this.bufferPool = MeteredBufferPool.wrap(this.bufferPool, this.metrics);
+        this.transport.start(this);
+    }
 }
@@ -0,0 +1,65 @@
+package dev.akarah.networking;
+
+import java.time.Duration;
+
+/**
+ * Decides when a connection has gone too long without receiving anything useful, so slow or silent peers can't hold
+ * on to a connection and its buffers forever.
+ * <p>
+ * Progress is anything a {@link FrameReader} hands out, a whole frame or part of a streamed one. While a frame is
+ * partly received, the read timeout applies since the last progress, and otherwise the idle timeout does. Either can
+ * be disabled with a zero duration.
+ */
+final class ReadTimeout {
+    private final long idleNanos;
+    private final long readNanos;
+    private long progress = -1;
+    private long progressAt;
+
+    private ReadTimeout(long idleNanos, long readNanos, long now) {
+        this.idleNanos = idleNanos;
+        this.readNanos = readNanos;
+        this.progressAt = now;
+    }
+
+    /**
+     * @return The timeouts of a server's connections, or null if neither is enabled.
+     */
+    static ReadTimeout of(Duration idleTimeout, Duration readTimeout) {
+        if(idleTimeout.isZero() && readTimeout.isZero()) {
+            return null;
+        }
+        return new ReadTimeout(idleTimeout.toNanos(), readTimeout.toNanos(), System.nanoTime());
+    }
+
+    /**
+     * @param reader The connection's reader.
+     * @param now The current {@link System#nanoTime()}.
+     * @return How long the connection has left to make progress, which is not positive once it timed out, or
+     * {@link Long#MAX_VALUE} if no timeout applies right now.
+     */
+    long remainingNanos(FrameReader reader, long now) {
+        var progress = reader.progress();
+        if(progress != this.progress) {
+            this.progress = progress;
+            this.progressAt = now;
+        }
+        var limit = reader.hasPartialFrame() ? this.readNanos : this.idleNanos;
+        return limit == 0 ? Long.MAX_VALUE : this.progressAt + limit - now;
+    }
+
+    /**
+     * @return The shorter of the enabled timeouts, the longest to wait before checking again, as the timeout that
+     * applies changes when a frame starts.
+     */
+    long pollNanos() {
+        return this.idleNanos == 0 ? this.readNanos : this.readNanos == 0 ? this.idleNanos : Math.min(this.idleNanos, this.readNanos);
+    }
+
+    /**
+     * Counts as progress, such as once reading resumes after the connection paused it.
+     */
+    void reset(long now) {
+        this.progressAt = now;
+    }
+}
@@ -0,0 +1,317 @@
+package dev.akarah.networking;
+
+import dev.akarah.util.BufferPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A non-blocking connection owned by a single {@link EventLoop}.
+ * Reads are parsed incrementally out of a direct buffer, so a partially received packet never holds up a thread.
+ * Read and write buffers are only held while bytes are in flight, so an idle connection holds no buffers at all.
+ */
+class SelectorServerConnection extends ServerConnection {
+    final SocketChannel channel;
+    final EventLoop eventLoop;
+    SelectionKey key;
+
+    private final FrameReader frameReader;
+
+    private final BufferPool directPool;
+    private final int bufferSize;
+    private ByteBuffer writeBuffer;
+    private final FrameEncoder frameEncoder;
+    private ByteBuffer currentWrite;
+    private CompletableFuture<Void> currentFuture;
+    private SharedFrame currentShared;
+    /**
+     * Futures of frames copied into the write buffer, completed once the socket has taken every byte up to their end.
+     */
+    private final ArrayDeque<InFlight> inFlight = new ArrayDeque<>();
+    private long bytesBuffered;
+    private long bytesWritten;
+    private boolean writing;
+    private boolean flushRequested;
+    private boolean flushTimerScheduled;
+    private long heldSince;
+    private boolean readPaused;
+    private final ReadTimeout readTimeout;
+
+    SelectorServerConnection(
+        SocketChannel channel,
+        ProtocolServer server,
+        EventLoop eventLoop,
+        int bufferSize,
+        BufferPool directPool
+    ) {
+        super(channel.socket(), server);
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+        this.bufferSize = bufferSize;
+        this.directPool = directPool;
+        this.frameReader = new FrameReader(directPool, bufferSize, server.protocol);
+        if(this.arrayStreamReader != null) {
+            this.frameReader.streamIds(server.arrayStreams::isStreamed);
+        }
+        this.readTimeout = ReadTimeout.of(server.idleTimeout, server.readTimeout);
+        this.frameEncoder = new FrameEncoder(server.bufferPool, bufferSize, server.protocol.compression(), this.metrics);
+        if(this.capture != null) {
+            this.frameEncoder.captureTo(this.capture, this.captureId);
+        }
+        this.outboundQueue = new OutboundQueue(
+            server.writeWatermarks,
+            () -> this.eventLoop.execute(this::writePending),
+            this::notifyWritability
+        );
+    }
+
+    private record InFlight(long end, CompletableFuture<Void> future) {
+    }
+
+    void handle(SelectionKey key) {
+        try {
+            if(key.isValid() && key.isReadable()) {
+                this.onReadable();
+            }
+            if(key.isValid() && key.isWritable()) {
+                this.onWritable();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            this.close();
+        }
+    }
+
+    private void onReadable() throws IOException {
+        if(!this.frameReader.readFrom(this.channel)) {
+            this.close();
+            return;
+        }
+
+        this.processFrames();
+    }
+
+    private void processFrames() {
+        while(this.frameReader.nextFrame()) {
+            if(!this.handleFrame(this.frameReader)) {
+                // The rest of the frames stay in the reader until reading resumes.
+                this.readPaused = true;
+                this.updateInterest();
+                return;
+            }
+        }
+        this.frameReader.trim();
+    }
+
+    @Override
+    void resumeReading() {
+        this.eventLoop.execute(() -> {
+            if(this.key == null || !this.key.isValid() || this.isReadPaused()) {
+                return;
+            }
+            this.readPaused = false;
+            this.updateInterest();
+            try {
+                this.processFrames();
+            } catch (Exception e) {
+                e.printStackTrace();
+                this.close();
+            }
+        });
+    }
+
+    /**
+     * Closes the connection if it has gone too long without progress, and otherwise checks again once it might have.
+     * Started once the connection is registered, after which there is always one check scheduled.
+     */
+    void checkTimeout() {
+        if(this.readTimeout == null || this.key == null || !this.key.isValid()) {
+            return;
+        }
+        var now = System.nanoTime();
+        if(this.readPaused) {
+            this.readTimeout.reset(now);
+        }
+        var remaining = this.readTimeout.remainingNanos(this.frameReader, now);
+        if(remaining <= 0) {
+            this.close();
+            return;
+        }
+        // Checking at least as often as the shorter timeout notices a frame starting in between.
+        this.eventLoop.schedule(this::checkTimeout, Math.min(remaining, this.readTimeout.pollNanos()));
+    }
+
+    @Override
+    public void disconnect() {
+        this.eventLoop.execute(this::close);
+    }
+
+    private void updateInterest() {
+        if(this.key.isValid()) {
+            this.key.interestOps((this.readPaused ? 0 : SelectionKey.OP_READ) | (this.writing ? SelectionKey.OP_WRITE : 0));
+        }
+    }
+
+    private void writePending() {
+        this.outboundQueue.clearScheduled();
+        if(!this.key.isValid()) {
+            return;
+        }
+        try {
+            this.onWritable();
+        } catch (Exception e) {
+            e.printStackTrace();
+            this.close();
+        }
+    }
+
+    /**
+     * Encodes and moves as many pending packets as the socket accepts, asking to be woken up when it accepts more.
+     * Packets are encoded here rather than by the sender, so a single encoder buffer can be reused for every frame.
+     */
+    private void onWritable() throws IOException {
+        if(this.writeBuffer == null) {
+            var policy = this.server.flushPolicy;
+            this.writeBuffer = this.directPool.acquire(
+                policy.holdsFrames() ? Math.max(this.bufferSize, policy.sizeThreshold) : this.bufferSize);
+        }
+        var buf = this.writeBuffer;
+        while(true) {
+            while(buf.hasRemaining()) {
+                if(this.currentWrite == null) {
+                    var entry = this.outboundQueue.poll();
+                    if(entry == null) {
+                        break;
+                    }
+                    if(entry.frame() != null) {
+                        this.currentShared = entry.frame();
+                        this.currentWrite = entry.frame().view();
+                    } else {
+                        var packet = entry.packet();
+                        try {
+                            this.currentWrite = this.frameEncoder.encode(packet, this.server.protocol.specificationFor(packet));
+                        } catch (RuntimeException e) {
+                            StreamWriter.failPacket(entry, e);
+                            continue;
+                        }
+                    }
+                    this.currentFuture = entry.future();
+                }
+                if(buf.position() == 0) {
+                    this.heldSince = System.nanoTime();
+                }
+                if(this.currentWrite.remaining() <= buf.remaining()) {
+                    this.bytesBuffered += this.currentWrite.remaining();
+                    buf.put(this.currentWrite);
+                    this.currentWrite = null;
+                    if(this.currentShared != null) {
+                        this.currentShared.release();
+                        this.currentShared = null;
+                    }
+                    if(this.currentFuture != null) {
+                        this.inFlight.add(new InFlight(this.bytesBuffered, this.currentFuture));
+                        this.currentFuture = null;
+                    }
+                } else {
+                    this.bytesBuffered += buf.remaining();
+                    var limit = this.currentWrite.limit();
+                    this.currentWrite.limit(this.currentWrite.position() + buf.remaining());
+                    buf.put(this.currentWrite);
+                    this.currentWrite.limit(limit);
+                }
+            }
+
+            if(this.hold(buf)) {
+                return;
+            }
+            buf.flip();
+            if(!buf.hasRemaining()) {
+                this.directPool.release(buf);
+                this.writeBuffer = null;
+                this.frameEncoder.release();
+                this.writing = false;
+                this.flushRequested = false;
+                this.updateInterest();
+                return;
+            }
+
+            this.bytesWritten += this.channel.write(buf);
+            while(!this.inFlight.isEmpty() && this.inFlight.peek().end() <= this.bytesWritten) {
+                this.inFlight.poll().future().complete(null);
+            }
+            var drained = !buf.hasRemaining();
+            buf.compact();
+            if(!drained) {
+                this.writing = true;
+                this.updateInterest();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Decides whether to keep frames in the write buffer for now, to gather more of them, as the flush policy says.
+     * If so, a flush is scheduled for when the oldest frame has waited long enough.
+     */
+    private boolean hold(ByteBuffer buf) {
+        var policy = this.server.flushPolicy;
+        if(!policy.holdsFrames() || this.writing || this.flushRequested
+            || buf.position() == 0 || buf.position() >= policy.sizeThreshold || this.currentWrite != null) {
+            return false;
+        }
+        if(!this.flushTimerScheduled && policy.delayNanos != Long.MAX_VALUE) {
+            this.flushTimerScheduled = true;
+            this.eventLoop.schedule(() -> {
+                this.flushTimerScheduled = false;
+                this.flushRequested = true;
+                this.writePending();
+            }, this.heldSince + policy.delayNanos - System.nanoTime());
+        }
+        return true;
+    }
+
+    @Override
+    public void flush() {
+        this.eventLoop.execute(() -> {
+            this.flushRequested = true;
+            this.writePending();
+        });
+    }
+
+    void close() {
+        if(this.key != null) {
+            this.key.cancel();
+        }
+        this.frameReader.close();
+        this.frameEncoder.close();
+        this.currentWrite = null;
+        if(this.currentShared != null) {
+            this.currentShared.release();
+            this.currentShared = null;
+        }
+        var cause = new ClosedChannelException();
+        if(this.currentFuture != null) {
+            this.currentFuture.completeExceptionally(cause);
+            this.currentFuture = null;
+        }
+        while(!this.inFlight.isEmpty()) {
+            this.inFlight.poll().future().completeExceptionally(cause);
+        }
+        this.outboundQueue.close(cause);
+        this.notifyDisconnected();
+        if(this.writeBuffer != null) {
+            this.directPool.release(this.writeBuffer);
+            this.writeBuffer = null;
+        }
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package dev.akarah.networking;
+
+import dev.akarah.metrics.MeteredBufferPool;
+import dev.akarah.util.BufferPool;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+
+class SelectorTransport implements ServerTransport {
+    static final int DEFAULT_BUFFER_SIZE = 4096;
+
+    private final int eventLoopCount;
+    private final int bufferSize;
+    private final BufferPool directPool;
+
+    SelectorTransport(int eventLoopCount, int bufferSize, BufferPool directPool) {
+        if(eventLoopCount <= 0)
+            throw new IllegalArgumentException("at least one event loop is required");
+        if(bufferSize <= 0)
+            throw new IllegalArgumentException("buffer size must be positive");
+        this.eventLoopCount = eventLoopCount;
+        this.bufferSize = bufferSize;
+        this.directPool = directPool;
+    }
+
+    @Override
+    public void start(ProtocolServer server) {
+        try(var channel = ServerSocketChannel.open()) {
+            if(server.receiveBufferSize > 0) {
+                // Accepted sockets inherit this, and sizes above 64 KiB only take effect if set before binding.
+                channel.socket().setReceiveBufferSize(server.receiveBufferSize);
+            }
+            channel.bind(new InetSocketAddress(server.port));
+
+            var directPool = MeteredBufferPool.wrap(this.directPool, server.metrics);
+            var eventLoops = new EventLoop[this.eventLoopCount];
+            for(int i = 0; i < eventLoops.length; i++) {
+                eventLoops[i] = new EventLoop("protocol-event-loop-" + i);
+            }
+
+            int next = 0;
+            while(true) {
+                var client = channel.accept();
+                var eventLoop = eventLoops[next];
+                next = (next + 1) % eventLoops.length;
+                client.configureBlocking(false);
+                server.configure(client.socket());
+                eventLoop.register(new SelectorServerConnection(client, server, eventLoop, this.bufferSize, directPool));
+            }
+        } catch (IOException exception) {
+            exception.printStackTrace();
+        }
+    }
+}
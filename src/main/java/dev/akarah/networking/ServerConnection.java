@@ -1,85 +1,180 @@
 package dev.akarah.networking;
 
+import dev.akarah.capture.TrafficCapture;
+import dev.akarah.format.CodecContext;
 import dev.akarah.format.Packet;
-import dev.akarah.protocol.Protocol;
-import dev.akarah.util.VarIntStreamUtils;
-
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.ServerSocket;
+import dev.akarah.metrics.NetworkMetrics;
+
 import java.net.Socket;
-import java.nio.ByteBuffer;
-import java.util.Arrays;
+import java.net.SocketException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
-public class ServerConnection {
-    private final OutputStream outputStream;
+/**
+ * A single client connected to a {@link ProtocolServer}.
+ * How bytes are moved to and from the client depends on the server's {@link ServerTransport}.
+ */
+public abstract class ServerConnection {
     public final Socket socket;
-    private final InputStream inputStream;
-    private final ProtocolServer server;
+    final ProtocolServer server;
+    final NetworkMetrics metrics;
+    private final boolean metricsEnabled;
+    final CodecContext inboundContext = CodecContext.inbound();
+    final TrafficCapture capture;
+    /**
+     * The ID the connection's frames are recorded under, if the server has a capture.
+     */
+    final long captureId;
+    final DispatchQueue dispatchQueue;
+    final PacketReceiver<ServerConnection> receiver;
+    final ArrayStreamReader<ServerConnection> arrayStreamReader;
+    /**
+     * Set by each transport's connection, which also decides who writes the queued packets.
+     */
+    OutboundQueue outboundQueue;
+    final Set<ConnectionGroup> groups = ConcurrentHashMap.newKeySet();
+    volatile boolean closed;
 
-    protected ServerConnection(Socket socket, ProtocolServer server) throws IOException {
+    protected ServerConnection(Socket socket, ProtocolServer server) {
         this.socket = socket;
         this.server = server;
-        this.inputStream = socket.getInputStream();
-        this.outputStream = socket.getOutputStream();
-        Thread.ofVirtual().start(this::start);
+        this.metrics = server.metrics;
+        this.metricsEnabled = this.metrics.isEnabled();
+        this.capture = server.capture;
+        this.captureId = this.capture == null ? -1 : this.capture.nextConnectionId();
+        this.dispatchQueue = server.dispatch.mode == Dispatch.Mode.INLINE ? null : new DispatchQueue(server.dispatch, this);
+        this.receiver = new PacketReceiver<>(
+            this,
+            server.protocol,
+            server.packetHandlers,
+            server.viewHandlers,
+            server.packetListeners,
+            this.metrics,
+            this.capture,
+            this.captureId,
+            this.inboundContext
+        );
+        this.arrayStreamReader = server.arrayStreams.isEmpty()
+            ? null
+            : new ArrayStreamReader<>(server.arrayStreams, this, this.inboundContext, this::resumeReading);
     }
 
-    public void start() {
-        try {
-            for(var listener : this.server.connectionListeners) {
-                listener.accept(this);
-            }
-            while(this.socket.isConnected()) {
-                this.receivingLoop();
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    /**
+     * Queues a packet to be sent to the client, without waiting for it to be written.
+     * Packets are written in the order they are queued, even when sent from different threads.
+     * @param packet The packet to send.
+     */
+    public void sendPacket(Packet<?, ?> packet) {
+        this.outboundQueue.add(packet, null);
+        this.reportOutboundDepth();
     }
 
-    public void receivingLoop() throws IOException {
-        var totalPacketLength = VarIntStreamUtils.readVarLong(inputStream);
-        var packetInfo = VarIntStreamUtils.readVarLongWithLength(inputStream);
-        var packetId = packetInfo.getValue0();
-        var packetIdLength = packetInfo.getValue1();
+    /**
+     * Queues a packet to be sent to the client, like {@link #sendPacket(Packet)}.
+     * @param packet The packet to send.
+     * @return A future completed once the packet is written to the socket, or completed exceptionally if it couldn't
+     * be encoded or the connection closed first.
+     */
+    public CompletableFuture<Void> sendPacketAsync(Packet<?, ?> packet) {
+        var future = new CompletableFuture<Void>();
+        this.outboundQueue.add(packet, future);
+        this.reportOutboundDepth();
+        return future;
+    }
 
-        var packetLength = totalPacketLength - packetIdLength;
-        var buf = ByteBuffer.allocate((int) packetLength);
-        for (int i = 0; i < packetLength; i++) {
-            buf.put((byte) inputStream.read());
+    void reportOutboundDepth() {
+        if(this.metricsEnabled) {
+            this.metrics.queueDepth(NetworkMetrics.Queue.OUTBOUND, this.outboundQueue.size());
         }
-        buf.position(0);
+    }
+
+    /**
+     * Writes any frames held back by the server's {@link FlushPolicy}, without waiting for its threshold or delay.
+     */
+    public abstract void flush();
+
+    /**
+     * @return Whether there are fewer packets waiting to be sent than the server's high watermark, or back down to its
+     * low watermark after reaching it. See {@link ProtocolServer#withWriteWatermarks(int, int)}.
+     */
+    public boolean isWritable() {
+        return this.outboundQueue.isWritable();
+    }
+
+    /**
+     * Closes the connection. This can be called from any thread, including from a handler.
+     */
+    public abstract void disconnect();
+
+    /**
+     * Called from another thread once reading was paused, by {@link Dispatch.Overflow#BLOCK} or an array stream's
+     * subscriber, and might go on again.
+     */
+    abstract void resumeReading();
 
-        var dft = this.server.protocol
-            .getPacketDefaultFromId(packetId.intValue());
+    /**
+     * @return Whether reading is paused, until the dispatch queue has room or an array stream's subscriber requests
+     * more elements.
+     */
+    boolean isReadPaused() {
+        return (this.dispatchQueue != null && this.dispatchQueue.isPaused())
+            || (this.arrayStreamReader != null && this.arrayStreamReader.isPaused());
+    }
 
-        var pkt = (Packet<?, ?>) dft.fromDataObject(
-            dft.specification().decode(buf));
+    /**
+     * Removes the connection from every group and fails any array stream in progress. Transports call this once the
+     * connection is closed.
+     */
+    void notifyDisconnected() {
+        if(this.closed) {
+            return;
+        }
+        this.closed = true;
+        this.metrics.connectionClosed();
+        if(this.arrayStreamReader != null) {
+            this.arrayStreamReader.close(new SocketException("connection closed"));
+        }
+        for(var group : this.groups) {
+            group.remove(this);
+        }
+    }
 
-        for (var listener : this.server.packetListeners) {
-            listener.accept(pkt);
+    void notifyWritability(boolean writable) {
+        for(var listener : this.server.writabilityListeners) {
+            listener.accept(this, writable);
         }
     }
 
-    public void sendPacket(Packet<?, ?> packet) {
-        var length = packet.specification().getFormat().lengthFromObject(packet.toFormat());
-        var buf = ByteBuffer.allocate(length);
-        packet.specification().getFormat().writeFromObject(
-            buf,
-            packet.toFormat()
-        );
+    void notifyConnected() {
+        this.metrics.connectionOpened();
+        this.server.connections.add(this);
+        for(var listener : this.server.connectionListeners) {
+            listener.accept(this);
+        }
+    }
 
-        var pid = packet.specification().getPacketId();
-        try {
-            var packetIdSize = VarIntStreamUtils.writeVarLong(new ByteArrayOutputStream(), pid);
-            VarIntStreamUtils.writeVarLong(outputStream, length + packetIdSize);
-            VarIntStreamUtils.writeVarLong(outputStream, packetIdSize);
-            outputStream.write(buf.array());
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    /**
+     * Decodes the reader's current frame and hands it to the server's packet handlers and listeners, through its
+     * dispatch, or hands it to the connection's array stream if the frame is streamed.
+     * @return Whether to keep reading. If not, reading is paused until {@link #resumeReading()},
+     * or the connection is being disconnected.
+     */
+    boolean handleFrame(FrameReader reader) {
+        if(reader.isStreamed()) {
+            return this.arrayStreamReader.read(reader);
+        }
+        var packetId = reader.packetId();
+        if(this.dispatchQueue == null) {
+            this.receiver.deliver(packetId, this.receiver.decode(reader, false));
+            return true;
+        }
+        // Handlers run on other threads after the reader's buffer is reused, so views get a copy of the body.
+        var received = this.receiver.decode(reader, true);
+        var keepReading = this.dispatchQueue.submit(() -> this.receiver.deliver(packetId, received));
+        if(this.metricsEnabled) {
+            this.metrics.queueDepth(NetworkMetrics.Queue.DISPATCH, this.dispatchQueue.size());
         }
+        return keepReading;
     }
 }
@@ -0,0 +1,51 @@
+package dev.akarah.networking;
+
+import dev.akarah.util.BufferPool;
+
+/**
+ * Decides how a {@link ProtocolServer} accepts clients and moves bytes to and from them.
+ * Both transports speak the same wire format, so clients can't tell them apart.
+ */
+public interface ServerTransport {
+    /**
+     * Accepts clients for the server. This blocks for as long as the server is running.
+     * @param server The server to accept clients for.
+     */
+    void start(ProtocolServer server);
+
+    /**
+     * @return A transport that gives every connection its own virtual thread doing blocking reads.
+     */
+    static ServerTransport blocking() {
+        return new BlockingTransport();
+    }
+
+    /**
+     * @param eventLoops The amount of event loop threads to spread connections over.
+     * @return A non-blocking transport that multiplexes all connections over a few selector threads.
+     */
+    static ServerTransport selector(int eventLoops) {
+        return selector(eventLoops, SelectorTransport.DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param eventLoops The amount of event loop threads to spread connections over.
+     * @param bufferSize The initial size of each connection's direct read and write buffers.
+     * @return A non-blocking transport that multiplexes all connections over a few selector threads,
+     * taking buffers from {@link BufferPool#direct()}.
+     */
+    static ServerTransport selector(int eventLoops, int bufferSize) {
+        return selector(eventLoops, bufferSize, BufferPool.direct());
+    }
+
+    /**
+     * @param eventLoops The amount of event loop threads to spread connections over.
+     * @param bufferSize The initial size of each connection's direct read and write buffers.
+     * @param directPool The pool to take read and write buffers from. These are only held while bytes are in flight,
+     *                   so idle connections hold none.
+     * @return A non-blocking transport that multiplexes all connections over a few selector threads.
+     */
+    static ServerTransport selector(int eventLoops, int bufferSize, BufferPool directPool) {
+        return new SelectorTransport(eventLoops, bufferSize, directPool);
+    }
+}
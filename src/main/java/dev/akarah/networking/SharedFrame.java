@@ -0,0 +1,54 @@
+package dev.akarah.networking;
+
+import dev.akarah.util.BufferPool;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A frame encoded once and queued on many connections, see {@link ConnectionGroup#broadcast(dev.akarah.format.Packet)}.
+ * Every connection holding it has a reference, and the buffer goes back to its pool once the last one is released.
+ */
+final class SharedFrame {
+    private final ByteBuffer buffer;
+    private final int start;
+    private final int end;
+    private final BufferPool pool;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    /**
+     * @param buffer The buffer the frame was encoded into, owned by this frame from now on.
+     * @param frame The frame within the buffer, from its position to its limit.
+     * @param pool The pool to give the buffer back to.
+     */
+    SharedFrame(ByteBuffer buffer, ByteBuffer frame, BufferPool pool) {
+        this.buffer = buffer;
+        this.start = frame.position();
+        this.end = frame.limit();
+        this.pool = pool;
+    }
+
+    /**
+     * @return A read-only view of the frame, with a position of its own.
+     */
+    ByteBuffer view() {
+        return this.buffer.asReadOnlyBuffer().limit(this.end).position(this.start);
+    }
+
+    int length() {
+        return this.end - this.start;
+    }
+
+    void retain() {
+        this.references.incrementAndGet();
+    }
+
+    void release() {
+        var references = this.references.decrementAndGet();
+        if(references == 0) {
+            this.pool.release(this.buffer);
+        } else if(references < 0) {
+            throw new IllegalStateException("shared frame released more times than it was retained");
+        }
+    }
+}
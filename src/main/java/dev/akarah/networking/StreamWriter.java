@@ -0,0 +1,255 @@
+package dev.akarah.networking;
+
+import dev.akarah.protocol.Protocol;
+import dev.akarah.util.BufferPool;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * The writer of an {@link OutboundQueue} over a blocking {@link OutputStream}.
+ * It runs on a virtual thread started whenever packets are sent while it's idle, and ends once the queue is empty and
+ * every frame is written. Frames are gathered into a batch buffer and written together, as the {@link FlushPolicy} says.
+ */
+final class StreamWriter {
+    private static final int SCRATCH_SIZE = 1 << 13;
+
+    private final OutputStream outputStream;
+    private final FrameEncoder frameEncoder;
+    private final Protocol protocol;
+    private final BufferPool pool;
+    private final FlushPolicy flushPolicy;
+    private final Runnable onFailure;
+    final OutboundQueue queue;
+
+    private ByteBuffer batch;
+    private long batchStart;
+    private final List<CompletableFuture<Void>> batchFutures = new ArrayList<>();
+    private byte[] scratch;
+    private volatile Thread thread;
+    private volatile boolean flushRequested;
+    private volatile boolean holding;
+
+    /**
+     * @param onFailure Called on the writer's thread if the stream fails, after every waiting packet has been failed.
+     */
+    StreamWriter(
+        OutputStream outputStream,
+        FrameEncoder frameEncoder,
+        Protocol protocol,
+        BufferPool pool,
+        FlushPolicy flushPolicy,
+        OutboundQueue.Watermarks watermarks,
+        Consumer<Boolean> writabilityListener,
+        Runnable onFailure
+    ) {
+        this.outputStream = outputStream;
+        this.frameEncoder = frameEncoder;
+        this.protocol = protocol;
+        this.pool = pool;
+        this.flushPolicy = flushPolicy;
+        this.onFailure = onFailure;
+        this.queue = new OutboundQueue(
+            watermarks,
+            () -> Thread.ofVirtual().start(this::run),
+            this::wakeUp,
+            writabilityListener
+        );
+    }
+
+    /**
+     * Writes held frames without waiting for the flush policy's threshold or delay.
+     */
+    void flush() {
+        this.flushRequested = true;
+        var thread = this.thread;
+        if(thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Wakes the writer up if it is holding frames, so it takes the packet that was just added and writes the batch
+     * once it reaches the flush policy's size threshold.
+     */
+    private void wakeUp() {
+        if(this.holding) {
+            var thread = this.thread;
+            if(thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+    }
+
+    private void run() {
+        this.thread = Thread.currentThread();
+        try {
+            this.drain();
+        } catch (IOException | RuntimeException e) {
+            // The writer stays scheduled, so no other writer can start and the buffers are still this one's to give up.
+            this.queue.close(e);
+            this.failBatch(e);
+            this.release();
+            this.onFailure.run();
+        }
+    }
+
+    /**
+     * Gives back the encoder's buffer and the batch, and forgets the writer's thread. This happens before the writer
+     * stops being scheduled, as from then on another writer may start and use them.
+     */
+    private void release() {
+        this.frameEncoder.release();
+        if(this.batch != null) {
+            this.pool.release(this.batch);
+            this.batch = null;
+        }
+        this.thread = null;
+    }
+
+    private void drain() throws IOException {
+        while(true) {
+            OutboundQueue.Entry entry;
+            while((entry = this.queue.poll()) != null) {
+                if(entry.frame() != null) {
+                    try {
+                        this.append(entry.frame().view(), entry.future());
+                    } finally {
+                        entry.frame().release();
+                    }
+                    continue;
+                }
+                var packet = entry.packet();
+                ByteBuffer frame;
+                try {
+                    frame = this.frameEncoder.encode(packet, this.protocol.specificationFor(packet));
+                } catch (RuntimeException e) {
+                    failPacket(entry, e);
+                    continue;
+                }
+                this.append(frame, entry.future());
+            }
+
+            if(this.batch != null && this.batch.position() > 0) {
+                var wait = this.batchStart + this.flushPolicy.delayNanos - System.nanoTime();
+                if(this.flushPolicy.holdsFrames() && !this.flushRequested && wait > 0) {
+                    // Stays scheduled while holding, so packets sent in the meantime wake it up with wakeUp() instead
+                    // of starting another writer, as does flush(). Checked again after saying so, like the queue does.
+                    this.holding = true;
+                    if(this.queue.isEmpty()) {
+                        LockSupport.parkNanos(this, wait);
+                    }
+                    this.holding = false;
+                    continue;
+                }
+                this.writeBatch();
+            }
+            this.flushRequested = false;
+
+            this.release();
+            this.queue.clearScheduled();
+            if(this.queue.isEmpty() || !this.queue.trySchedule()) {
+                return;
+            }
+            this.thread = Thread.currentThread();
+        }
+    }
+
+    private void append(ByteBuffer frame, CompletableFuture<Void> future) throws IOException {
+        if(this.batch == null) {
+            this.batch = this.pool.acquire(this.flushPolicy.sizeThreshold);
+        }
+        if(frame.remaining() > this.batch.remaining()) {
+            this.writeBatch();
+        }
+        if(future != null) {
+            this.batchFutures.add(future);
+        }
+        if(frame.remaining() > this.batch.remaining()) {
+            // Too big to ever fit, so it's written on its own.
+            if(frame.hasArray()) {
+                this.outputStream.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+            } else {
+                this.writeThroughBatch(frame);
+            }
+            this.writeBatch();
+            return;
+        }
+        if(this.batch.position() == 0) {
+            this.batchStart = System.nanoTime();
+        }
+        this.batch.put(frame);
+        if(this.batch.position() >= this.flushPolicy.sizeThreshold) {
+            this.writeBatch();
+        }
+    }
+
+    /**
+     * Writes a frame without an accessible array, like a {@link SharedFrame}, in pieces the size of the empty batch.
+     */
+    private void writeThroughBatch(ByteBuffer frame) throws IOException {
+        var batch = this.batch;
+        var end = frame.limit();
+        while(frame.hasRemaining()) {
+            frame.limit(Math.min(end, frame.position() + batch.remaining()));
+            batch.put(frame);
+            frame.limit(end);
+            this.writeOut(batch);
+        }
+    }
+
+    private void writeBatch() throws IOException {
+        var batch = this.batch;
+        if(batch.position() > 0) {
+            this.writeOut(batch);
+        }
+        for(var future : this.batchFutures) {
+            future.complete(null);
+        }
+        this.batchFutures.clear();
+    }
+
+    /**
+     * Writes everything put into the batch and clears it. A direct batch is copied out through a small heap array.
+     */
+    private void writeOut(ByteBuffer batch) throws IOException {
+        if(batch.hasArray()) {
+            this.outputStream.write(batch.array(), batch.arrayOffset(), batch.position());
+        } else {
+            if(this.scratch == null) {
+                this.scratch = new byte[SCRATCH_SIZE];
+            }
+            batch.flip();
+            while(batch.hasRemaining()) {
+                var length = Math.min(batch.remaining(), this.scratch.length);
+                batch.get(this.scratch, 0, length);
+                this.outputStream.write(this.scratch, 0, length);
+            }
+        }
+        batch.clear();
+    }
+
+    private void failBatch(Throwable cause) {
+        for(var future : this.batchFutures) {
+            future.completeExceptionally(cause);
+        }
+        this.batchFutures.clear();
+    }
+
+    /**
+     * Fails a packet that couldn't be encoded. The connection carries on, as nothing of the packet was written.
+     */
+    static void failPacket(OutboundQueue.Entry entry, RuntimeException cause) {
+        if(entry.future() != null) {
+            entry.future().completeExceptionally(cause);
+        } else {
+            cause.printStackTrace();
+        }
+    }
+}
@@ -1,5 +1,10 @@
 package dev.akarah.protocol;
 
+import dev.akarah.format.SingleByteFormat;
+import dev.akarah.format.DoubleFormat;
+import dev.akarah.format.FloatFormat;
+import dev.akarah.format.IntFormat;
+import dev.akarah.format.LongFormat;
 import dev.akarah.format.PacketFormat;
 import dev.akarah.format.PacketFormats;
 import org.javatuples.Pair;
@@ -9,15 +14,27 @@ import java.util.Optional;
 import java.util.function.Function;
 
 public class Argument {
-    public static PacketFormat<Byte> singleByte() {
+    public static SingleByteFormat singleByte() {
         return new PacketFormats.ByteFormat();
     }
 
-    public static PacketFormat<Integer> integer() {
+    public static IntFormat integer() {
         return new PacketFormats.IntegerFormat();
     }
 
-    public static PacketFormat<Long> varInt() {
+    public static LongFormat longInteger() {
+        return new PacketFormats.LongIntegerFormat();
+    }
+
+    public static FloatFormat floatingPoint() {
+        return new PacketFormats.FloatingPointFormat();
+    }
+
+    public static DoubleFormat doublePrecision() {
+        return new PacketFormats.DoublePrecisionFormat();
+    }
+
+    public static LongFormat varInt() {
         return new PacketFormats.VariableSizedInteger();
     }
 
@@ -25,10 +42,41 @@ public class Argument {
         return new PacketFormats.StringFormat();
     }
 
+    public static PacketFormat<String> internedString() {
+        return internedString(1024);
+    }
+
+    /**
+     * @param capacity The most strings each end of a connection remembers.
+     */
+    public static PacketFormat<String> internedString(int capacity) {
+        return new PacketFormats.InternedStringFormat(capacity);
+    }
+
     public static<T> PacketFormat<T[]> arrayOf(PacketFormat<T> inner) {
         return new PacketFormats.SpecifiedArray<>(inner);
     }
 
+    public static PacketFormat<byte[]> byteArray(SingleByteFormat inner) {
+        return new PacketFormats.ByteArrayFormat(inner);
+    }
+
+    public static PacketFormat<int[]> intArray(IntFormat inner) {
+        return new PacketFormats.IntArrayFormat(inner);
+    }
+
+    public static PacketFormat<long[]> longArray(LongFormat inner) {
+        return new PacketFormats.LongArrayFormat(inner);
+    }
+
+    public static PacketFormat<float[]> floatArray(FloatFormat inner) {
+        return new PacketFormats.FloatArrayFormat(inner);
+    }
+
+    public static PacketFormat<double[]> doubleArray(DoubleFormat inner) {
+        return new PacketFormats.DoubleArrayFormat(inner);
+    }
+
     public static<T> PacketFormat<Optional<T>> optionalOf(PacketFormat<T> inner) {
         return new PacketFormats.SpecifiedOptional<>(inner);
     }
@@ -0,0 +1,590 @@
+package dev.akarah.protocol;
+
+import dev.akarah.format.DoubleFormat;
+import dev.akarah.format.FloatFormat;
+import dev.akarah.format.IntFormat;
+import dev.akarah.format.LongFormat;
+import dev.akarah.format.PacketFormat;
+import dev.akarah.format.PacketFormats;
+import dev.akarah.format.SingleByteFormat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Compiles a format tree into a hidden class that reads and writes the flattened field list in one method.
+ * <p>
+ * Tuples are inlined, so nested {@code PairFormat}s and friends cost no calls at all. Fields using the built-in numeric
+ * formats become direct {@link java.nio.ByteBuffer} calls. Every other field is called through a final field
+ * of the generated class, which the JIT trusts as a constant, so those calls are monomorphic too. Formats made only of
+ * built-in numbers have a fixed size, and are read and written at absolute offsets after a single bounds check.
+ * <p>
+ * The generated code never branches, so it needs no stack map frames, and only depends on classes already used
+ * by the format tree. Enable it for a whole protocol with {@link Protocol#withCompiledCodecs()}.
+ */
+public final class CodecCompiler {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private static final String OBJECT = "java/lang/Object";
+    private static final String BUFFER = "java/nio/ByteBuffer";
+    private static final String FORMAT = "dev/akarah/format/PacketFormat";
+    private static final String BASE = "dev/akarah/protocol/CompiledFormat";
+    private static final String CLASS_NAME = "dev/akarah/protocol/CompiledFormat$$Codec";
+
+    private CodecCompiler() {
+    }
+
+    /**
+     * @param format The format to compile.
+     * @return A format that encodes exactly like the provided one, but with the tree flattened into generated code.
+     */
+    public static <T> PacketFormat<T> compile(PacketFormat<T> format) {
+        var fields = new ArrayList<Leaf>();
+        var root = flatten(format, fields);
+        var bytes = new Generator(root, fields).generate();
+
+        try {
+            var hidden = LOOKUP.defineHiddenClass(bytes, true);
+            var constructor = hidden.findConstructor(
+                hidden.lookupClass(),
+                MethodType.methodType(void.class, PacketFormat.class, PacketFormat[].class));
+            var fieldFormats = fields.stream().map(Leaf::format).toArray(PacketFormat[]::new);
+            return (PacketFormat<T>) constructor.invoke(format, fieldFormats);
+        } catch (Throwable e) {
+            throw new RuntimeException("failed to compile format " + format.generateJavaType(), e);
+        }
+    }
+
+    private static Node flatten(PacketFormat<?> format, List<Leaf> fields) {
+        if(format instanceof PacketFormats.NewProtocol<?> protocol) {
+            return flatten(protocol.innerType(), fields);
+        }
+        if(format instanceof PacketFormats.PairFormat<?, ?> pair) {
+            return new Tuple("org/javatuples/Pair", List.of(
+                flatten(pair.first(), fields),
+                flatten(pair.second(), fields)));
+        }
+        if(format instanceof PacketFormats.TripletFormat<?, ?, ?> triplet) {
+            return new Tuple("org/javatuples/Triplet", List.of(
+                flatten(triplet.first(), fields),
+                flatten(triplet.second(), fields),
+                flatten(triplet.third(), fields)));
+        }
+        if(format instanceof PacketFormats.QuartetFormat<?, ?, ?, ?> quartet) {
+            return new Tuple("org/javatuples/Quartet", List.of(
+                flatten(quartet.first(), fields),
+                flatten(quartet.second(), fields),
+                flatten(quartet.third(), fields),
+                flatten(quartet.fourth(), fields)));
+        }
+
+        for(var primitive : Primitive.values()) {
+            if(format.getClass() == primitive.builtIn) {
+                return new Leaf(format, primitive, true, -1);
+            }
+        }
+        for(var primitive : Primitive.values()) {
+            if(primitive.specialized.isInstance(format)) {
+                var leaf = new Leaf(format, primitive, false, fields.size());
+                fields.add(leaf);
+                return leaf;
+            }
+        }
+        var leaf = new Leaf(format, null, false, fields.size());
+        fields.add(leaf);
+        return leaf;
+    }
+
+    private sealed interface Node permits Tuple, Leaf {
+    }
+
+    private record Tuple(String owner, List<Node> children) implements Node {
+    }
+
+    /**
+     * @param primitive The primitive the leaf reads, or null if it reads objects.
+     * @param inline Whether the leaf is a built-in format, read straight from the buffer.
+     * @param field The index of the field holding the format, or -1 if inlined.
+     */
+    private record Leaf(PacketFormat<?> format, Primitive primitive, boolean inline, int field) implements Node {
+        String fieldType() {
+            return this.primitive == null ? FORMAT : this.primitive.specializedName;
+        }
+    }
+
+    private enum Primitive {
+        BYTE(PacketFormats.ByteFormat.class, SingleByteFormat.class, "B", "Byte", "", "byte", Byte.BYTES),
+        INT(PacketFormats.IntegerFormat.class, IntFormat.class, "I", "Integer", "Int", "int", Integer.BYTES),
+        LONG(PacketFormats.LongIntegerFormat.class, LongFormat.class, "J", "Long", "Long", "long", Long.BYTES),
+        FLOAT(PacketFormats.FloatingPointFormat.class, FloatFormat.class, "F", "Float", "Float", "float", Float.BYTES),
+        DOUBLE(PacketFormats.DoublePrecisionFormat.class, DoubleFormat.class, "D", "Double", "Double", "double", Double.BYTES);
+
+        final Class<?> builtIn;
+        final Class<?> specialized;
+        final String specializedName;
+        final String descriptor;
+        final String box;
+        final String bufferSuffix;
+        final String unbox;
+        final String formatSuffix;
+        final int size;
+
+        Primitive(
+            Class<?> builtIn,
+            Class<?> specialized,
+            String descriptor,
+            String box,
+            String bufferSuffix,
+            String name,
+            int size
+        ) {
+            this.builtIn = builtIn;
+            this.specialized = specialized;
+            this.specializedName = specialized.getName().replace('.', '/');
+            this.descriptor = descriptor;
+            this.box = "java/lang/" + box;
+            this.bufferSuffix = bufferSuffix;
+            this.unbox = name + "Value";
+            this.formatSuffix = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+            this.size = size;
+        }
+    }
+
+    private static class Generator {
+        private final Node root;
+        private final List<Leaf> fields;
+        private final ConstantPool pool = new ConstantPool();
+        /**
+         * The size of the whole format if every leaf is inlined, or -1, in which case the buffer's position is used.
+         */
+        private final int absoluteSize;
+        /**
+         * The local holding where the value starts, and the offset of the next leaf from it, while emitting with
+         * absolute offsets.
+         */
+        private int start = -1;
+        private int offset;
+
+        Generator(Node root, List<Leaf> fields) {
+            this.root = root;
+            this.fields = fields;
+            var size = inlineSize(root);
+            this.absoluteSize = size <= Short.MAX_VALUE ? size : -1;
+        }
+
+        private static int inlineSize(Node node) {
+            if(node instanceof Tuple tuple) {
+                var size = 0;
+                for(var child : tuple.children()) {
+                    var childSize = inlineSize(child);
+                    if(childSize < 0) {
+                        return -1;
+                    }
+                    size += childSize;
+                }
+                return size;
+            }
+            var leaf = (Leaf) node;
+            return leaf.inline() ? leaf.primitive().size : -1;
+        }
+
+        /**
+         * Claims the whole value with one bounds check, if it has a fixed size, so leaves are emitted at absolute offsets.
+         */
+        private void claim(Code code, String method) {
+            if(this.absoluteSize < 0) {
+                return;
+            }
+            this.start = code.newLocal();
+            this.offset = 0;
+            code.aload(1);
+            code.iconst(this.absoluteSize);
+            code.invoke(0xB8, BASE, method, "(L" + BUFFER + ";I)I");
+            code.istore(this.start);
+        }
+
+        /**
+         * Pushes the absolute index of the next leaf, and moves past it.
+         */
+        private void nextIndex(Code code, Primitive primitive) {
+            code.iload(this.start);
+            if(this.offset != 0) {
+                code.iconst(this.offset);
+                code.op(0x60, -1);
+            }
+            this.offset += primitive.size;
+        }
+
+        byte[] generate() {
+            var constructor = this.constructor();
+            var read = this.read();
+            var write = this.write();
+
+            var thisClass = this.pool.type(CLASS_NAME);
+            var superClass = this.pool.type(BASE);
+            var fieldNames = new int[this.fields.size()];
+            var fieldTypes = new int[this.fields.size()];
+            for(int i = 0; i < fieldNames.length; i++) {
+                fieldNames[i] = this.pool.utf8("f" + i);
+                fieldTypes[i] = this.pool.utf8("L" + this.fields.get(i).fieldType() + ";");
+            }
+            var codeName = this.pool.utf8("Code");
+            for(var method : List.of(constructor, read, write)) {
+                this.pool.utf8(method.name());
+                this.pool.utf8(method.descriptor());
+            }
+
+            try {
+                var bytes = new ByteArrayOutputStream();
+                var out = new DataOutputStream(bytes);
+                out.writeInt(0xCAFEBABE);
+                out.writeShort(0);
+                out.writeShort(61);
+                this.pool.writeTo(out);
+                out.writeShort(0x0010 | 0x0020);
+                out.writeShort(thisClass);
+                out.writeShort(superClass);
+                out.writeShort(0);
+
+                out.writeShort(fieldNames.length);
+                for(int i = 0; i < fieldNames.length; i++) {
+                    out.writeShort(0x0002 | 0x0010);
+                    out.writeShort(fieldNames[i]);
+                    out.writeShort(fieldTypes[i]);
+                    out.writeShort(0);
+                }
+
+                out.writeShort(3);
+                for(var method : List.of(constructor, read, write)) {
+                    method.writeTo(out, codeName);
+                }
+                out.writeShort(0);
+                return bytes.toByteArray();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private Method constructor() {
+            var code = new Code(this.pool, 3);
+            code.aload(0);
+            code.aload(1);
+            code.invoke(0xB7, BASE, "<init>", "(L" + FORMAT + ";)V");
+            for(var leaf : this.fields) {
+                code.aload(0);
+                code.aload(2);
+                code.iconst(leaf.field());
+                code.op(0x32, -1);
+                code.typeOp(0xC0, leaf.fieldType(), 0);
+                code.field(0xB5, leaf);
+            }
+            code.op(0xB1, 0);
+            return new Method("<init>", "(L" + FORMAT + ";[L" + FORMAT + ";)V", code);
+        }
+
+        private Method read() {
+            var code = new Code(this.pool, 2);
+            this.claim(code, "claimRead");
+            this.emitRead(code, this.root);
+            code.op(0xB0, -1);
+            return new Method("read", "(L" + BUFFER + ";)L" + OBJECT + ";", code);
+        }
+
+        private void emitRead(Code code, Node node) {
+            if(node instanceof Tuple tuple) {
+                code.typeOp(0xBB, tuple.owner(), 1);
+                code.op(0x59, 1);
+                for(var child : tuple.children()) {
+                    this.emitRead(code, child);
+                }
+                code.invoke(0xB7, tuple.owner(), "<init>", "(" + ("L" + OBJECT + ";").repeat(tuple.children().size()) + ")V");
+                return;
+            }
+
+            var leaf = (Leaf) node;
+            var primitive = leaf.primitive();
+            if(leaf.inline() && this.start >= 0) {
+                code.aload(1);
+                this.nextIndex(code, primitive);
+                code.invoke(0xB6, BUFFER, "get" + primitive.bufferSuffix, "(I)" + primitive.descriptor);
+            } else if(leaf.inline()) {
+                code.aload(1);
+                code.invoke(0xB6, BUFFER, "get" + primitive.bufferSuffix, "()" + primitive.descriptor);
+            } else {
+                code.aload(0);
+                code.field(0xB4, leaf);
+                code.aload(1);
+                if(primitive == null) {
+                    code.invoke(0xB9, FORMAT, "read", "(L" + BUFFER + ";)L" + OBJECT + ";");
+                    return;
+                }
+                code.invoke(0xB9, primitive.specializedName, "read" + primitive.formatSuffix,
+                    "(L" + BUFFER + ";)" + primitive.descriptor);
+            }
+            code.invoke(0xB8, primitive.box, "valueOf", "(" + primitive.descriptor + ")L" + primitive.box + ";");
+        }
+
+        private Method write() {
+            var code = new Code(this.pool, 3);
+            this.claim(code, "claimWrite");
+            this.emitWrite(code, this.root, c -> c.aload(2));
+            code.op(0xB1, 0);
+            return new Method("write", "(L" + BUFFER + ";L" + OBJECT + ";)V", code);
+        }
+
+        private void emitWrite(Code code, Node node, Consumer<Code> loadValue) {
+            if(node instanceof Tuple tuple) {
+                loadValue.accept(code);
+                code.typeOp(0xC0, tuple.owner(), 0);
+                var local = code.newLocal();
+                code.astore(local);
+                for(int i = 0; i < tuple.children().size(); i++) {
+                    var index = i;
+                    this.emitWrite(code, tuple.children().get(i), c -> {
+                        c.aload(local);
+                        c.invoke(0xB6, tuple.owner(), "getValue" + index, "()L" + OBJECT + ";");
+                    });
+                }
+                return;
+            }
+
+            var leaf = (Leaf) node;
+            var primitive = leaf.primitive();
+            if(!leaf.inline()) {
+                code.aload(0);
+                code.field(0xB4, leaf);
+            }
+            code.aload(1);
+            if(leaf.inline() && this.start >= 0) {
+                this.nextIndex(code, primitive);
+            }
+            loadValue.accept(code);
+            if(primitive == null) {
+                code.invoke(0xB9, FORMAT, "write", "(L" + BUFFER + ";L" + OBJECT + ";)V");
+                return;
+            }
+
+            code.typeOp(0xC0, primitive.box, 0);
+            code.invoke(0xB6, primitive.box, primitive.unbox, "()" + primitive.descriptor);
+            if(leaf.inline()) {
+                var index = this.start >= 0 ? "I" : "";
+                code.invoke(0xB6, BUFFER, "put" + primitive.bufferSuffix,
+                    "(" + index + primitive.descriptor + ")L" + BUFFER + ";");
+                code.op(0x57, -1);
+            } else {
+                code.invoke(0xB9, primitive.specializedName, "write" + primitive.formatSuffix,
+                    "(L" + BUFFER + ";" + primitive.descriptor + ")V");
+            }
+        }
+
+        private record Method(String name, String descriptor, Code code) {
+            void writeTo(DataOutputStream out, int codeName) throws IOException {
+                var bytes = this.code.bytes.toByteArray();
+                out.writeShort(0x0001);
+                out.writeShort(this.code.pool.utf8(this.name));
+                out.writeShort(this.code.pool.utf8(this.descriptor));
+                out.writeShort(1);
+                out.writeShort(codeName);
+                out.writeInt(12 + bytes.length);
+                out.writeShort(this.code.maxStack);
+                out.writeShort(this.code.maxLocals);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+                out.writeShort(0);
+                out.writeShort(0);
+            }
+        }
+    }
+
+    /**
+     * Straight-line bytecode, tracking the stack depth as instructions are added.
+     */
+    private static class Code {
+        final ConstantPool pool;
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int stack;
+        int maxStack;
+        int maxLocals;
+
+        Code(ConstantPool pool, int parameterSlots) {
+            this.pool = pool;
+            this.maxLocals = parameterSlots;
+        }
+
+        void op(int opcode, int stackChange) {
+            this.bytes.write(opcode);
+            this.stack += stackChange;
+            this.maxStack = Math.max(this.maxStack, this.stack);
+        }
+
+        void u2(int value) {
+            this.bytes.write(value >>> 8);
+            this.bytes.write(value);
+        }
+
+        int newLocal() {
+            return this.maxLocals++;
+        }
+
+        void aload(int local) {
+            if(local <= 3) {
+                this.op(0x2A + local, 1);
+            } else {
+                this.op(0x19, 1);
+                this.bytes.write(local);
+            }
+        }
+
+        void astore(int local) {
+            if(local <= 3) {
+                this.op(0x4B + local, -1);
+            } else {
+                this.op(0x3A, -1);
+                this.bytes.write(local);
+            }
+        }
+
+        void iload(int local) {
+            if(local <= 3) {
+                this.op(0x1A + local, 1);
+            } else {
+                this.op(0x15, 1);
+                this.bytes.write(local);
+            }
+        }
+
+        void istore(int local) {
+            if(local <= 3) {
+                this.op(0x3B + local, -1);
+            } else {
+                this.op(0x36, -1);
+                this.bytes.write(local);
+            }
+        }
+
+        void iconst(int value) {
+            if(value <= 5) {
+                this.op(0x03 + value, 1);
+            } else if(value <= Byte.MAX_VALUE) {
+                this.op(0x10, 1);
+                this.bytes.write(value);
+            } else {
+                this.op(0x11, 1);
+                this.u2(value);
+            }
+        }
+
+        void typeOp(int opcode, String type, int stackChange) {
+            this.op(opcode, stackChange);
+            this.u2(this.pool.type(type));
+        }
+
+        void field(int opcode, Leaf leaf) {
+            this.op(opcode, opcode == 0xB4 ? 0 : -2);
+            this.u2(this.pool.member(9, CLASS_NAME, "f" + leaf.field(), "L" + leaf.fieldType() + ";"));
+        }
+
+        void invoke(int opcode, String owner, String name, String descriptor) {
+            var arguments = slots(descriptor.substring(1, descriptor.indexOf(')')));
+            var result = slots(descriptor.substring(descriptor.indexOf(')') + 1));
+            var receiver = opcode == 0xB8 ? 0 : 1;
+            this.op(opcode, result - arguments - receiver);
+            this.u2(this.pool.member(opcode == 0xB9 ? 11 : 10, owner, name, descriptor));
+            if(opcode == 0xB9) {
+                this.bytes.write(arguments + 1);
+                this.bytes.write(0);
+            }
+        }
+
+        private static int slots(String descriptors) {
+            int slots = 0;
+            for(int i = 0; i < descriptors.length(); i++) {
+                switch(descriptors.charAt(i)) {
+                    case 'V' -> {
+                    }
+                    case 'J', 'D' -> slots += 2;
+                    case 'L' -> {
+                        slots += 1;
+                        i = descriptors.indexOf(';', i);
+                    }
+                    case '[' -> {
+                        slots += 1;
+                        while(descriptors.charAt(i) == '[') i++;
+                        if(descriptors.charAt(i) == 'L') i = descriptors.indexOf(';', i);
+                    }
+                    default -> slots += 1;
+                }
+            }
+            return slots;
+        }
+    }
+
+    private static class ConstantPool {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(this.bytes);
+        private final Map<String, Integer> entries = new HashMap<>();
+        private int count = 1;
+
+        int utf8(String value) {
+            return this.entry("U" + value, () -> {
+                this.out.writeByte(1);
+                this.out.writeUTF(value);
+            });
+        }
+
+        int type(String internalName) {
+            var name = this.utf8(internalName);
+            return this.entry("C" + internalName, () -> {
+                this.out.writeByte(7);
+                this.out.writeShort(name);
+            });
+        }
+
+        int member(int tag, String owner, String name, String descriptor) {
+            var ownerIndex = this.type(owner);
+            var nameIndex = this.utf8(name);
+            var descriptorIndex = this.utf8(descriptor);
+            var nameAndType = this.entry("N" + name + ":" + descriptor, () -> {
+                this.out.writeByte(12);
+                this.out.writeShort(nameIndex);
+                this.out.writeShort(descriptorIndex);
+            });
+            return this.entry(tag + owner + "." + name + ":" + descriptor, () -> {
+                this.out.writeByte(tag);
+                this.out.writeShort(ownerIndex);
+                this.out.writeShort(nameAndType);
+            });
+        }
+
+        void writeTo(DataOutputStream target) throws IOException {
+            target.writeShort(this.count);
+            this.bytes.writeTo(target);
+        }
+
+        private int entry(String key, Writer writer) {
+            var existing = this.entries.get(key);
+            if(existing != null) {
+                return existing;
+            }
+            try {
+                writer.write();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            this.entries.put(key, this.count);
+            return this.count++;
+        }
+
+        private interface Writer {
+            void write() throws IOException;
+        }
+    }
+}
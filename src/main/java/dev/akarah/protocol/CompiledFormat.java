@@ -0,0 +1,72 @@
+package dev.akarah.protocol;
+
+import dev.akarah.format.PacketFormat;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * The base of every format generated by {@link CodecCompiler}.
+ * Generated subclasses implement {@link #read} and {@link #write}, everything else is answered by the source format.
+ */
+abstract class CompiledFormat<T> implements PacketFormat<T> {
+    final PacketFormat<T> source;
+    private final int fixedSize;
+
+    protected CompiledFormat(PacketFormat<T> source) {
+        this.source = source;
+        this.fixedSize = source.fixedSize();
+    }
+
+    @Override
+    public int length(T value) {
+        return this.fixedSize >= 0 ? this.fixedSize : this.source.length(value);
+    }
+
+    @Override
+    public int fixedSize() {
+        return this.fixedSize;
+    }
+
+    @Override
+    public void skip(ByteBuffer stream) {
+        if(this.fixedSize >= 0) {
+            claimRead(stream, this.fixedSize);
+            return;
+        }
+        this.source.skip(stream);
+    }
+
+    @Override
+    public String generateJavaType() {
+        return this.source.generateJavaType();
+    }
+
+    /**
+     * Moves past a value of a fixed size before reading it, so its fields can be read at absolute offsets without
+     * checking the bounds of each.
+     * @return Where the value starts.
+     */
+    protected static int claimRead(ByteBuffer stream, int size) {
+        var position = stream.position();
+        if(stream.remaining() < size) {
+            throw new BufferUnderflowException();
+        }
+        stream.position(position + size);
+        return position;
+    }
+
+    /**
+     * Moves past room for a value of a fixed size before writing it, like {@link #claimRead(ByteBuffer, int)}.
+     * @return Where the value starts.
+     */
+    protected static int claimWrite(ByteBuffer stream, int size) {
+        var position = stream.position();
+        if(stream.remaining() < size) {
+            throw new BufferOverflowException();
+        }
+        stream.position(position + size);
+        return position;
+    }
+}
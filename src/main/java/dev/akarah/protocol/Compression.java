@@ -0,0 +1,70 @@
+package dev.akarah.protocol;
+
+import java.util.zip.Deflater;
+
+/**
+ * Decides which frames of a {@link Protocol} are compressed with {@link Deflater}.
+ * <p>
+ * Only frame bodies at least as long as the threshold are compressed, so small packets cost nothing extra. When
+ * compression is enabled, the lowest bit of every frame's length prefix says whether it is compressed, so both ends of
+ * a connection must use the same setting. A compressed frame keeps its packet ID as is, followed by a VarLong of the
+ * body's uncompressed length and the deflated body. A body that doesn't get smaller is sent uncompressed.
+ */
+public final class Compression {
+    private static final Compression NONE = new Compression(Integer.MAX_VALUE, Deflater.DEFAULT_COMPRESSION, false);
+
+    public final int threshold;
+    public final int level;
+    private final boolean enabled;
+
+    private Compression(int threshold, int level, boolean enabled) {
+        this.threshold = threshold;
+        this.level = level;
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return No compression. Frame length prefixes have no flag bit.
+     */
+    public static Compression none() {
+        return NONE;
+    }
+
+    /**
+     * @param threshold The least amount of bytes a frame's body must have to be compressed.
+     * @return Compression at the default level for frames of at least {@code threshold} bytes.
+     */
+    public static Compression deflate(int threshold) {
+        return deflate(threshold, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param threshold The least amount of bytes a frame's body must have to be compressed.
+     * @param level The {@link Deflater} level, from 0 to 9, or -1 for the default.
+     * @return Compression at the level for frames of at least {@code threshold} bytes.
+     */
+    public static Compression deflate(int threshold, int level) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("threshold can't be negative, got " + threshold);
+        }
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("invalid compression level " + level);
+        }
+        return new Compression(threshold, level, true);
+    }
+
+    /**
+     * @return Whether frames have a compression flag at all.
+     */
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    /**
+     * @param bodyLength The length of a frame's body, after the packet ID.
+     * @return Whether the body should be compressed.
+     */
+    public boolean shouldCompress(int bodyLength) {
+        return this.enabled && bodyLength >= this.threshold;
+    }
+}
@@ -0,0 +1,13 @@
+package dev.akarah.protocol;
+
+/**
+ * Thrown when received data goes over one of a {@link Protocol}'s limits, such as a frame larger than its maximum
+ * size. The connection it was received on can't be trusted afterwards and is closed.
+ */
+public class LimitExceededException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public LimitExceededException(String message) {
+        super(message);
+    }
+}
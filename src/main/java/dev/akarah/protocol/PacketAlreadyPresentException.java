@@ -1,6 +1,8 @@
 package dev.akarah.protocol;
 
 public class PacketAlreadyPresentException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
     public PacketAlreadyPresentException(int packetId) {
         super("Protocol already has packet of ID #" + packetId);
     }
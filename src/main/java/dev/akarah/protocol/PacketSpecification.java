@@ -2,6 +2,7 @@ package dev.akarah.protocol;
 
 import dev.akarah.format.PacketFormat;
 import dev.akarah.format.PacketFormats;
+import dev.akarah.util.BufferPool;
 import org.javatuples.Pair;
 import org.javatuples.Quartet;
 import org.javatuples.Triplet;
@@ -12,10 +13,23 @@ import java.util.Optional;
 public class PacketSpecification<T> {
     int packetId;
     PacketFormat<T> innerType;
+    private final int fixedSize;
+    private final PacketFormat<?>[] arguments;
+    private final int eagerArguments;
 
     private PacketSpecification(int id, PacketFormat<T> innerType) {
         this.innerType = innerType;
         this.packetId = id;
+        this.fixedSize = innerType == null ? -1 : innerType.fixedSize();
+        // Worked out up front, as every connection reading the packet shares the specification.
+        this.arguments = innerType == null ? new PacketFormat<?>[0] : argumentsOf(innerType);
+        var eager = 0;
+        for(int i = 0; i < this.arguments.length; i++) {
+            if(usesContext(this.arguments[i])) {
+                eager = i + 1;
+            }
+        }
+        this.eagerArguments = eager;
     }
 
     public PacketFormat<T> getFormat() {
@@ -26,6 +40,13 @@ public class PacketSpecification<T> {
         return this.packetId;
     }
 
+    /**
+     * @return The size of every encoded packet body, or -1 if it varies, see {@link PacketFormat#fixedSize()}.
+     */
+    public int fixedSize() {
+        return this.fixedSize;
+    }
+
     /**
      * @return An automatically generated Java-friendly type signature for the packets' internal representation.
      */
@@ -33,17 +54,46 @@ public class PacketSpecification<T> {
         return this.innerType.generateJavaType();
     }
 
+    /**
+     * @return A specification encoding exactly like this one, through a format generated by {@link CodecCompiler}.
+     */
+    public PacketSpecification<T> compiled() {
+        if(this.innerType instanceof CompiledFormat<T>) {
+            return this;
+        }
+        return new PacketSpecification<>(this.packetId, CodecCompiler.compile(this.innerType));
+    }
+
     /**
      * Encodes the provided data into a ByteBuffer following this specification.
      * @param value The data to encode
      * @return The data encoded into bytes
      */
     public ByteBuffer encode(T value) {
-        var buf = ByteBuffer.allocate(this.innerType.length(value));
+        var buf = ByteBuffer.allocate(this.lengthOf(value));
         this.innerType.write(buf, value);
         return buf;
     }
 
+    /**
+     * Encodes the provided data into a buffer taken from a pool.
+     * @param value The data to encode
+     * @param pool The pool to take the buffer from. The caller must release the buffer once done with it.
+     * @return The data encoded into bytes, flipped so it is ready to be read
+     */
+    public ByteBuffer encode(T value, BufferPool pool) {
+        var buf = pool.acquire(this.lengthOf(value));
+        this.innerType.write(buf, value);
+        return buf.flip();
+    }
+
+    /**
+     * @return How many bytes a value encodes to, without measuring it if the specification has a fixed size.
+     */
+    private int lengthOf(T value) {
+        return this.fixedSize >= 0 ? this.fixedSize : this.innerType.length(value);
+    }
+
     /**
      * Decodes data from a ByteBuffer following this specification.
      * @param buffer The buffer to decode from.
@@ -53,6 +103,115 @@ public class PacketSpecification<T> {
         return this.innerType.read(buffer);
     }
 
+    /**
+     * Decodes only some of the arguments from a ByteBuffer, skipping the others. Arguments after the last needed one
+     * are left in the buffer, unless they keep state in the {@link dev.akarah.format.CodecContext}.
+     * @param buffer The buffer to decode from.
+     * @param projection The arguments to decode.
+     * @return The decoded data, with null in place of every skipped argument.
+     */
+    public T decode(ByteBuffer buffer, Projection projection) {
+        var arguments = this.arguments();
+        if(projection.includesFirst(arguments.length)) {
+            return this.decode(buffer);
+        }
+        var values = new Object[arguments.length];
+        var end = Math.min(Math.max(projection.end(), this.eagerArguments), arguments.length);
+        for(int i = 0; i < end; i++) {
+            if(projection.includes(i)) {
+                values[i] = arguments[i].read(buffer);
+            } else {
+                arguments[i].skip(buffer);
+            }
+        }
+        return this.fromArguments(values);
+    }
+
+    /**
+     * @return The formats of the packet's arguments, in order. A specification that wasn't built from arguments has a
+     * single one, its whole format.
+     */
+    PacketFormat<?>[] arguments() {
+        return this.arguments;
+    }
+
+    /**
+     * @return How many leading arguments a {@link PacketView} must decode as soon as it is created, because the last of
+     * them keeps state in the {@link dev.akarah.format.CodecContext}, like an interned string.
+     */
+    int eagerArguments() {
+        return this.eagerArguments;
+    }
+
+    /**
+     * @param values The decoded value of each of {@link #arguments()}.
+     * @return The intermediate value made of them, as {@link #decode(ByteBuffer)} would have returned it.
+     */
+    @SuppressWarnings("unchecked")
+    T fromArguments(Object[] values) {
+        return (T) switch (values.length) {
+            case 1 -> values[0];
+            case 2 -> new Pair<>(values[0], values[1]);
+            case 3 -> new Triplet<>(values[0], values[1], values[2]);
+            default -> new Quartet<>(values[0], values[1], values[2], values[3]);
+        };
+    }
+
+    private static PacketFormat<?>[] argumentsOf(PacketFormat<?> format) {
+        if(format instanceof CompiledFormat<?> compiled) {
+            return argumentsOf(compiled.source);
+        }
+        if(!(format instanceof PacketFormats.NewProtocol<?> protocol)) {
+            return new PacketFormat<?>[]{format};
+        }
+        var inner = protocol.innerType();
+        if(inner instanceof PacketFormats.PairFormat<?, ?> pair) {
+            return new PacketFormat<?>[]{pair.first(), pair.second()};
+        }
+        if(inner instanceof PacketFormats.TripletFormat<?, ?, ?> triplet) {
+            return new PacketFormat<?>[]{triplet.first(), triplet.second(), triplet.third()};
+        }
+        if(inner instanceof PacketFormats.QuartetFormat<?, ?, ?, ?> quartet) {
+            return new PacketFormat<?>[]{quartet.first(), quartet.second(), quartet.third(), quartet.fourth()};
+        }
+        return new PacketFormat<?>[]{inner};
+    }
+
+    /**
+     * Only the built-in formats are looked into, custom formats are assumed not to keep any state.
+     */
+    private static boolean usesContext(PacketFormat<?> format) {
+        if(format instanceof PacketFormats.InternedStringFormat) {
+            return true;
+        }
+        if(format instanceof CompiledFormat<?> compiled) {
+            return usesContext(compiled.source);
+        }
+        if(format instanceof PacketFormats.NewProtocol<?> protocol) {
+            return usesContext(protocol.innerType());
+        }
+        if(format instanceof PacketFormats.SpecifiedArray<?> array) {
+            return usesContext(array.innerType());
+        }
+        if(format instanceof PacketFormats.SpecifiedOptional<?> optional) {
+            return usesContext(optional.innerType());
+        }
+        if(format instanceof PacketFormats.ImpliedOptional<?> optional) {
+            return usesContext(optional.innerType());
+        }
+        if(format instanceof PacketFormats.PairFormat<?, ?> pair) {
+            return usesContext(pair.first()) || usesContext(pair.second());
+        }
+        if(format instanceof PacketFormats.TripletFormat<?, ?, ?> triplet) {
+            return usesContext(triplet.first()) || usesContext(triplet.second()) || usesContext(triplet.third());
+        }
+        if(format instanceof PacketFormats.QuartetFormat<?, ?, ?, ?> quartet) {
+            return usesContext(quartet.first()) || usesContext(quartet.second())
+                || usesContext(quartet.third()) || usesContext(quartet.fourth());
+        }
+        return false;
+    }
+
     /**
      * Generates a new empty Packet Specification with a Packet ID.
      * @param packetId The ID of the packet.
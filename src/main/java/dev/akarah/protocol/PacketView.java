@@ -0,0 +1,220 @@
+package dev.akarah.protocol;
+
+import dev.akarah.format.CodecContext;
+import dev.akarah.format.IntFormat;
+import dev.akarah.format.LongFormat;
+import dev.akarah.format.Packet;
+import dev.akarah.format.PacketFormat;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A received packet that is decoded one argument at a time, as its arguments are read, instead of all at once.
+ * A handler that only looks at one argument, say to route the packet, doesn't pay for decoding the others, which are
+ * skipped over.
+ * <p>
+ * The view reads the buffer its packet was received into, so it can only be read while the packet is being handled.
+ * To keep the packet for longer, call {@link #materialize()}, which decodes the remaining arguments into the packet
+ * itself. Views are not thread-safe.
+ * <p>
+ * Arguments that keep per-connection state, like interned strings, are decoded as soon as the view is created, so the
+ * state stays the same as on the sending end.
+ * @param <T> The intermediate type of the packet.
+ */
+public final class PacketView<T> {
+    private static final Object UNDECODED = new Object();
+
+    private final int packetId;
+    private final Packet<T, ?> prototype;
+    private final PacketSpecification<T> specification;
+    private final PacketFormat<?>[] arguments;
+    private final Object[] values;
+    /**
+     * Where each argument starts in the body, known up to {@link #located}, followed by where the body ends.
+     */
+    private final int[] offsets;
+    private int located;
+    private ByteBuffer body;
+    private Packet<T, ?> packet;
+    private CodecContext context;
+
+    PacketView(int packetId, Packet<T, ?> prototype, PacketSpecification<T> specification, ByteBuffer body) {
+        this.packetId = packetId;
+        this.prototype = prototype;
+        this.specification = specification;
+        this.arguments = specification.arguments();
+        this.values = new Object[this.arguments.length];
+        Arrays.fill(this.values, UNDECODED);
+        this.offsets = new int[this.arguments.length + 1];
+        this.body = body.slice();
+        var context = CodecContext.current();
+        this.context = context;
+        for(int i = 0; i < specification.eagerArguments(); i++) {
+            this.get(i);
+        }
+        // The rest may be decoded on another thread, once the connection's context has moved on to other packets, so
+        // it counts against a context of its own, holding what is left of the packet's element limit.
+        if(context != null) {
+            this.context = CodecContext.inbound();
+            this.context.limitElements(context.elementsLeft());
+        }
+    }
+
+    /**
+     * @return The ID the packet was received with.
+     */
+    public int packetId() {
+        return this.packetId;
+    }
+
+    /**
+     * @return How many arguments the packet has.
+     */
+    public int argumentCount() {
+        return this.arguments.length;
+    }
+
+    /**
+     * Decodes an argument, unless it already was. Arguments before it that weren't decoded yet are skipped over, to
+     * find where it starts, see {@link PacketFormat#skip(ByteBuffer)}.
+     * @param index The index of the argument, in the order of its packet's specification.
+     * @return The value of the argument.
+     * @param <V> The type of the argument.
+     * @throws IllegalStateException If the argument wasn't decoded and the packet was already handled.
+     */
+    @SuppressWarnings("unchecked")
+    public <V> V get(int index) {
+        var value = this.values[index];
+        if(value == UNDECODED) {
+            var previous = CodecContext.bind(this.context);
+            try {
+                value = this.arguments[index].read(this.seek(index));
+            } finally {
+                CodecContext.bind(previous);
+            }
+            this.values[index] = value;
+            this.located(index);
+        }
+        return (V) value;
+    }
+
+    /**
+     * Reads an {@code int} argument without boxing it, like {@code integer()}.
+     * @param index The index of the argument.
+     * @return The value of the argument.
+     * @throws IllegalStateException If the argument wasn't decoded and the packet was already handled.
+     */
+    public int getInt(int index) {
+        if(this.values[index] == UNDECODED && this.arguments[index] instanceof IntFormat format) {
+            var previous = CodecContext.bind(this.context);
+            int value;
+            try {
+                value = format.readInt(this.seek(index));
+            } finally {
+                CodecContext.bind(previous);
+            }
+            this.located(index);
+            return value;
+        }
+        return this.<Integer>get(index);
+    }
+
+    /**
+     * Reads a {@code long} argument without boxing it, like {@code longInteger()} or {@code varInt()}.
+     * @param index The index of the argument.
+     * @return The value of the argument.
+     * @throws IllegalStateException If the argument wasn't decoded and the packet was already handled.
+     */
+    public long getLong(int index) {
+        if(this.values[index] == UNDECODED && this.arguments[index] instanceof LongFormat format) {
+            var previous = CodecContext.bind(this.context);
+            long value;
+            try {
+                value = format.readLong(this.seek(index));
+            } finally {
+                CodecContext.bind(previous);
+            }
+            this.located(index);
+            return value;
+        }
+        return this.<Long>get(index);
+    }
+
+    /**
+     * Decodes every argument that wasn't decoded yet into the packet, and stops reading the buffer. This can be called
+     * more than once, and always returns the same packet.
+     * @return The packet, as it would have been decoded without a view.
+     * @throws IllegalStateException If the packet was already handled, and wasn't materialized while it was.
+     */
+    @SuppressWarnings("unchecked")
+    public Packet<T, ?> materialize() {
+        if(this.packet == null) {
+            T data;
+            var previous = CodecContext.bind(this.context);
+            try {
+                if(this.located == 0) {
+                    // Nothing was read yet, so the specification can decode the whole body, compiled if enabled.
+                    data = this.specification.decode(this.body().position(0));
+                } else {
+                    for(int i = 0; i < this.values.length; i++) {
+                        this.get(i);
+                    }
+                    data = this.specification.fromArguments(this.values);
+                }
+            } finally {
+                CodecContext.bind(previous);
+            }
+            this.packet = (Packet<T, ?>) this.prototype.fromDataObject(data);
+            this.body = null;
+        }
+        return this.packet;
+    }
+
+    /**
+     * @return Whether {@link #materialize()} was called.
+     */
+    public boolean isMaterialized() {
+        return this.packet != null;
+    }
+
+    /**
+     * Stops the view from reading its buffer, which is about to be reused. Arguments that were decoded can still be
+     * read. Connections call this once the packet was handled.
+     */
+    public void release() {
+        this.body = null;
+    }
+
+    /**
+     * Finds where an argument starts, skipping the arguments before it that weren't decoded yet.
+     * @return The body, positioned at the start of the argument.
+     */
+    private ByteBuffer seek(int index) {
+        var body = this.body();
+        while(this.located < index) {
+            var previous = this.located;
+            this.arguments[previous].skip(body.position(this.offsets[previous]));
+            this.offsets[previous + 1] = body.position();
+            this.located = previous + 1;
+        }
+        return body.position(this.offsets[index]);
+    }
+
+    /**
+     * Records where the argument just read ends, if it wasn't known yet.
+     */
+    private void located(int index) {
+        if(this.located == index) {
+            this.offsets[index + 1] = this.body.position();
+            this.located = index + 1;
+        }
+    }
+
+    private ByteBuffer body() {
+        if(this.body == null) {
+            throw new IllegalStateException("the packet was already handled, materialize() it to keep it");
+        }
+        return this.body;
+    }
+}
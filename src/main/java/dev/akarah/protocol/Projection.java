@@ -0,0 +1,87 @@
+package dev.akarah.protocol;
+
+import dev.akarah.format.PacketFormat;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * Which arguments of a packet are needed, by their index in the packet's {@link PacketSpecification}. Decoding with a
+ * projection skips every other argument, see {@link PacketFormat#skip(ByteBuffer)}, and leaves it
+ * null in the packet's intermediate value, so the packet must accept nulls for them.
+ */
+public final class Projection {
+    private static final Projection ALL = new Projection(-1L);
+
+    private final long arguments;
+
+    private Projection(long arguments) {
+        this.arguments = arguments;
+    }
+
+    /**
+     * @param arguments The indices of the needed arguments.
+     * @return A projection of only those arguments.
+     */
+    public static Projection of(int... arguments) {
+        long mask = 0;
+        for(var argument : arguments) {
+            if(argument < 0 || argument >= Long.SIZE) {
+                throw new IllegalArgumentException("argument index must be between 0 and 63, got " + argument);
+            }
+            mask |= 1L << argument;
+        }
+        return new Projection(mask);
+    }
+
+    /**
+     * @return A projection of every argument, which decodes packets whole.
+     */
+    public static Projection all() {
+        return ALL;
+    }
+
+    /**
+     * @return Whether the argument at the index is needed.
+     */
+    public boolean includes(int argument) {
+        return (this.arguments & (1L << argument)) != 0;
+    }
+
+    /**
+     * @return Whether every one of the first {@code count} arguments is needed.
+     */
+    public boolean includesFirst(int count) {
+        var mask = count >= Long.SIZE ? -1L : (1L << count) - 1;
+        return (this.arguments & mask) == mask;
+    }
+
+    /**
+     * @return A projection of the arguments needed by this one, the other, or both.
+     */
+    public Projection union(Projection other) {
+        return new Projection(this.arguments | other.arguments);
+    }
+
+    /**
+     * @return One more than the index of the last needed argument, or 0 if none are.
+     */
+    int end() {
+        return Long.SIZE - Long.numberOfLeadingZeros(this.arguments);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof Projection projection && projection.arguments == this.arguments;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(this.arguments);
+    }
+
+    @Override
+    public String toString() {
+        return this == ALL ? "Projection[all]" : "Projection" + BitSet.valueOf(new long[]{this.arguments});
+    }
+}
@@ -1,17 +1,46 @@
 package dev.akarah.protocol;
 
+import dev.akarah.format.CodecContext;
 import dev.akarah.format.Packet;
+import dev.akarah.util.VarIntStreamUtils;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Represents a series of valid packet formats.
+ * <p>
+ * Packets are registered first, then the protocol is frozen into an immutable table, either with {@link #freeze()}
+ * or by the first lookup. Servers and clients freeze the protocol they're given. A frozen protocol can be shared by
+ * any amount of threads, and no more packets can be registered.
  */
 public class Protocol {
+    /**
+     * Packet IDs below this are looked up by indexing an array, and the rest with a binary search.
+     */
+    public static final int DENSE_ID_LIMIT = 4096;
+    /**
+     * The default largest frame, packet ID included, that can be received: 16 MiB.
+     */
+    public static final int DEFAULT_MAX_FRAME_SIZE = 1 << 24;
+    /**
+     * The default amount of collection elements a received packet can have: about a million.
+     */
+    public static final int DEFAULT_MAX_ELEMENTS = 1 << 20;
+
     private final HashMap<Integer, Packet<?, ? extends Packet<?, ?>>> packets = new HashMap<>();
+    private final HashMap<Integer, PacketSpecification<?>> specifications = new HashMap<>();
+    private final HashMap<Class<?>, PacketSpecification<?>> specificationsByClass = new HashMap<>();
+    private final HashMap<Integer, Integer> maxFrameSizes = new HashMap<>();
 
     private int protocolVersion = 0;
+    private boolean compiledCodecs = false;
+    private Compression compression = Compression.none();
+    private int maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+    private int maxElements = DEFAULT_MAX_ELEMENTS;
+    private Table table;
 
     private Protocol() {
     }
@@ -41,28 +70,401 @@ public class Protocol {
         return this.protocolVersion;
     }
 
+    /**
+     * Makes the protocol compile every packet's specification with {@link CodecCompiler} as it is registered,
+     * including packets registered before this call. Packets then decode and encode through generated code.
+     *
+     * @return The same protocol with compiled codecs enabled.
+     */
+    public Protocol withCompiledCodecs() {
+        this.checkNotFrozen();
+        this.compiledCodecs = true;
+        for (var entry : this.specifications.entrySet()) {
+            var spec = entry.getValue().compiled();
+            entry.setValue(spec);
+            this.specificationsByClass.put(this.packets.get(entry.getKey()).getClass(), spec);
+        }
+        return this;
+    }
+
+    /**
+     * Compresses large frames sent with this protocol. Both ends of a connection must use the same compression, as it
+     * changes the frame header.
+     *
+     * @param compression The compression to use, such as {@link Compression#deflate(int)}.
+     * @return The same protocol with compression set.
+     * @throws IllegalStateException If the protocol is frozen.
+     */
+    public Protocol withCompression(Compression compression) {
+        this.checkNotFrozen();
+        this.compression = compression;
+        return this;
+    }
+
+    /**
+     * @return The compression of frames sent with this protocol.
+     */
+    public Compression compression() {
+        var table = this.table;
+        return table != null ? table.compression : this.compression;
+    }
+
+    /**
+     * Sets the largest frame that can be received, counting the packet ID and the body before any decompression.
+     * A connection receiving a larger frame is closed as soon as the length prefix arrives, before anything is
+     * allocated for the frame. Defaults to {@link #DEFAULT_MAX_FRAME_SIZE}.
+     *
+     * @param maxFrameSize The largest frame, in bytes.
+     * @return The same protocol with the limit set.
+     * @throws IllegalStateException If the protocol is frozen.
+     */
+    public Protocol withMaxFrameSize(int maxFrameSize) {
+        this.checkNotFrozen();
+        if (maxFrameSize < 1) {
+            throw new IllegalArgumentException("max frame size must be positive, got " + maxFrameSize);
+        }
+        this.maxFrameSize = maxFrameSize;
+        return this;
+    }
+
+    /**
+     * Sets the largest frame that can be received for one packet ID, overriding {@link #withMaxFrameSize(int)}.
+     * This can be larger, for a few bulk packets, or smaller.
+     *
+     * @param packetId The ID of the packet.
+     * @param maxFrameSize The largest frame, in bytes.
+     * @return The same protocol with the limit set.
+     * @throws IllegalStateException If the protocol is frozen.
+     */
+    public Protocol withMaxFrameSize(int packetId, int maxFrameSize) {
+        this.checkNotFrozen();
+        if (maxFrameSize < 1) {
+            throw new IllegalArgumentException("max frame size must be positive, got " + maxFrameSize);
+        }
+        this.maxFrameSizes.put(packetId, maxFrameSize);
+        return this;
+    }
+
+    /**
+     * Sets how many collection elements a received packet can have, summed over every array however deeply nested.
+     * The limit is checked as each array's length is read, before the array is allocated. Defaults to
+     * {@link #DEFAULT_MAX_ELEMENTS}.
+     *
+     * @param maxElements The amount of elements.
+     * @return The same protocol with the limit set.
+     * @throws IllegalStateException If the protocol is frozen.
+     */
+    public Protocol withMaxElements(int maxElements) {
+        this.checkNotFrozen();
+        if (maxElements < 0) {
+            throw new IllegalArgumentException("max elements can't be negative, got " + maxElements);
+        }
+        this.maxElements = maxElements;
+        return this;
+    }
+
+    /**
+     * @return The largest frame any packet can be received in, see {@link #withMaxFrameSize(int)}.
+     */
+    public int maxFrameSize() {
+        return this.frozen().largestFrameSize;
+    }
+
+    /**
+     * @param id The ID of the packet.
+     * @return The largest frame the packet can be received in, see {@link #withMaxFrameSize(int, int)}. Packets with a
+     * {@link PacketSpecification#fixedSize()} can't be received in frames any larger than they are.
+     */
+    public int maxFrameSize(int id) {
+        var table = this.frozen();
+        var index = table.indexOf(id);
+        return index < 0 ? table.maxFrameSize : table.maxFrameSizes[index];
+    }
+
+    /**
+     * @return How many collection elements a received packet can have, see {@link #withMaxElements(int)}.
+     */
+    public int maxElements() {
+        var table = this.table;
+        return table != null ? table.maxElements : this.maxElements;
+    }
+
     /**
      * Registers a new packet to be understood by the protocol.
      *
      * @param packet The new packet to add.
      * @return The protocol with the new packet registered.
      * @throws PacketAlreadyPresentException If the protocol already has a packet of this ID.
+     * @throws IllegalArgumentException If the packet's ID is negative.
+     * @throws IllegalStateException If the protocol is frozen.
      */
     public Protocol registerPacket(Packet<?, ? extends Packet<?, ?>> packet) {
+        this.checkNotFrozen();
+        if (packet.specification().getPacketId() < 0) {
+            throw new IllegalArgumentException("packet IDs can't be negative, got " + packet.specification().getPacketId());
+        }
         if (this.packets.containsKey(packet.specification().getPacketId())) {
             throw new PacketAlreadyPresentException(packet.specification().getPacketId());
         }
 
-        this.packets.put(packet.specification().getPacketId(), packet);
+        PacketSpecification<?> spec = packet.specification();
+        if (this.compiledCodecs) {
+            spec = spec.compiled();
+        }
+        this.packets.put(spec.getPacketId(), packet);
+        this.specifications.put(spec.getPacketId(), spec);
+        this.specificationsByClass.put(packet.getClass(), spec);
+        return this;
+    }
+
+    /**
+     * Builds the lookup table and stops any more packets from being registered. Calling this again does nothing.
+     *
+     * @return The same protocol, frozen.
+     */
+    public Protocol freeze() {
+        this.frozen();
         return this;
     }
 
+    /**
+     * @return Whether the protocol is frozen, see {@link #freeze()}.
+     */
+    public boolean isFrozen() {
+        return this.table != null;
+    }
+
+    /**
+     * @param id The ID of the packet.
+     * @return The packet registered for that ID, or null if there is none.
+     */
     public Packet<?, ?> getPacketDefaultFromId(int id) {
-        return this.packets.get(id);
+        var table = this.frozen();
+        var index = table.indexOf(id);
+        return index < 0 ? null : table.packets[index];
+    }
+
+    /**
+     * @param id The ID of the packet.
+     * @return The specification the protocol registered for that ID, which is compiled if enabled, or null if there is
+     * none.
+     */
+    public PacketSpecification<?> getSpecification(int id) {
+        var table = this.frozen();
+        var index = table.indexOf(id);
+        return index < 0 ? null : table.specifications[index];
+    }
+
+    /**
+     * @return The IDs of every registered packet, in ascending order.
+     */
+    public int[] packetIds() {
+        var table = this.frozen();
+        var ids = new int[table.packets.length];
+        var count = 0;
+        for (int id = 0; id < table.denseLength; id++) {
+            if (table.packets[id] != null) {
+                ids[count++] = id;
+            }
+        }
+        System.arraycopy(table.sparseIds, 0, ids, count, table.sparseIds.length);
+        return Arrays.copyOf(ids, count + table.sparseIds.length);
     }
 
+    /**
+     * Finds where a packet is in the frozen table, so per-packet data can be kept in an array of
+     * {@link #indexCount()} elements instead of a map.
+     *
+     * @param id The ID of the packet.
+     * @return The index of the packet, or -1 if there is none with that ID.
+     */
+    public int indexOf(int id) {
+        return this.frozen().indexOf(id);
+    }
+
+    /**
+     * @return One more than the largest index {@link #indexOf(int)} can return.
+     */
+    public int indexCount() {
+        return this.frozen().packets.length;
+    }
+
+    /**
+     * Finds the specification to encode a packet with. This avoids building a new specification for every packet sent,
+     * and picks up the compiled specification if enabled.
+     *
+     * @param packet The packet to look up.
+     * @return The registered specification of the packet's class, or the packet's own if its class isn't registered.
+     */
+    public PacketSpecification<?> specificationFor(Packet<?, ?> packet) {
+        var spec = this.frozen().specificationsByClass.get(packet.getClass());
+        return spec != null ? spec : packet.specification();
+    }
+
+    /**
+     * @param id The ID the packet was received with.
+     * @param buffer The body of the packet.
+     * @return The decoded packet.
+     * @throws UnknownPacketException If no packet is registered for the ID.
+     * @throws LimitExceededException If the packet has more collection elements than {@link #maxElements()}, which is
+     * only checked when a {@link CodecContext} is bound.
+     */
     public Packet<?, ?> readPacket(int id, ByteBuffer buffer) {
-        var pkt = this.packets.get(id);
-        return pkt.fromDataObject(pkt.specification().decode(buffer));
+        var table = this.frozen();
+        var index = table.indexOf(id);
+        if (index < 0) {
+            throw new UnknownPacketException(id);
+        }
+        var context = CodecContext.current();
+        if (context != null) {
+            context.limitElements(table.maxElements);
+        }
+        return (Packet<?, ?>) table.packets[index].fromDataObject(table.specifications[index].decode(buffer));
+    }
+
+    /**
+     * Decodes a received packet like {@link #readPacket(int, ByteBuffer)}, but only the arguments in a projection.
+     *
+     * @param id The ID the packet was received with.
+     * @param buffer The body of the packet.
+     * @param projection The arguments to decode, the others are left null.
+     * @return The decoded packet.
+     * @throws UnknownPacketException If no packet is registered for the ID.
+     * @throws LimitExceededException If the packet has more collection elements than {@link #maxElements()}, which is
+     * only checked when a {@link CodecContext} is bound.
+     */
+    public Packet<?, ?> readPacket(int id, ByteBuffer buffer, Projection projection) {
+        var table = this.frozen();
+        var index = table.indexOf(id);
+        if (index < 0) {
+            throw new UnknownPacketException(id);
+        }
+        var context = CodecContext.current();
+        if (context != null) {
+            context.limitElements(table.maxElements);
+        }
+        return (Packet<?, ?>) table.packets[index].fromDataObject(table.specifications[index].decode(buffer, projection));
+    }
+
+    /**
+     * Wraps a received packet body in a view, which only decodes the packet's arguments as they are read.
+     *
+     * @param id The ID the packet was received with.
+     * @param buffer The body of the packet, which the view reads until it is materialized or released.
+     * @return The view of the packet, see {@link PacketView}.
+     * @throws UnknownPacketException If no packet is registered for the ID.
+     * @throws LimitExceededException If the arguments decoded right away have more collection elements than
+     * {@link #maxElements()}, which is only checked when a {@link CodecContext} is bound.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public PacketView<?> readView(int id, ByteBuffer buffer) {
+        var table = this.frozen();
+        var index = table.indexOf(id);
+        if (index < 0) {
+            throw new UnknownPacketException(id);
+        }
+        var context = CodecContext.current();
+        if (context != null) {
+            context.limitElements(table.maxElements);
+        }
+        return new PacketView(id, table.packets[index], table.specifications[index], buffer);
+    }
+
+    private void checkNotFrozen() {
+        if (this.isFrozen()) {
+            throw new IllegalStateException("the protocol is frozen and can't be changed");
+        }
+    }
+
+    // The table is only ever read through final fields, so seeing it without synchronization is safe.
+    // Seeing null just means taking the lock, which either builds the table or finds the one already built.
+    private Table frozen() {
+        var table = this.table;
+        return table != null ? table : this.freezeLocked();
+    }
+
+    private synchronized Table freezeLocked() {
+        if (this.table == null) {
+            this.table = new Table(
+                this.packets,
+                this.specifications,
+                this.specificationsByClass,
+                this.maxFrameSize,
+                this.maxFrameSizes,
+                this.maxElements,
+                this.compression
+            );
+        }
+        return this.table;
+    }
+
+    /**
+     * The frozen lookup table. IDs below {@link #DENSE_ID_LIMIT} index straight into the arrays, and larger IDs are
+     * kept sorted after them.
+     */
+    private static final class Table {
+        final Packet<?, ?>[] packets;
+        final PacketSpecification<?>[] specifications;
+        final int denseLength;
+        final int[] sparseIds;
+        final Map<Class<?>, PacketSpecification<?>> specificationsByClass;
+        final int maxFrameSize;
+        final int[] maxFrameSizes;
+        final int largestFrameSize;
+        final int maxElements;
+        final Compression compression;
+
+        Table(
+            Map<Integer, Packet<?, ? extends Packet<?, ?>>> packets,
+            Map<Integer, PacketSpecification<?>> specifications,
+            Map<Class<?>, PacketSpecification<?>> specificationsByClass,
+            int maxFrameSize,
+            Map<Integer, Integer> maxFrameSizes,
+            int maxElements,
+            Compression compression
+        ) {
+            var ids = packets.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+            var sparseStart = 0;
+            while (sparseStart < ids.length && ids[sparseStart] < DENSE_ID_LIMIT) {
+                sparseStart++;
+            }
+            this.denseLength = sparseStart == 0 ? 0 : ids[sparseStart - 1] + 1;
+            this.sparseIds = Arrays.copyOfRange(ids, sparseStart, ids.length);
+            this.packets = new Packet<?, ?>[this.denseLength + this.sparseIds.length];
+            this.specifications = new PacketSpecification<?>[this.packets.length];
+            this.maxFrameSizes = new int[this.packets.length];
+            var largestFrameSize = maxFrameSize;
+            for (int i = 0; i < ids.length; i++) {
+                var index = i < sparseStart ? ids[i] : this.denseLength + i - sparseStart;
+                this.packets[index] = packets.get(ids[i]);
+                this.specifications[index] = specifications.get(ids[i]);
+                this.maxFrameSizes[index] = maxFrameSizes.getOrDefault(ids[i], maxFrameSize);
+                var fixedSize = this.specifications[index].fixedSize();
+                if (fixedSize >= 0) {
+                    // A fixed-size packet can't be any longer, so longer frames are rejected as soon as their ID arrives.
+                    this.maxFrameSizes[index] = (int) Math.min(
+                        this.maxFrameSizes[index],
+                        (long) VarIntStreamUtils.varLongSize(ids[i]) + fixedSize
+                    );
+                }
+                largestFrameSize = Math.max(largestFrameSize, this.maxFrameSizes[index]);
+            }
+            this.largestFrameSize = largestFrameSize;
+            this.specificationsByClass = Map.copyOf(specificationsByClass);
+            this.maxFrameSize = maxFrameSize;
+            this.maxElements = maxElements;
+            this.compression = compression;
+        }
+
+        int indexOf(int id) {
+            if (id >= 0 && id < this.denseLength) {
+                return this.packets[id] == null ? -1 : id;
+            }
+            if (id < DENSE_ID_LIMIT) {
+                return -1;
+            }
+            var index = Arrays.binarySearch(this.sparseIds, id);
+            return index < 0 ? -1 : this.denseLength + index;
+        }
     }
 }
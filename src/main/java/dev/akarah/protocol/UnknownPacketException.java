@@ -0,0 +1,9 @@
+package dev.akarah.protocol;
+
+public class UnknownPacketException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public UnknownPacketException(int packetId) {
+        super("Protocol has no packet of ID #" + packetId);
+    }
+}
@@ -0,0 +1,81 @@
+package dev.akarah.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Hands out reusable {@link ByteBuffer}s, so encoding and decoding packets doesn't produce garbage.
+ * <p>
+ * Every buffer acquired from a pool should be released back to it exactly once when it's no longer used,
+ * and must not be touched afterwards. Buffers that are never released aren't a problem for the heap,
+ * they just aren't reused. Implementations must be safe to use from many threads at once.
+ */
+public interface BufferPool {
+    /**
+     * The system property that, when set to {@code true}, wraps the default pools with leak detection.
+     * Meant for tests, as it records a stack trace for every buffer acquired.
+     */
+    String LEAK_DETECTION_PROPERTY = "dev.akarah.bufferPool.leakDetection";
+
+    /**
+     * @param minCapacity The least amount of bytes the buffer must be able to hold.
+     * @return A cleared buffer with a capacity of at least {@code minCapacity}.
+     */
+    ByteBuffer acquire(int minCapacity);
+
+    /**
+     * Gives a buffer back to the pool. It must have been acquired from this pool, and not released since.
+     * @param buffer The buffer to release. Slices or duplicates of it must not be passed in.
+     */
+    void release(ByteBuffer buffer);
+
+    /**
+     * @return The shared pool of heap buffers.
+     */
+    static BufferPool heap() {
+        return DefaultBufferPools.HEAP;
+    }
+
+    /**
+     * @return The shared pool of direct buffers, best for buffers handed to channels.
+     */
+    static BufferPool direct() {
+        return DefaultBufferPools.DIRECT;
+    }
+
+    /**
+     * @param direct Whether to allocate direct buffers.
+     * @return A pool that allocates a new buffer every time and drops released ones.
+     */
+    static BufferPool unpooled(boolean direct) {
+        return new BufferPool() {
+            @Override
+            public ByteBuffer acquire(int minCapacity) {
+                return direct ? ByteBuffer.allocateDirect(minCapacity) : ByteBuffer.allocate(minCapacity);
+            }
+
+            @Override
+            public void release(ByteBuffer buffer) {
+            }
+        };
+    }
+
+    /**
+     * @param pool The pool to watch.
+     * @return The pool wrapped so that every unreleased or doubly released buffer can be traced back to its acquirer.
+     */
+    static LeakDetectingBufferPool leakDetecting(BufferPool pool) {
+        return new LeakDetectingBufferPool(pool);
+    }
+}
+
+class DefaultBufferPools {
+    static final BufferPool HEAP = wrap(new SizeClassBufferPool(false));
+    static final BufferPool DIRECT = wrap(new SizeClassBufferPool(true));
+
+    private static BufferPool wrap(BufferPool pool) {
+        if(Boolean.getBoolean(BufferPool.LEAK_DETECTION_PROPERTY)) {
+            return BufferPool.leakDetecting(pool);
+        }
+        return pool;
+    }
+}
@@ -0,0 +1,62 @@
+package dev.akarah.util;
+
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Wraps a {@link BufferPool}, remembering where every outstanding buffer was acquired.
+ * This is slow, and meant for tests: check {@link #assertNoLeaks()} once everything should have been released.
+ */
+public class LeakDetectingBufferPool implements BufferPool {
+    private final BufferPool inner;
+    private final Map<ByteBuffer, Throwable> outstanding = new IdentityHashMap<>();
+
+    LeakDetectingBufferPool(BufferPool inner) {
+        this.inner = inner;
+    }
+
+    @Override
+    public ByteBuffer acquire(int minCapacity) {
+        var buffer = this.inner.acquire(minCapacity);
+        synchronized (this.outstanding) {
+            this.outstanding.put(buffer, new Throwable("buffer of " + buffer.capacity() + " bytes acquired here"));
+        }
+        return buffer;
+    }
+
+    @Override
+    public void release(ByteBuffer buffer) {
+        synchronized (this.outstanding) {
+            if(this.outstanding.remove(buffer) == null) {
+                throw new IllegalStateException("released a buffer that was not acquired from this pool, or released it twice");
+            }
+        }
+        this.inner.release(buffer);
+    }
+
+    /**
+     * @return The amount of buffers acquired but not yet released.
+     */
+    public int outstanding() {
+        synchronized (this.outstanding) {
+            return this.outstanding.size();
+        }
+    }
+
+    /**
+     * @throws IllegalStateException If any buffer is still outstanding, with the places they were acquired attached.
+     */
+    public void assertNoLeaks() {
+        synchronized (this.outstanding) {
+            if(this.outstanding.isEmpty()) {
+                return;
+            }
+            var exception = new IllegalStateException(this.outstanding.size() + " buffer(s) were never released");
+            for(var origin : this.outstanding.values()) {
+                exception.addSuppressed(origin);
+            }
+            throw exception;
+        }
+    }
+}
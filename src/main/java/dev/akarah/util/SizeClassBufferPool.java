@@ -0,0 +1,126 @@
+package dev.akarah.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A {@link BufferPool} that rounds requests up to power-of-two size classes and keeps released buffers per class.
+ * <p>
+ * Platform threads get a small cache per class, so a thread that acquires and releases in turn never contends
+ * with other threads. Virtual threads are short-lived and numerous, so they go straight to the shared queues.
+ * Requests larger than the biggest class are allocated as-is, and dropped on release.
+ */
+public class SizeClassBufferPool implements BufferPool {
+    private static final int MIN_SHIFT = 8;
+    private static final int DEFAULT_MAX_SHIFT = 22;
+    private static final int DEFAULT_BUFFERS_PER_CLASS = 256;
+    private static final int LOCAL_CACHE_SIZE = 8;
+
+    private final boolean direct;
+    private final int maxShift;
+    private final ArrayBlockingQueue<ByteBuffer>[] shared;
+    private final ThreadLocal<LocalCache> localCaches;
+
+    /**
+     * Creates a pool with size classes from 256 bytes to 4 MiB, each keeping up to 256 free buffers.
+     * @param direct Whether to allocate direct buffers.
+     */
+    public SizeClassBufferPool(boolean direct) {
+        this(direct, 1 << DEFAULT_MAX_SHIFT, DEFAULT_BUFFERS_PER_CLASS);
+    }
+
+    /**
+     * @param direct Whether to allocate direct buffers.
+     * @param maxPooledSize The largest buffer size to pool, rounded up to a power of two.
+     * @param buffersPerClass How many free buffers each size class keeps in its shared queue.
+     */
+    public SizeClassBufferPool(boolean direct, int maxPooledSize, int buffersPerClass) {
+        if(maxPooledSize <= 0 || buffersPerClass <= 0)
+            throw new IllegalArgumentException("pool sizes must be positive");
+        this.direct = direct;
+        this.maxShift = Math.max(MIN_SHIFT, shiftFor(maxPooledSize));
+
+        @SuppressWarnings("unchecked")
+        var shared = (ArrayBlockingQueue<ByteBuffer>[]) new ArrayBlockingQueue<?>[this.maxShift - MIN_SHIFT + 1];
+        this.shared = shared;
+        for(int i = 0; i < this.shared.length; i++) {
+            this.shared[i] = new ArrayBlockingQueue<>(buffersPerClass);
+        }
+        this.localCaches = ThreadLocal.withInitial(() -> new LocalCache(this.shared.length));
+    }
+
+    @Override
+    public ByteBuffer acquire(int minCapacity) {
+        var shift = Math.max(MIN_SHIFT, shiftFor(minCapacity));
+        if(shift > this.maxShift) {
+            return this.allocate(minCapacity);
+        }
+
+        var sizeClass = shift - MIN_SHIFT;
+        ByteBuffer buffer = null;
+        if(!Thread.currentThread().isVirtual()) {
+            buffer = this.localCaches.get().poll(sizeClass);
+        }
+        if(buffer == null) {
+            buffer = this.shared[sizeClass].poll();
+        }
+        if(buffer == null) {
+            return this.allocate(1 << shift);
+        }
+        return buffer.clear();
+    }
+
+    @Override
+    public void release(ByteBuffer buffer) {
+        var capacity = buffer.capacity();
+        if(buffer.isDirect() != this.direct || Integer.bitCount(capacity) != 1) {
+            return;
+        }
+        var shift = Integer.numberOfTrailingZeros(capacity);
+        if(shift < MIN_SHIFT || shift > this.maxShift) {
+            return;
+        }
+
+        var sizeClass = shift - MIN_SHIFT;
+        if(!Thread.currentThread().isVirtual() && this.localCaches.get().offer(sizeClass, buffer)) {
+            return;
+        }
+        this.shared[sizeClass].offer(buffer);
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return this.direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    private static int shiftFor(int size) {
+        return 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+    }
+
+    private static class LocalCache {
+        private final ByteBuffer[][] buffers;
+        private final int[] counts;
+
+        LocalCache(int sizeClasses) {
+            this.buffers = new ByteBuffer[sizeClasses][LOCAL_CACHE_SIZE];
+            this.counts = new int[sizeClasses];
+        }
+
+        ByteBuffer poll(int sizeClass) {
+            if(this.counts[sizeClass] == 0) {
+                return null;
+            }
+            var index = --this.counts[sizeClass];
+            var buffer = this.buffers[sizeClass][index];
+            this.buffers[sizeClass][index] = null;
+            return buffer;
+        }
+
+        boolean offer(int sizeClass, ByteBuffer buffer) {
+            if(this.counts[sizeClass] == LOCAL_CACHE_SIZE) {
+                return false;
+            }
+            this.buffers[sizeClass][this.counts[sizeClass]++] = buffer;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package dev.akarah.util;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * UTF-8 encoding and decoding straight to and from {@link ByteBuffer}s, without intermediate byte arrays.
+ * Unpaired surrogates are encoded as {@code '?'}, the same as {@link String#getBytes(java.nio.charset.Charset)}.
+ */
+public class Utf8Utils {
+    private static final int SCRATCH_SIZE = 4096;
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[SCRATCH_SIZE]);
+
+    /**
+     * @param value The string to measure.
+     * @return The amount of bytes the string takes up when encoded as UTF-8.
+     */
+    public static int encodedLength(String value) {
+        int length = value.length();
+        int bytes = length;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                continue;
+            }
+            if (c < 0x800) {
+                bytes += 1;
+            } else if (!Character.isSurrogate(c)) {
+                bytes += 2;
+            } else if (isSurrogatePair(value, i)) {
+                bytes += 2;
+                i++;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes the string as UTF-8 at the buffer's position. There must be room for
+     * {@link #encodedLength(String)} bytes, otherwise a {@link java.nio.BufferOverflowException} is thrown
+     * part of the way through.
+     */
+    public static void encode(ByteBuffer buf, String value) {
+        int length = value.length();
+        int position = buf.position();
+        int ascii = Math.min(length, buf.remaining());
+        int i = 0;
+
+        if (buf.hasArray()) {
+            byte[] array = buf.array();
+            int offset = buf.arrayOffset() + position;
+            for (; i < ascii; i++) {
+                char c = value.charAt(i);
+                if (c >= 0x80) break;
+                array[offset + i] = (byte) c;
+            }
+        } else {
+            for (; i < ascii; i++) {
+                char c = value.charAt(i);
+                if (c >= 0x80) break;
+                buf.put(position + i, (byte) c);
+            }
+        }
+        buf.position(position + i);
+
+        for (; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buf.put((byte) c);
+            } else if (c < 0x800) {
+                buf.put((byte) (0xC0 | (c >> 6)));
+                buf.put((byte) (0x80 | (c & 0x3F)));
+            } else if (!Character.isSurrogate(c)) {
+                buf.put((byte) (0xE0 | (c >> 12)));
+                buf.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buf.put((byte) (0x80 | (c & 0x3F)));
+            } else if (isSurrogatePair(value, i)) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buf.put((byte) (0xF0 | (codePoint >> 18)));
+                buf.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                buf.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                buf.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else {
+                buf.put((byte) '?');
+            }
+        }
+    }
+
+    /**
+     * Reads {@code length} bytes of UTF-8 at the buffer's position. Heap buffers are decoded from their backing array
+     * directly, other buffers through a per-thread scratch array. ASCII-only input is detected by
+     * {@link String#String(byte[], int, int, java.nio.charset.Charset)} and copied without decoding.
+     */
+    public static String decode(ByteBuffer buf, int length) {
+        if (length < 0 || buf.remaining() < length) {
+            throw new BufferUnderflowException();
+        }
+        int position = buf.position();
+        String value;
+        if (buf.hasArray()) {
+            value = new String(buf.array(), buf.arrayOffset() + position, length, StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = length <= SCRATCH_SIZE ? SCRATCH.get() : new byte[length];
+            buf.get(position, bytes, 0, length);
+            value = new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+        buf.position(position + length);
+        return value;
+    }
+
+    private static boolean isSurrogatePair(String value, int index) {
+        return Character.isHighSurrogate(value.charAt(index))
+            && index + 1 < value.length()
+            && Character.isLowSurrogate(value.charAt(index + 1));
+    }
+}
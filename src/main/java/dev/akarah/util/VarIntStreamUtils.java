@@ -2,9 +2,11 @@ package dev.akarah.util;
 
 import org.javatuples.Pair;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 public class VarIntStreamUtils {
     private static final int SEGMENT_BITS = 0x7F;
@@ -16,7 +18,7 @@ public class VarIntStreamUtils {
         byte currentByte;
 
         while (true) {
-            currentByte = (byte) stream.read();
+            currentByte = readByte(stream);
             value |= (long) (currentByte & SEGMENT_BITS) << position;
 
             if ((currentByte & CONTINUE_BIT) == 0) break;
@@ -35,7 +37,7 @@ public class VarIntStreamUtils {
         int length = 0;
         while (true) {
             length += 1;
-            currentByte = (byte) stream.read();
+            currentByte = readByte(stream);
             value |= (long) (currentByte & SEGMENT_BITS) << position;
 
             if ((currentByte & CONTINUE_BIT) == 0) break;
@@ -46,6 +48,14 @@ public class VarIntStreamUtils {
         return new Pair<>(value, length);
     }
 
+    private static byte readByte(InputStream stream) throws IOException {
+        var value = stream.read();
+        if (value < 0) {
+            throw new EOFException("stream ended in the middle of a VarLong");
+        }
+        return (byte) value;
+    }
+
     public static int writeVarLong(OutputStream stream, long value) throws IOException {
         int length = 0;
         while (true) {
@@ -60,4 +70,69 @@ public class VarIntStreamUtils {
             value >>>= 7;
         }
     }
+
+    /**
+     * @param value The value to measure.
+     * @return The amount of bytes the value takes up when encoded as a VarLong.
+     */
+    public static int varLongSize(long value) {
+        int length = 1;
+        while ((value & ~((long) SEGMENT_BITS)) != 0) {
+            length++;
+            value >>>= 7;
+        }
+        return length;
+    }
+
+    public static void writeVarLong(ByteBuffer buf, long value) {
+        while (true) {
+            if ((value & ~((long) SEGMENT_BITS)) == 0) {
+                buf.put((byte) value);
+                return;
+            }
+
+            buf.put((byte) ((value & SEGMENT_BITS) | CONTINUE_BIT));
+
+            value >>>= 7;
+        }
+    }
+
+    /**
+     * Checks whether a complete VarLong is present in the buffer, without moving its position.
+     * @param buf The buffer to look into.
+     * @param index The absolute index the VarLong starts at.
+     * @return The length of the VarLong in bytes, or 0 if the buffer ends before the VarLong does.
+     */
+    public static int peekVarLongLength(ByteBuffer buf, int index) {
+        for (int i = index; i < buf.limit(); i++) {
+            if ((buf.get(i) & CONTINUE_BIT) == 0) {
+                return i - index + 1;
+            }
+            if (i - index >= 9) {
+                throw new RuntimeException("VarLong is too big");
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Reads a VarLong at an absolute index, without moving the buffer's position.
+     * The VarLong must be complete, see {@link #peekVarLongLength(ByteBuffer, int)}.
+     */
+    public static long getVarLong(ByteBuffer buf, int index) {
+        long value = 0;
+        int position = 0;
+        byte currentByte;
+
+        while (true) {
+            currentByte = buf.get(index++);
+            value |= (long) (currentByte & SEGMENT_BITS) << position;
+
+            if ((currentByte & CONTINUE_BIT) == 0) break;
+
+            position += 7;
+        }
+
+        return value;
+    }
 }
@@ -0,0 +1,38 @@
+package chat.packets;
+
+import dev.akarah.format.Packet;
+import dev.akarah.protocol.Argument;
+import dev.akarah.protocol.PacketSpecification;
+import org.javatuples.Pair;
+
+public class ChatMessagePacket extends Packet<Pair<String, String>, ChatMessagePacket> {
+    public final String username;
+    public final String message;
+
+    public ChatMessagePacket(String username, String message) {
+        this.username = username;
+        this.message = message;
+    }
+
+    @Override
+    public PacketSpecification<Pair<String, String>> specification() {
+        return PacketSpecification
+            .ofId(1)
+            .withArguments(
+                Argument.string()
+                    .comment("Username of the message"),
+                Argument.string()
+                    .comment("Actual content of the message")
+            );
+    }
+
+    @Override
+    public ChatMessagePacket fromData(Pair<String, String> formattedData) {
+        return new ChatMessagePacket(formattedData.getValue0(), formattedData.getValue1());
+    }
+
+    @Override
+    public Pair<String, String> toFormat() {
+        return new Pair<>(this.username, this.message);
+    }
+}
@@ -2,7 +2,6 @@ package chat.targets;
 
 import chat.packets.ChatMessagePacket;
 import chat.packets.ChatProtocol;
-import dev.akarah.format.Packet;
 import dev.akarah.networking.ProtocolClient;
 import dev.akarah.networking.ProtocolServer;
 import dev.akarah.networking.ServerConnection;
@@ -19,11 +18,11 @@ public class ChatApp {
             ProtocolServer.withProtocol(ChatProtocol.PROTOCOL)
                 .withPort(2000)
                 .withConnectionListener(ServerFunctions::listenForConnection)
-                .withPacketListener(ServerFunctions::echoMessage)
+                .withPacketHandler(ChatMessagePacket.class, ServerFunctions::echoMessage)
                 .start();
         } else if(args[0].equals("--client")) {
             var client = ProtocolClient.of(ChatProtocol.PROTOCOL, new InetSocketAddress("localhost", 2000))
-                .withPacketListener(ClientFunctions::echoMessage)
+                .withPacketHandler(ChatMessagePacket.class, ClientFunctions::echoMessage)
                 .start();
             Thread.ofVirtual().start(() -> {
                 try {
@@ -52,18 +51,14 @@ public class ChatApp {
             System.out.println("Connection established from " + connection.socket.getInetAddress());
         }
 
-        public static void echoMessage(Packet<?, ?> packet) {
-            if(packet instanceof ChatMessagePacket chatMessagePacket) {
-                System.out.println("[ECHO] " + chatMessagePacket.username + " > " + chatMessagePacket.message);
-            }
+        public static void echoMessage(ServerConnection connection, ChatMessagePacket packet) {
+            System.out.println("[ECHO] " + packet.username + " > " + packet.message);
         }
     }
 
     public static class ClientFunctions {
-        public static void echoMessage(Packet<?, ?> packet) {
-            if(packet instanceof ChatMessagePacket chatMessagePacket) {
-                System.out.println("[INC] " + chatMessagePacket.username + " > " + chatMessagePacket.message);
-            }
+        public static void echoMessage(ProtocolClient client, ChatMessagePacket packet) {
+            System.out.println("[INC] " + packet.username + " > " + packet.message);
         }
     }
 }
@@ -0,0 +1,134 @@
+package dev.akarah.format;
+
+import dev.akarah.protocol.Argument;
+import org.javatuples.Pair;
+import org.junit.jupiter.api.Test;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class StringDictionaryTest {
+    /**
+     * @return The strings of a full dictionary from least to most recently used, found by adding strings until each
+     * one is evicted, then undoing that.
+     */
+    private static String evictionOrder(StringDictionary dictionary, int capacity) {
+        var values = new String[capacity];
+        for(int slot = 0; slot < capacity; slot++) {
+            values[slot] = dictionary.get(slot);
+        }
+        var builder = new StringBuilder();
+        dictionary.begin();
+        for(int i = 0; i < capacity; i++) {
+            dictionary.add("probe" + i);
+            builder.append(values[dictionary.slotOf("probe" + i)]);
+        }
+        dictionary.rollback();
+        return builder.toString();
+    }
+
+    private static StringDictionary filled(String... values) {
+        var dictionary = new StringDictionary(values.length, true);
+        for(var value : values) {
+            dictionary.add(value);
+        }
+        return dictionary;
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedString() {
+        var dictionary = filled("a", "b", "c");
+        dictionary.use(dictionary.slotOf("a"));
+        dictionary.add("d");
+        assertEquals(-1, dictionary.slotOf("b"));
+        assertEquals("d", dictionary.get(dictionary.slotOf("d")));
+        dictionary.add("e");
+        assertEquals(-1, dictionary.slotOf("c"));
+        assertEquals(0, dictionary.slotOf("a"));
+    }
+
+    @Test
+    public void rollsBackAdditionsUsesAndEvictions() {
+        var dictionary = filled("a", "b", "c");
+        dictionary.use(dictionary.slotOf("b"));
+        assertEquals("acb", evictionOrder(dictionary, 3));
+
+        dictionary.begin();
+        dictionary.use(dictionary.slotOf("a"));
+        dictionary.add("d");
+        dictionary.add("e");
+        dictionary.use(dictionary.slotOf("d"));
+        dictionary.rollback();
+
+        assertEquals(0, dictionary.slotOf("a"));
+        assertEquals(1, dictionary.slotOf("b"));
+        assertEquals(2, dictionary.slotOf("c"));
+        assertEquals(-1, dictionary.slotOf("d"));
+        assertEquals(-1, dictionary.slotOf("e"));
+        assertEquals("acb", evictionOrder(dictionary, 3));
+    }
+
+    @Test
+    public void rollsBackAppendsToAPartialDictionary() {
+        var dictionary = new StringDictionary(4, true);
+        dictionary.add("a");
+        dictionary.begin();
+        dictionary.add("b");
+        dictionary.add("c");
+        dictionary.rollback();
+
+        assertEquals(-1, dictionary.slotOf("b"));
+        assertThrows(RuntimeException.class, () -> dictionary.get(1));
+        dictionary.add("x");
+        assertEquals(1, dictionary.slotOf("x"));
+    }
+
+    @Test
+    public void keepsCommittedChanges() {
+        var dictionary = filled("a", "b");
+        dictionary.begin();
+        dictionary.add("c");
+        dictionary.commit();
+        dictionary.begin();
+        dictionary.rollback();
+        assertEquals(-1, dictionary.slotOf("a"));
+        assertEquals(0, dictionary.slotOf("c"));
+    }
+
+    @Test
+    public void rollsBackAPacketThatFailedToEncode() {
+        var format = Argument.pair(Argument.internedString(2), Argument.internedString(2));
+        var sender = CodecContext.outbound();
+        var receiver = CodecContext.inbound();
+        var wire = ByteBuffer.allocate(256);
+
+        var previous = CodecContext.bind(sender);
+        try {
+            format.write(wire, new Pair<>("a", "b"));
+            // Doesn't fit, so it's undone and never sent, like FrameEncoder does.
+            sender.begin();
+            assertThrows(BufferOverflowException.class,
+                () -> format.write(ByteBuffer.allocate(8), new Pair<>("c", "a".repeat(64))));
+            sender.rollback();
+            format.write(wire, new Pair<>("b", "a"));
+        } finally {
+            CodecContext.bind(previous);
+        }
+
+        previous = CodecContext.bind(receiver);
+        try {
+            wire.flip();
+            var first = format.read(wire);
+            var second = format.read(wire);
+            assertEquals(new Pair<>("b", "a"), second);
+            assertSame(first.getValue1(), second.getValue0());
+            assertSame(first.getValue0(), second.getValue1());
+        } finally {
+            CodecContext.bind(previous);
+        }
+    }
+}
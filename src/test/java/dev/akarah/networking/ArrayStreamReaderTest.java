@@ -0,0 +1,271 @@
+package dev.akarah.networking;
+
+import dev.akarah.format.CodecContext;
+import dev.akarah.format.Packet;
+import dev.akarah.protocol.Argument;
+import dev.akarah.protocol.PacketSpecification;
+import dev.akarah.protocol.Protocol;
+import dev.akarah.util.BufferPool;
+import dev.akarah.util.VarIntStreamUtils;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ArrayStreamReaderTest {
+    public static class SnapshotPacket extends Packet<String[], SnapshotPacket> {
+        public final String[] entries;
+
+        public SnapshotPacket(String[] entries) {
+            this.entries = entries;
+        }
+
+        @Override
+        public PacketSpecification<String[]> specification() {
+            return PacketSpecification.ofId(5).withArguments(Argument.arrayOf(Argument.string()));
+        }
+
+        @Override
+        public SnapshotPacket fromData(String[] formattedData) {
+            return new SnapshotPacket(formattedData);
+        }
+
+        @Override
+        public String[] toFormat() {
+            return this.entries;
+        }
+    }
+
+    private static class RecordingSubscriber implements Flow.Subscriber<String> {
+        final List<String> elements = new ArrayList<>();
+        final long initialRequest;
+        Flow.Subscription subscription;
+        boolean completed;
+        Throwable error;
+
+        RecordingSubscriber(long initialRequest) {
+            this.initialRequest = initialRequest;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(this.initialRequest);
+        }
+
+        @Override
+        public void onNext(String item) {
+            this.elements.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            this.error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+            this.completed = true;
+        }
+    }
+
+    private final Protocol protocol = Protocol.empty().registerPacket(new SnapshotPacket(null));
+    private final AtomicBoolean resumed = new AtomicBoolean();
+
+    private ArrayStreamReader<Object> streamReader(RecordingSubscriber subscriber) {
+        var streams = new ArrayStreams<Object>();
+        streams.add(SnapshotPacket.class, Argument.string(), connection -> subscriber);
+        streams.compile(this.protocol);
+        return new ArrayStreamReader<>(streams, this, CodecContext.inbound(), () -> this.resumed.set(true));
+    }
+
+    private FrameReader frameReader(int initialCapacity) {
+        var reader = new FrameReader(BufferPool.heap(), initialCapacity, this.protocol);
+        reader.streamIds(id -> id == 5);
+        return reader;
+    }
+
+    /**
+     * Reads and streams frames like a connection does, until the stream ends or the stream reader pauses.
+     * @return Whether the stream reader paused.
+     */
+    private static boolean pump(FrameReader reader, ArrayStreamReader<Object> streamReader, InputStream stream)
+        throws IOException {
+        while(true) {
+            while(reader.nextFrame()) {
+                if(reader.isStreamed() && !streamReader.read(reader)) {
+                    return true;
+                }
+            }
+            if(!reader.readFrom(stream)) {
+                return false;
+            }
+        }
+    }
+
+    private static byte[] encode(String... entries) {
+        var frame = new FrameEncoder(BufferPool.heap(), 256).encode(new SnapshotPacket(entries));
+        var bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * A stream handing out at most {@code chunk} bytes per read, like a slow connection, counting the bytes handed out.
+     */
+    private static InputStream chunked(byte[] bytes, int chunk, AtomicInteger read) {
+        var stream = new ByteArrayInputStream(bytes);
+        return new InputStream() {
+            @Override
+            public int read() {
+                return stream.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                var count = stream.read(b, off, Math.min(len, chunk));
+                read.addAndGet(Math.max(count, 0));
+                return count;
+            }
+        };
+    }
+
+    private static String[] entries(int count) {
+        var entries = new String[count];
+        for(int i = 0; i < count; i++) {
+            entries[i] = "entry " + i;
+        }
+        return entries;
+    }
+
+    @Test
+    public void streamsElementsAsTheirBytesArrive() throws IOException {
+        var entries = entries(500);
+        var bytes = encode(entries);
+        var read = new AtomicInteger();
+        var readAtFirstElement = new AtomicInteger(-1);
+        var subscriber = new RecordingSubscriber(Long.MAX_VALUE) {
+            @Override
+            public void onNext(String item) {
+                readAtFirstElement.compareAndSet(-1, read.get());
+                super.onNext(item);
+            }
+        };
+        // Far smaller than the frame, which is never buffered whole.
+        var reader = this.frameReader(64);
+
+        assertFalse(pump(reader, this.streamReader(subscriber), chunked(bytes, 7, read)));
+        assertEquals(List.of(entries), subscriber.elements);
+        assertTrue(subscriber.completed);
+        assertTrue(readAtFirstElement.get() < 32);
+    }
+
+    @Test
+    public void pausesUntilMoreElementsAreRequested() throws IOException {
+        var entries = entries(10);
+        var subscriber = new RecordingSubscriber(3);
+        var streamReader = this.streamReader(subscriber);
+        var reader = this.frameReader(1024);
+        var stream = new ByteArrayInputStream(encode(entries));
+
+        assertTrue(pump(reader, streamReader, stream));
+        assertEquals(3, subscriber.elements.size());
+        assertTrue(streamReader.isPaused());
+        assertFalse(this.resumed.get());
+
+        subscriber.subscription.request(100);
+        assertTrue(this.resumed.get());
+        assertFalse(streamReader.isPaused());
+        assertFalse(pump(reader, streamReader, stream));
+        assertEquals(List.of(entries), subscriber.elements);
+        assertTrue(subscriber.completed);
+    }
+
+    @Test
+    public void skipsElementsAfterCancelling() throws IOException {
+        var subscriber = new RecordingSubscriber(2);
+        var streamReader = this.streamReader(subscriber);
+        var reader = this.frameReader(1024);
+        var stream = new ByteArrayInputStream(encode(entries(5)));
+
+        assertTrue(pump(reader, streamReader, stream));
+        subscriber.subscription.cancel();
+        assertFalse(pump(reader, streamReader, stream));
+        assertEquals(2, subscriber.elements.size());
+        assertFalse(subscriber.completed);
+        assertFalse(reader.hasPartialFrame());
+    }
+
+    @Test
+    public void failsTheStreamWhenTheConnectionCloses() throws IOException {
+        var bytes = encode(entries(20));
+        var subscriber = new RecordingSubscriber(Long.MAX_VALUE);
+        var streamReader = this.streamReader(subscriber);
+        var reader = this.frameReader(1024);
+
+        assertThrows(EOFException.class,
+            () -> pump(reader, streamReader, new ByteArrayInputStream(bytes, 0, bytes.length - 3)));
+        streamReader.close(new SocketException("connection closed"));
+        assertEquals(19, subscriber.elements.size());
+        assertInstanceOf(SocketException.class, subscriber.error);
+    }
+
+    /**
+     * @return A frame of packet 5 claiming {@code count} elements, with the given bytes as the elements.
+     */
+    private static byte[] frame(int count, byte[] elements) {
+        var frame = ByteBuffer.allocate(elements.length + 16);
+        VarIntStreamUtils.writeVarLong(frame, 1 + Short.BYTES + elements.length);
+        VarIntStreamUtils.writeVarLong(frame, 5);
+        frame.putShort((short) count);
+        frame.put(elements);
+        var bytes = new byte[frame.position()];
+        frame.flip().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return The encoded elements of an array of {@code count} short entries.
+     */
+    private static byte[] elements(int count) {
+        var bytes = encode(entries(count));
+        // The frame's length prefix and ID take a byte each, followed by the array's length.
+        var elements = new byte[bytes.length - 4];
+        System.arraycopy(bytes, 4, elements, 0, elements.length);
+        return elements;
+    }
+
+    @Test
+    public void rejectsElementsRunningPastTheirFrame() {
+        var bytes = elements(2);
+        var truncated = new byte[bytes.length - 2];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        var streamReader = this.streamReader(new RecordingSubscriber(Long.MAX_VALUE));
+        var reader = this.frameReader(1024);
+        assertThrows(RuntimeException.class,
+            () -> pump(reader, streamReader, new ByteArrayInputStream(frame(2, truncated))));
+    }
+
+    @Test
+    public void rejectsBytesAfterTheLastElement() {
+        var streamReader = this.streamReader(new RecordingSubscriber(Long.MAX_VALUE));
+        var reader = this.frameReader(1024);
+        assertThrows(RuntimeException.class,
+            () -> pump(reader, streamReader, new ByteArrayInputStream(frame(1, elements(2)))));
+    }
+}
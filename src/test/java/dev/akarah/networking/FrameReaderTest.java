@@ -0,0 +1,275 @@
+package dev.akarah.networking;
+
+import dev.akarah.format.Packet;
+import dev.akarah.protocol.Argument;
+import dev.akarah.protocol.Compression;
+import dev.akarah.protocol.LimitExceededException;
+import dev.akarah.protocol.PacketSpecification;
+import dev.akarah.protocol.Protocol;
+import dev.akarah.util.BufferPool;
+import dev.akarah.util.VarIntStreamUtils;
+import org.javatuples.Pair;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class FrameReaderTest {
+    public static class MessagePacket extends Packet<Pair<String, Integer>, MessagePacket> {
+        public final String text;
+        public final int number;
+
+        public MessagePacket(String text, int number) {
+            this.text = text;
+            this.number = number;
+        }
+
+        @Override
+        public PacketSpecification<Pair<String, Integer>> specification() {
+            return PacketSpecification.ofId(3).withArguments(Argument.string(), Argument.integer());
+        }
+
+        @Override
+        public MessagePacket fromData(Pair<String, Integer> formattedData) {
+            return new MessagePacket(formattedData.getValue0(), formattedData.getValue1());
+        }
+
+        @Override
+        public Pair<String, Integer> toFormat() {
+            return new Pair<>(this.text, this.number);
+        }
+    }
+
+    private static Protocol protocol() {
+        return Protocol.empty().registerPacket(new MessagePacket(null, 0));
+    }
+
+    private static byte[] encode(Compression compression, MessagePacket... packets) {
+        var encoder = new FrameEncoder(BufferPool.heap(), 256, compression);
+        var out = new ByteArrayOutputStream();
+        for(var packet : packets) {
+            var frame = encoder.encode(packet);
+            var bytes = new byte[frame.remaining()];
+            frame.get(bytes);
+            out.writeBytes(bytes);
+        }
+        encoder.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * A stream handing out at most one byte per read, like a slow connection.
+     */
+    private static InputStream trickle(byte[] bytes) {
+        var stream = new ByteArrayInputStream(bytes);
+        return new InputStream() {
+            @Override
+            public int read() {
+                return stream.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                return stream.read(b, off, Math.min(len, 1));
+            }
+        };
+    }
+
+    private static MessagePacket decode(Protocol protocol, FrameReader reader) {
+        return (MessagePacket) protocol.readPacket(reader.packetId(), reader.body());
+    }
+
+    @Test
+    public void splitsFramesFromOneRead() throws IOException {
+        var protocol = protocol();
+        var bytes = encode(Compression.none(), new MessagePacket("a", 1), new MessagePacket("bc", 2), new MessagePacket("", 3));
+        var reader = new FrameReader(BufferPool.heap(), 1024, protocol);
+        assertTrue(reader.readFrom(new ByteArrayInputStream(bytes)));
+
+        for(int i = 1; i <= 3; i++) {
+            assertTrue(reader.nextFrame());
+            assertEquals(3, reader.packetId());
+            assertEquals(i, decode(protocol, reader).number);
+        }
+        assertFalse(reader.nextFrame());
+        assertFalse(reader.hasPartialFrame());
+        reader.close();
+    }
+
+    @Test
+    public void joinsFramesSplitAcrossReads() throws IOException {
+        var protocol = protocol();
+        var text = "x".repeat(300);
+        var stream = trickle(encode(Compression.none(), new MessagePacket(text, 7), new MessagePacket("y", 8)));
+        // Smaller than the first frame, so the buffer has to grow.
+        var reader = new FrameReader(BufferPool.heap(), 16, protocol);
+
+        var decoded = new ArrayList<MessagePacket>();
+        while(reader.readFrom(stream)) {
+            while(reader.nextFrame()) {
+                decoded.add(decode(protocol, reader));
+            }
+        }
+        assertEquals(2, decoded.size());
+        assertEquals(text, decoded.get(0).text);
+        assertEquals("y", decoded.get(1).text);
+        reader.close();
+    }
+
+    @Test
+    public void readsDirectBuffersFromStreams() throws IOException {
+        var protocol = protocol();
+        var reader = new FrameReader(BufferPool.direct(), 64, protocol);
+        assertTrue(reader.readFrom(new ByteArrayInputStream(encode(Compression.none(), new MessagePacket("direct", 5)))));
+        assertTrue(reader.nextFrame());
+        assertEquals("direct", decode(protocol, reader).text);
+        reader.close();
+    }
+
+    @Test
+    public void endsCleanlyBetweenFrames() throws IOException {
+        var reader = new FrameReader(BufferPool.heap(), 64, protocol());
+        var stream = new ByteArrayInputStream(encode(Compression.none(), new MessagePacket("a", 1)));
+        assertTrue(reader.readFrom(stream));
+        assertTrue(reader.nextFrame());
+        assertFalse(reader.readFrom(stream));
+        reader.close();
+    }
+
+    @Test
+    public void failsWhenTheStreamEndsMidFrame() throws IOException {
+        var bytes = encode(Compression.none(), new MessagePacket("hello", 1));
+        var stream = new ByteArrayInputStream(bytes, 0, bytes.length - 2);
+        var reader = new FrameReader(BufferPool.heap(), 64, protocol());
+        assertTrue(reader.readFrom(stream));
+        assertFalse(reader.nextFrame());
+        assertThrows(EOFException.class, () -> reader.readFrom(stream));
+        reader.close();
+    }
+
+    @Test
+    public void rejectsFramesOverTheLimitFromTheirPrefix() throws IOException {
+        var protocol = protocol().withMaxFrameSize(64);
+        var buf = ByteBuffer.allocate(8);
+        VarIntStreamUtils.writeVarLong(buf, 1000);
+        VarIntStreamUtils.writeVarLong(buf, 3);
+
+        var reader = new FrameReader(BufferPool.heap(), 64, protocol);
+        assertTrue(reader.readFrom(new ByteArrayInputStream(buf.array(), 0, buf.position())));
+        assertThrows(LimitExceededException.class, reader::nextFrame);
+        reader.close();
+    }
+
+    @Test
+    public void rejectsPacketIdsLargerThanAnInt() throws IOException {
+        // Narrowed to an int, this ID would be the message packet's.
+        var id = (1L << 32) | 3;
+        var buf = ByteBuffer.allocate(16);
+        VarIntStreamUtils.writeVarLong(buf, VarIntStreamUtils.varLongSize(id) + 2);
+        VarIntStreamUtils.writeVarLong(buf, id);
+        buf.put((byte) 0).put((byte) 0);
+
+        var reader = new FrameReader(BufferPool.heap(), 64, protocol());
+        assertTrue(reader.readFrom(new ByteArrayInputStream(buf.array(), 0, buf.position())));
+        var e = assertThrows(RuntimeException.class, reader::nextFrame);
+        assertEquals("invalid packet ID " + id, e.getMessage());
+        reader.close();
+    }
+
+    @Test
+    public void rejectsFramesOverTheLimitOfTheirPacket() throws IOException {
+        var protocol = protocol().withMaxFrameSize(3, 8);
+        var reader = new FrameReader(BufferPool.heap(), 64, protocol);
+        assertTrue(reader.readFrom(new ByteArrayInputStream(encode(Compression.none(), new MessagePacket("too long", 1)))));
+        assertThrows(LimitExceededException.class, reader::nextFrame);
+        reader.close();
+    }
+
+    @Test
+    public void inflatesCompressedFrames() throws IOException {
+        var protocol = protocol().withCompression(Compression.deflate(0));
+        var text = "compressible ".repeat(50);
+        var bytes = encode(protocol.compression(), new MessagePacket(text, 1), new MessagePacket("", 2));
+        assertTrue(bytes.length < text.length());
+
+        var reader = new FrameReader(BufferPool.heap(), 64, protocol);
+        var stream = new ByteArrayInputStream(bytes);
+        var decoded = new ArrayList<MessagePacket>();
+        while(reader.readFrom(stream)) {
+            while(reader.nextFrame()) {
+                decoded.add(decode(protocol, reader));
+            }
+        }
+        assertEquals(text, decoded.get(0).text);
+        assertEquals(2, decoded.get(1).number);
+        reader.close();
+    }
+
+    /**
+     * @return A compressed frame of packet 3 claiming an uncompressed length of {@code claimedLength}.
+     */
+    private static byte[] compressedFrame(byte[] body, long claimedLength) {
+        var deflater = new Deflater();
+        deflater.setInput(body);
+        deflater.finish();
+        var deflated = new byte[body.length + 64];
+        var deflatedLength = deflater.deflate(deflated);
+        deflater.end();
+
+        var frame = ByteBuffer.allocate(deflatedLength + 32);
+        var frameLength = VarIntStreamUtils.varLongSize(3) + VarIntStreamUtils.varLongSize(claimedLength) + deflatedLength;
+        VarIntStreamUtils.writeVarLong(frame, (long) frameLength << 1 | 1);
+        VarIntStreamUtils.writeVarLong(frame, 3);
+        VarIntStreamUtils.writeVarLong(frame, claimedLength);
+        frame.put(deflated, 0, deflatedLength);
+        var bytes = new byte[frame.position()];
+        frame.flip().get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void rejectsUncompressedLengthsOverTheLimit() throws IOException {
+        var protocol = protocol().withCompression(Compression.deflate(0)).withMaxFrameSize(1024);
+        var reader = new FrameReader(BufferPool.heap(), 64, protocol);
+        assertTrue(reader.readFrom(new ByteArrayInputStream(compressedFrame(new byte[16], 1 << 20))));
+        assertThrows(LimitExceededException.class, reader::nextFrame);
+        reader.close();
+    }
+
+    @Test
+    public void rejectsCompressedBodiesShorterThanTheirLength() throws IOException {
+        var protocol = protocol().withCompression(Compression.deflate(0));
+        var reader = new FrameReader(BufferPool.heap(), 64, protocol);
+        assertTrue(reader.readFrom(new ByteArrayInputStream(compressedFrame(new byte[16], 32))));
+        assertThrows(RuntimeException.class, reader::nextFrame);
+        reader.close();
+    }
+
+    @Test
+    public void inflatesCompressedBodiesOfTheirExactLength() throws IOException {
+        var protocol = protocol().withCompression(Compression.deflate(0));
+        var body = new byte[40];
+        for(int i = 0; i < body.length; i++) {
+            body[i] = (byte) i;
+        }
+        var reader = new FrameReader(BufferPool.heap(), 64, protocol);
+        assertTrue(reader.readFrom(new ByteArrayInputStream(compressedFrame(body, body.length))));
+        assertTrue(reader.nextFrame());
+        var inflated = new byte[reader.body().remaining()];
+        reader.body().get(inflated);
+        assertArrayEquals(body, inflated);
+        reader.close();
+    }
+}
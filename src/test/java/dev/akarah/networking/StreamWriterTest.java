@@ -0,0 +1,187 @@
+package dev.akarah.networking;
+
+import dev.akarah.format.CodecContext;
+import dev.akarah.format.Packet;
+import dev.akarah.protocol.Argument;
+import dev.akarah.protocol.PacketSpecification;
+import dev.akarah.protocol.Protocol;
+import dev.akarah.util.BufferPool;
+import dev.akarah.util.SizeClassBufferPool;
+import org.javatuples.Pair;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class StreamWriterTest {
+    public static class TaggedPacket extends Packet<Pair<String, Integer>, TaggedPacket> {
+        public final String tag;
+        public final int number;
+
+        public TaggedPacket(String tag, int number) {
+            this.tag = tag;
+            this.number = number;
+        }
+
+        @Override
+        public PacketSpecification<Pair<String, Integer>> specification() {
+            return PacketSpecification.ofId(4).withArguments(Argument.internedString(4), Argument.integer());
+        }
+
+        @Override
+        public TaggedPacket fromData(Pair<String, Integer> formattedData) {
+            return new TaggedPacket(formattedData.getValue0(), formattedData.getValue1());
+        }
+
+        @Override
+        public Pair<String, Integer> toFormat() {
+            return new Pair<>(this.tag, this.number);
+        }
+    }
+
+    /**
+     * Collects what is written, counting writes that overlap, which only happen if two writers run at once.
+     */
+    private static class RecordingStream extends OutputStream {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final AtomicInteger writing = new AtomicInteger();
+        final AtomicInteger overlaps = new AtomicInteger();
+
+        @Override
+        public void write(int b) {
+            this.write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if(this.writing.incrementAndGet() > 1) {
+                this.overlaps.incrementAndGet();
+            }
+            synchronized(this.bytes) {
+                this.bytes.write(b, off, len);
+            }
+            this.writing.decrementAndGet();
+        }
+    }
+
+    /**
+     * A pool that takes its time giving buffers back, widening the window in which a writer that's done still holds
+     * its buffers while the next writer starts. Buffers released twice are counted, as a writer may not get to report
+     * it.
+     */
+    private static BufferPool slowToRelease(BufferPool pool, AtomicInteger doubleReleases) {
+        return new BufferPool() {
+            @Override
+            public ByteBuffer acquire(int minCapacity) {
+                return pool.acquire(minCapacity);
+            }
+
+            @Override
+            public void release(ByteBuffer buffer) {
+                LockSupport.parkNanos(20_000);
+                try {
+                    pool.release(buffer);
+                } catch (IllegalStateException e) {
+                    doubleReleases.incrementAndGet();
+                }
+            }
+        };
+    }
+
+    private static String tag(int number) {
+        return "tag " + number % 7;
+    }
+
+    @Test
+    public void handsOverToTheNextWriterCleanly() throws Exception {
+        var protocol = Protocol.empty().registerPacket(new TaggedPacket(null, 0)).freeze();
+        var pool = BufferPool.leakDetecting(new SizeClassBufferPool(false));
+        var doubleReleases = new AtomicInteger();
+        var slowPool = slowToRelease(pool, doubleReleases);
+        var stream = new RecordingStream();
+        var failures = new AtomicInteger();
+        var writer = new StreamWriter(
+            stream,
+            new FrameEncoder(slowPool, 64),
+            protocol,
+            slowPool,
+            FlushPolicy.immediate(),
+            OutboundQueue.Watermarks.DEFAULT,
+            writable -> {},
+            failures::incrementAndGet
+        );
+
+        // The first packet is slow to encode, and the writer wouldn't run dry while every other packet queued up behind it.
+        var warmup = new CompletableFuture<Void>();
+        writer.queue.add(new TaggedPacket(tag(-1), -1), warmup);
+        warmup.get(10, TimeUnit.SECONDS);
+
+        var senders = 8;
+        var perSender = 400;
+        var futures = new ArrayList<CompletableFuture<Void>>();
+        var threads = new ArrayList<Thread>();
+        for(int s = 0; s < senders; s++) {
+            var first = s * perSender;
+            threads.add(Thread.ofPlatform().start(() -> {
+                for(int number = first; number < first + perSender; number++) {
+                    var future = new CompletableFuture<Void>();
+                    synchronized(futures) {
+                        futures.add(future);
+                    }
+                    writer.queue.add(new TaggedPacket(tag(number), number), future);
+                    // Slower than even a cold writer, so it keeps running dry, stopping, and being started again.
+                    LockSupport.parkNanos(1_000_000);
+                }
+            }));
+        }
+        for(var thread : threads) {
+            thread.join();
+        }
+        for(var future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+
+        // The last writer gives its buffers back after completing the futures.
+        var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while(pool.outstanding() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(0, failures.get());
+        assertEquals(0, doubleReleases.get());
+        assertEquals(0, stream.overlaps.get());
+        pool.assertNoLeaks();
+
+        var reader = new FrameReader(BufferPool.heap(), 64, protocol);
+        var input = new ByteArrayInputStream(stream.bytes.toByteArray());
+        var seen = new BitSet();
+        var previous = CodecContext.bind(CodecContext.inbound());
+        try {
+            while(reader.readFrom(input)) {
+                while(reader.nextFrame()) {
+                    var packet = (TaggedPacket) protocol.readPacket(reader.packetId(), reader.body());
+                    if(packet.number < 0) {
+                        continue;
+                    }
+                    assertEquals(tag(packet.number), packet.tag);
+                    assertTrue(!seen.get(packet.number), "packet " + packet.number + " was written twice");
+                    seen.set(packet.number);
+                }
+            }
+        } finally {
+            CodecContext.bind(previous);
+            reader.close();
+        }
+        assertEquals(senders * perSender, seen.cardinality());
+    }
+}
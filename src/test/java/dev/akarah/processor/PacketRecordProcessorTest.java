@@ -0,0 +1,115 @@
+package dev.akarah.processor;
+
+import dev.akarah.format.PacketFormat;
+import dev.akarah.format.PacketFormats;
+import dev.akarah.protocol.Argument;
+import dev.akarah.protocol.CodecCompiler;
+import org.javatuples.Pair;
+import org.javatuples.Quartet;
+import org.junit.jupiter.api.Test;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class PacketRecordProcessorTest {
+    private static <T> byte[] encode(PacketFormat<T> format, T value) {
+        var buf = ByteBuffer.allocate(256);
+        format.write(buf, value);
+        return Arrays.copyOf(buf.array(), buf.position());
+    }
+
+    private static final Reading READING = new Reading((byte) 3, 42, 1L << 40, 1.5f, -2.25);
+
+    /**
+     * The format the generated codec of {@link Reading} must match byte for byte.
+     */
+    private static final PacketFormat<Pair<Quartet<Byte, Integer, Long, Float>, Double>> READING_FORMAT = Argument.pair(
+        new PacketFormats.QuartetFormat<>(
+            Argument.singleByte(), Argument.integer(), Argument.longInteger(), Argument.floatingPoint()),
+        Argument.doublePrecision()
+    );
+
+    @Test
+    public void generatesFixedSizeCodecs() {
+        var codec = ReadingCodec.INSTANCE;
+        assertEquals(1 + 4 + 8 + 4 + 8, codec.fixedSize());
+        assertEquals(codec.fixedSize(), codec.length(READING));
+        assertEquals(codec.fixedSize(), ReadingPacket.SPECIFICATION.fixedSize());
+
+        var expected = encode(READING_FORMAT, new Pair<>(new Quartet<>((byte) 3, 42, 1L << 40, 1.5f), -2.25));
+        assertArrayEquals(expected, encode(codec, READING));
+        assertEquals(READING, codec.read(ByteBuffer.wrap(expected)));
+    }
+
+    @Test
+    public void readsAndWritesAtTheBuffersPosition() {
+        var codec = ReadingCodec.INSTANCE;
+        var buf = ByteBuffer.allocate(5 + codec.fixedSize()).position(5);
+        codec.write(buf, READING);
+        assertEquals(buf.capacity(), buf.position());
+
+        buf.position(5);
+        assertEquals(READING, codec.read(buf));
+        assertEquals(buf.capacity(), buf.position());
+
+        buf.position(5);
+        codec.skip(buf);
+        assertEquals(buf.capacity(), buf.position());
+    }
+
+    @Test
+    public void checksFixedSizeBoundsOnce() {
+        var codec = ReadingCodec.INSTANCE;
+        var bytes = encode(codec, READING);
+        for(int length = 0; length < bytes.length; length++) {
+            var buf = ByteBuffer.wrap(bytes, 0, length);
+            assertThrows(BufferUnderflowException.class, () -> codec.read(buf));
+            assertThrows(BufferUnderflowException.class, () -> codec.skip(buf));
+            assertEquals(0, buf.position());
+
+            var out = ByteBuffer.allocate(length);
+            assertThrows(BufferOverflowException.class, () -> codec.write(out, READING));
+            assertEquals(0, out.position());
+        }
+    }
+
+    @Test
+    public void compilesToTheSameBytes() {
+        var compiled = CodecCompiler.compile(ReadingPacket.SPECIFICATION.getFormat());
+        var expected = encode(ReadingPacket.SPECIFICATION.getFormat(), READING);
+        assertArrayEquals(expected, encode(compiled, READING));
+        assertEquals(READING, compiled.read(ByteBuffer.wrap(expected)));
+    }
+
+    @Test
+    public void generatesVariableSizeCodecs() {
+        var codec = SampleCodec.INSTANCE;
+        var sample = new Sample(7, "label", 300, new int[]{1, 2, 3});
+        assertEquals(-1, codec.fixedSize());
+
+        var expected = encode(
+            new PacketFormats.QuartetFormat<>(
+                Argument.integer(), Argument.string(), Argument.varInt(), Argument.intArray(Argument.integer())),
+            new Quartet<>(7, "label", 300L, new int[]{1, 2, 3})
+        );
+        var bytes = encode(codec, sample);
+        assertArrayEquals(expected, bytes);
+        assertEquals(bytes.length, codec.length(sample));
+
+        var read = codec.read(ByteBuffer.wrap(bytes));
+        assertEquals(sample.label(), read.label());
+        assertEquals(sample.count(), read.count());
+        assertArrayEquals(sample.values(), read.values());
+
+        var buf = ByteBuffer.wrap(bytes);
+        codec.skip(buf);
+        assertEquals(bytes.length, buf.position());
+        assertThrows(BufferUnderflowException.class, () -> codec.read(ByteBuffer.wrap(bytes, 0, bytes.length - 1)));
+    }
+}
@@ -0,0 +1,10 @@
+package dev.akarah.processor;
+
+import dev.akarah.format.PacketRecord;
+
+/**
+ * Only fixed-width components, so its generated codec has a fixed size.
+ */
+@PacketRecord(id = 1)
+public record Reading(byte sensor, int sequence, long time, float value, double total) {
+}
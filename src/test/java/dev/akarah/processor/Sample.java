@@ -0,0 +1,11 @@
+package dev.akarah.processor;
+
+import dev.akarah.format.PacketRecord;
+import dev.akarah.format.VarInt;
+
+/**
+ * Components that vary in size, so its generated codec reads and writes them one after another.
+ */
+@PacketRecord(id = 2)
+public record Sample(int sequence, String label, @VarInt long count, int[] values) {
+}
@@ -0,0 +1,178 @@
+package dev.akarah.protocol;
+
+import dev.akarah.format.CodecContext;
+import dev.akarah.format.PacketFormat;
+import dev.akarah.format.PacketFormats;
+import org.javatuples.Pair;
+import org.javatuples.Quartet;
+import org.javatuples.Triplet;
+import org.junit.jupiter.api.Test;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CodecCompilerTest {
+    private static <T> byte[] encode(PacketFormat<T> format, T value) {
+        var buf = ByteBuffer.allocate(1 << 16);
+        format.write(buf, value);
+        return Arrays.copyOf(buf.array(), buf.position());
+    }
+
+    /**
+     * Checks that the compiled format writes the same bytes as the format it came from, and reads and skips them the
+     * same way. Values are compared by encoding them again, as tuples holding arrays don't compare their contents.
+     */
+    private static <T> PacketFormat<T> assertSameAsSource(PacketFormat<T> format, T value) {
+        var compiled = CodecCompiler.compile(format);
+        var bytes = encode(format, value);
+        assertArrayEquals(bytes, encode(compiled, value));
+        assertEquals(format.length(value), compiled.length(value));
+        assertEquals(format.fixedSize(), compiled.fixedSize());
+
+        var buf = ByteBuffer.wrap(bytes);
+        var read = compiled.read(buf);
+        assertEquals(bytes.length, buf.position());
+        assertArrayEquals(bytes, encode(format, read));
+
+        buf = ByteBuffer.wrap(bytes);
+        compiled.skip(buf);
+        assertEquals(bytes.length, buf.position());
+        return compiled;
+    }
+
+    @Test
+    public void compilesNestedTuples() {
+        var format = Argument.pair(
+            Argument.triple(Argument.integer(), Argument.string(), Argument.varInt()),
+            Argument.pair(Argument.floatingPoint(), Argument.pair(Argument.singleByte(), Argument.doublePrecision()))
+        );
+        assertSameAsSource(format, new Pair<>(new Triplet<>(-4, "nested", 300L), new Pair<>(1.5f, new Pair<>((byte) 9, 2.25))));
+        assertSameAsSource(
+            new PacketFormats.QuartetFormat<>(Argument.string(), Argument.longInteger(), Argument.varInt(), Argument.string()),
+            new Quartet<>("a", Long.MIN_VALUE, -1L, "")
+        );
+    }
+
+    @Test
+    public void compilesArrays() {
+        assertSameAsSource(
+            Argument.pair(Argument.intArray(Argument.integer()), Argument.arrayOf(Argument.string())),
+            new Pair<>(new int[]{1, 2, 3}, new String[]{"x", "yz"})
+        );
+        assertSameAsSource(
+            Argument.triple(Argument.byteArray(Argument.singleByte()), Argument.longArray(Argument.varInt()),
+                Argument.doubleArray(Argument.doublePrecision())),
+            new Triplet<>(new byte[]{1, -1}, new long[]{0, 128, -5}, new double[0])
+        );
+    }
+
+    @Test
+    public void compilesOptionals() {
+        var format = Argument.pair(Argument.optionalOf(Argument.integer()), Argument.terminalOptionalOf(Argument.string()));
+        assertSameAsSource(format, new Pair<>(Optional.of(5), Optional.of("tail")));
+        assertSameAsSource(format, new Pair<>(Optional.<Integer>empty(), Optional.<String>empty()));
+    }
+
+    @Test
+    public void compilesFixedSizeFormats() {
+        var format = new PacketFormats.QuartetFormat<>(
+            Argument.singleByte(),
+            Argument.integer(),
+            Argument.pair(Argument.longInteger(), Argument.floatingPoint()),
+            Argument.doublePrecision()
+        );
+        var value = new Quartet<>((byte) 1, 2, new Pair<>(3L, 4f), 5.0);
+        var compiled = assertSameAsSource(format, value);
+        assertEquals(1 + 4 + 8 + 4 + 8, compiled.fixedSize());
+        assertEquals(compiled.fixedSize(), compiled.length(value));
+
+        // Values are written at an offset from wherever the buffer's position is.
+        var buf = ByteBuffer.allocate(3 + compiled.fixedSize()).position(3);
+        compiled.write(buf, value);
+        assertEquals(buf.capacity(), buf.position());
+        assertEquals(value, compiled.read(buf.flip().position(3)));
+
+        var small = ByteBuffer.allocate(compiled.fixedSize() - 1);
+        assertThrows(BufferOverflowException.class, () -> compiled.write(small, value));
+        assertEquals(0, small.position());
+    }
+
+    @Test
+    public void compilesTheSameAsTheSourceWithVariableFields() {
+        var format = Argument.pair(Argument.integer(), Argument.string());
+        var compiled = assertSameAsSource(format, new Pair<>(1, "variable"));
+        assertEquals(-1, compiled.fixedSize());
+    }
+
+    @Test
+    public void failsOnTruncatedBodies() {
+        var fixed = Argument.triple(Argument.integer(), Argument.longInteger(), Argument.doublePrecision());
+        var fixedBytes = encode(fixed, new Triplet<>(1, 2L, 3.0));
+        var compiledFixed = CodecCompiler.compile(fixed);
+        for(int length = 0; length < fixedBytes.length; length++) {
+            var buf = ByteBuffer.wrap(fixedBytes, 0, length);
+            assertThrows(BufferUnderflowException.class, () -> compiledFixed.read(buf));
+            // A fixed-size value is checked all at once, so nothing was read.
+            assertEquals(0, buf.position());
+        }
+        assertThrows(BufferUnderflowException.class, () -> compiledFixed.skip(ByteBuffer.wrap(fixedBytes, 1, 4)));
+
+        var variable = Argument.pair(Argument.string(), Argument.intArray(Argument.integer()));
+        var variableBytes = encode(variable, new Pair<>("text", new int[]{1, 2}));
+        var compiledVariable = CodecCompiler.compile(variable);
+        for(int length = 0; length < variableBytes.length; length++) {
+            var buf = ByteBuffer.wrap(variableBytes, 0, length);
+            assertThrows(RuntimeException.class, () -> compiledVariable.read(buf));
+        }
+    }
+
+    @Test
+    public void compilesInternedStrings() {
+        var format = Argument.pair(Argument.internedString(2), Argument.integer());
+        var compiled = CodecCompiler.compile(format);
+        String[] values = {"alpha", "beta", "alpha", "gamma", "beta", "alpha"};
+
+        var expected = ByteBuffer.allocate(256);
+        var actual = ByteBuffer.allocate(256);
+        var sourceContext = CodecContext.outbound();
+        var compiledContext = CodecContext.outbound();
+        var statelessLength = 0;
+        for(int i = 0; i < values.length; i++) {
+            statelessLength += encode(compiled, new Pair<>(values[i], i)).length;
+            var previous = CodecContext.bind(sourceContext);
+            format.write(expected, new Pair<>(values[i], i));
+            CodecContext.bind(compiledContext);
+            compiled.write(actual, new Pair<>(values[i], i));
+            CodecContext.bind(previous);
+        }
+        assertEquals(expected.flip(), actual.flip());
+        // Strings still in the dictionary are sent as their slot instead of in full.
+        assertTrue(actual.remaining() < statelessLength);
+
+        var previous = CodecContext.bind(CodecContext.inbound());
+        try {
+            var decoded = new String[values.length];
+            for(int i = 0; i < values.length; i++) {
+                var pair = compiled.read(actual);
+                decoded[i] = pair.getValue0();
+                assertEquals(i, pair.getValue1());
+            }
+            assertArrayEquals(values, decoded);
+            assertSame(decoded[0], decoded[2]);
+            // "beta" coming back evicted "alpha", so it had to be sent in full again.
+            assertNotSame(decoded[0], decoded[5]);
+        } finally {
+            CodecContext.bind(previous);
+        }
+    }
+}